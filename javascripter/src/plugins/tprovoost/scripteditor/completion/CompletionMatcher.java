@@ -0,0 +1,197 @@
+package plugins.tprovoost.scripteditor.completion;
+
+import java.util.Comparator;
+
+import org.fife.ui.autocomplete.Completion;
+
+/**
+ * Matches the text entered by the user against the names proposed by the
+ * completion, ignoring the case:
+ * <ul>
+ * <li>prefix: <code>getFo</code> matches <code>getFocusedSequence</code>,</li>
+ * <li>camel humps: <code>gFS</code> matches <code>getFocusedSequence</code>,
+ * </li>
+ * <li>subsequence: <code>fcsdsq</code> matches <code>getFocusedSequence</code>
+ * (from 3 characters).</li>
+ * </ul>
+ * The score ranks the exact names first, then the prefixes, the camel humps
+ * and the subsequences; shorter names come first in each group. Matching does
+ * not allocate, it can run on every keystroke over the whole class catalog.
+ */
+public final class CompletionMatcher
+{
+    public static final int NO_MATCH = -1;
+
+    private static final int EXACT = 4000;
+    private static final int PREFIX = 3000;
+    private static final int CAMEL_CASE = 2000;
+    private static final int SUBSEQUENCE = 1000;
+
+    /** Minimum length of the text for a subsequence match. */
+    private static final int MIN_SUBSEQUENCE = 3;
+
+    private CompletionMatcher()
+    {
+    }
+
+    /**
+     * @return the score of <code>name</code> for the entered
+     *         <code>text</code>, {@link #NO_MATCH} if it does not match. An
+     *         empty text matches everything.
+     */
+    public static int match(String text, String name)
+    {
+        int textLength = text.length();
+        int nameLength = name.length();
+        if (textLength == 0)
+            return PREFIX + bonus(nameLength);
+        if (textLength > nameLength)
+            return NO_MATCH;
+        if (name.regionMatches(true, 0, text, 0, textLength))
+            return textLength == nameLength ? EXACT : PREFIX + bonus(nameLength - textLength);
+        if (!same(text.charAt(0), name.charAt(0)))
+        {
+            if (textLength < MIN_SUBSEQUENCE)
+                return NO_MATCH;
+            int gaps = subsequenceGaps(text, name);
+            return gaps < 0 ? NO_MATCH : SUBSEQUENCE + bonus(gaps + nameLength);
+        }
+        int humps = camelHumps(text, name);
+        if (humps >= 0)
+            return CAMEL_CASE + bonus(humps * 8 + nameLength);
+        if (textLength < MIN_SUBSEQUENCE)
+            return NO_MATCH;
+        int gaps = subsequenceGaps(text, name);
+        return gaps < 0 ? NO_MATCH : SUBSEQUENCE + bonus(gaps + nameLength);
+    }
+
+    public static boolean matches(String text, String name)
+    {
+        return match(text, name) != NO_MATCH;
+    }
+
+    /**
+     * @return <code>true</code> if the score is the one of an exact name or a
+     *         prefix.
+     */
+    public static boolean isPrefix(int score)
+    {
+        return score >= PREFIX;
+    }
+
+    /**
+     * Orders the completions by decreasing score for <code>text</code>, then
+     * by name.
+     */
+    public static Comparator<Completion> comparator(final String text)
+    {
+        return new Comparator<Completion>()
+        {
+            @Override
+            public int compare(Completion c1, Completion c2)
+            {
+                int s1 = match(text, c1.getInputText());
+                int s2 = match(text, c2.getInputText());
+                if (s1 != s2)
+                    return s1 > s2 ? -1 : 1;
+                return c1.getInputText().compareToIgnoreCase(c2.getInputText());
+            }
+        };
+    }
+
+    private static int bonus(int penalty)
+    {
+        return 999 - Math.min(999, penalty);
+    }
+
+    private static boolean same(char c1, char c2)
+    {
+        if (c1 == c2)
+            return true;
+        if (c1 < 128 && c2 < 128)
+        {
+            // ASCII letters differing by case only
+            char lower = (char) (c1 | 0x20);
+            return (c1 ^ c2) == 0x20 && lower >= 'a' && lower <= 'z';
+        }
+        return Character.toLowerCase(c1) == Character.toLowerCase(c2);
+    }
+
+    /**
+     * Beginning of a word in an identifier: first character, upper case
+     * after a lower case, letter after '_' or '$', digit after a letter.
+     */
+    private static boolean isHumpStart(String name, int i)
+    {
+        if (i == 0)
+            return true;
+        char c = name.charAt(i);
+        char previous = name.charAt(i - 1);
+        if (previous == '_' || previous == '$')
+            return c != '_' && c != '$';
+        if (Character.isUpperCase(c))
+            return !Character.isUpperCase(previous) || (i + 1 < name.length() && Character.isLowerCase(name.charAt(i + 1)));
+        return Character.isDigit(c) && !Character.isDigit(previous);
+    }
+
+    /**
+     * Each character of the text continues the current hump of the name or
+     * starts one of the next humps.
+     *
+     * @return the number of humps skipped, -1 if the text does not match.
+     */
+    private static int camelHumps(String text, String name)
+    {
+        int textLength = text.length();
+        int nameLength = name.length();
+        int skipped = 0;
+        int n = 1;
+        for (int t = 1; t < textLength; ++t)
+        {
+            char c = text.charAt(t);
+            if (n < nameLength && same(c, name.charAt(n)))
+            {
+                ++n;
+                continue;
+            }
+            // jump to the next hump starting with c
+            ++n;
+            while (n < nameLength && !(isHumpStart(name, n) && same(c, name.charAt(n))))
+            {
+                if (isHumpStart(name, n))
+                    ++skipped;
+                ++n;
+            }
+            if (n >= nameLength)
+                return -1;
+            ++n;
+        }
+        return skipped;
+    }
+
+    /**
+     * @return the number of characters of the name between the matched
+     *         characters of the text, -1 if the text is not a subsequence.
+     */
+    private static int subsequenceGaps(String text, String name)
+    {
+        int textLength = text.length();
+        int nameLength = name.length();
+        int gaps = 0;
+        int n = 0;
+        for (int t = 0; t < textLength; ++t)
+        {
+            char c = text.charAt(t);
+            while (n < nameLength && !same(c, name.charAt(n)))
+            {
+                if (t > 0)
+                    ++gaps;
+                ++n;
+            }
+            if (n >= nameLength)
+                return -1;
+            ++n;
+        }
+        return gaps;
+    }
+}
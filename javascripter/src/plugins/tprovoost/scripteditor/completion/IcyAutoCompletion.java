@@ -11,6 +11,21 @@ public abstract class IcyAutoCompletion extends AutoCompletion
     public IcyAutoCompletion(CompletionProvider provider)
     {
         super(provider);
+        if (provider instanceof IcyCompletionProvider)
+            ((IcyCompletionProvider) provider).setAutoCompletion(this);
+    }
+
+    /**
+     * Shows the completions computed in the background by the provider.
+     * 
+     * @param reopen
+     *        : show the popup even if it is hidden, because no completion was
+     *        found when it was requested.
+     */
+    void completionsReady(boolean reopen)
+    {
+        if (getTextComponent() != null && (isPopupVisible() || reopen))
+            doCompletion();
     }
 
     public boolean packageExists(String neededPackage)
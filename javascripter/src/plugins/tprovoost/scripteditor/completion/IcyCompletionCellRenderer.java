@@ -90,14 +90,14 @@ public class IcyCompletionCellRenderer extends CompletionCellRenderer
         ImageIcon icon;
         if (vc instanceof BasicJavaClassCompletion)
         {
-            Class<?> javaClass = ((BasicJavaClassCompletion) vc).getJavaClass();
-            if (javaClass.isInterface())
+            BasicJavaClassCompletion classCompletion = (BasicJavaClassCompletion) vc;
+            if (classCompletion.isInterface())
                 icon = ICON_INSTERFACE;
             else
                 icon = ICON_CLASS;
 
-            // test deprecation
-            if (javaClass.getAnnotation(Deprecated.class) != null)
+            // test deprecation, without loading the classes to display
+            if (classCompletion.isClassLoaded() && classCompletion.getJavaClass().getAnnotation(Deprecated.class) != null)
             {
                 Image img = ImageUtil.getCopy(icon.getImage());
                 img.getGraphics().drawImage(IMAGE_DEPRECATED, 0, 0, null);
@@ -2,13 +2,14 @@ package plugins.tprovoost.scripteditor.completion;
 
 import icy.gui.frame.progress.ProgressFrame;
 import icy.plugin.PluginLoader;
-import icy.util.ClassUtil;
+import icy.system.thread.ThreadUtil;
 
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.Type;
@@ -19,12 +20,25 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.Document;
 import javax.swing.text.Element;
@@ -43,7 +57,10 @@ import plugins.tprovoost.scripteditor.completion.types.JavaFunctionCompletion;
 import plugins.tprovoost.scripteditor.completion.types.NewInstanceCompletion;
 import plugins.tprovoost.scripteditor.completion.types.ScriptFunctionCompletion;
 import plugins.tprovoost.scripteditor.completion.types.ScriptFunctionCompletion.BindingFunction;
+import plugins.tprovoost.scripteditor.javasource.DocumentationService;
+import plugins.tprovoost.scripteditor.scriptinghandlers.ClassCatalog;
 import plugins.tprovoost.scripteditor.scriptinghandlers.IcyFunctionBlock;
+import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptAnalysis;
 import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptEngine;
 import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptEngineHandler;
 import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptingHandler;
@@ -52,8 +69,53 @@ import plugins.tprovoost.scripteditor.scriptinghandlers.VariableType;
 public class IcyCompletionProvider extends DefaultCompletionProvider
 {
 
+    /** Maximum number of classes proposed by the class name completion. */
+    private static final int MAX_CLASS_COMPLETIONS = 200;
+
+    /** Number of classes whose members are kept for the completion. */
+    private static final int MEMBER_TABLES_CAPACITY = 64;
+
+    /**
+     * Time a completion request waits for the results before showing the ones
+     * already found, in milliseconds.
+     */
+    private static final long COMPLETION_BUDGET = 50;
+
+    /** Delay between two refreshes of the popup with partial results, in milliseconds. */
+    private static final int PARTIAL_REFRESH_DELAY = 150;
+
+    /** Computes the completions of all the editors, one request at a time. */
+    private static final ExecutorService completionExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+    {
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, "Script Editor completion");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    });
+
     protected ScriptingHandler handler;
     protected boolean advanced = true;
+
+    /** Shows the completions computed in the background, if any. */
+    private IcyAutoCompletion autoCompletion;
+    /** Last completion request, used on the EDT only. */
+    private CompletionTask currentTask;
+
+    /** Member tables of the last completed classes: instance access, static access. */
+    private final LinkedHashMap<Class<?>, MemberTable[]> memberTables = new LinkedHashMap<Class<?>, MemberTable[]>(16, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Class<?>, MemberTable[]> eldest)
+        {
+            return size() > MEMBER_TABLES_CAPACITY;
+        }
+    };
     private static Comparator<Completion> comparatorFull = new Comparator<Completion>()
     {
         @Override
@@ -73,8 +135,18 @@ public class IcyCompletionProvider extends DefaultCompletionProvider
         this.handler = handler;
     }
 
+    /**
+     * Called by the auto completion using this provider: the completions are
+     * then computed in the background and shown when ready. Without one, they
+     * are computed on the caller's thread (e.g. the console).
+     */
+    void setAutoCompletion(IcyAutoCompletion autoCompletion)
+    {
+        this.autoCompletion = autoCompletion;
+    }
+
     @SuppressWarnings("unchecked")
-    public void installMethods(ArrayList<Method> methods)
+    public void installMethods(List<Method> methods)
     {
         for (final Method method : methods)
         {
@@ -130,6 +202,34 @@ public class IcyCompletionProvider extends DefaultCompletionProvider
         }
     }
 
+    /**
+     * Removes the completions of binding functions, and of their classes,
+     * installed with {@link #installMethods(List)}.
+     */
+    public void uninstallMethods(List<Method> methods)
+    {
+        for (Method method : methods)
+        {
+            BindingFunction blockFunction = method.getAnnotation(BindingFunction.class);
+            if (blockFunction == null)
+                continue;
+            List<Completion> list = getCompletionByInputText(blockFunction.value());
+            if (list != null)
+            {
+                for (Completion c : list)
+                    if (c instanceof ScriptFunctionCompletion && ((ScriptFunctionCompletion) c).getMethod() == method)
+                        removeCompletion(c);
+            }
+            list = getCompletionByInputText(method.getDeclaringClass().getName());
+            if (list != null)
+            {
+                for (Completion c : list)
+                    if (c instanceof BasicJavaClassCompletion && ((BasicJavaClassCompletion) c).getJavaClass() == method.getDeclaringClass())
+                        removeCompletion(c);
+            }
+        }
+    }
+
     /**
      * @param localFunctions
      * @param engineTypesMethod
@@ -224,10 +324,63 @@ public class IcyCompletionProvider extends DefaultCompletionProvider
 
     }
 
+    /**
+     * Returns the completions for the text before the caret. With an auto
+     * completion, the completions are computed on a background worker: the
+     * request waits at most {@link #COMPLETION_BUDGET} ms, then returns the
+     * completions already found. The popup is refreshed while the others come,
+     * and the request is cancelled as soon as the user types again.
+     */
     @Override
     public List<Completion> getCompletions(JTextComponent comp)
     {
-        List<Completion> originalList = getCompletionsImpl(comp);
+        String text = getAlreadyEnteredTextWithFunc(comp);
+        int startOffset = getStartOffset(comp);
+        if (autoCompletion == null || !SwingUtilities.isEventDispatchThread())
+        {
+            List<Completion> retVal = new ArrayList<Completion>();
+            getCompletionsImpl(text, startOffset, copyCompletionData(), retVal);
+            return organize(retVal);
+        }
+
+        CompletionRequest request = new CompletionRequest(comp, text, startOffset, copyCompletionData());
+        CompletionTask task = currentTask;
+        if (task != null && task.request.sameAs(request) && !task.delivered)
+            return task.get(0);
+        if (task != null)
+            task.cancel();
+        task = new CompletionTask(request);
+        currentTask = task;
+        task.start();
+        return task.get(COMPLETION_BUDGET);
+    }
+
+    /**
+     * Copies the completions of the provider and the types known by the
+     * engine. Called on the EDT, where they are modified: the completion
+     * worker only reads the copy.
+     */
+    @SuppressWarnings("unchecked")
+    private CompletionData copyCompletionData()
+    {
+        return new CompletionData(new ArrayList<Completion>(completions), ScriptEngineHandler.getLastEngineHandler());
+    }
+
+    /**
+     * @return <code>true</code> if the completion request computed by the
+     *         current thread was cancelled: the search can stop.
+     */
+    protected static boolean isCancelled()
+    {
+        return Thread.currentThread().isInterrupted();
+    }
+
+    /**
+     * Sorts the completions: the ones of the script first, then the variables,
+     * the functions and the others, by relevance.
+     */
+    private List<Completion> organize(List<Completion> originalList)
+    {
         List<Completion> toReturn = new ArrayList<Completion>();
 
         List<Completion> inScriptVariables = new ArrayList<Completion>();
@@ -476,24 +629,36 @@ public class IcyCompletionProvider extends DefaultCompletionProvider
     }
 
     /**
-     * {@inheritDoc}
+     * Adds the completions of the entered text to <code>retVal</code>. Runs on
+     * the completion worker: the text and its offset are read beforehand on
+     * the EDT, <code>retVal</code> may be read while it is filled and the
+     * search stops early when {@link #isCancelled()}.
+     *
+     * @param text
+     *        : the text entered, as given by
+     *        {@link #getAlreadyEnteredTextWithFunc(JTextComponent)}
+     * @param textOffset
+     *        : the offset of the entered text, as given by
+     *        {@link #getStartOffset(JTextComponent)}
+     * @param data
+     *        : the completions of the provider and the types of the engine,
+     *        copied on the EDT.
      */
-    protected List<Completion> getCompletionsImpl(JTextComponent comp)
+    protected void getCompletionsImpl(String text, int textOffset, CompletionData data, List<Completion> retVal)
     {
-
-        // return completions;
-        List<Completion> retVal = new ArrayList<Completion>();
-        String text = getAlreadyEnteredTextWithFunc(comp);
         int lastIdx = text.lastIndexOf('.');
+        int caret = textOffset + text.length();
 
-        ScriptEngineHandler engineHandler = ScriptEngineHandler.getLastEngineHandler();
-        HashMap<String, VariableType> engineVariables = ScriptEngineHandler.getLastEngineHandler().getEngineVariables();
-
-        // Cannot work directly because returns null on the provider.
-        HashMap<Class<?>, ArrayList<ScriptFunctionCompletion>> engineTypesMethod = engineHandler.getEngineTypesMethod();
-        HashMap<Integer, IcyFunctionBlock> localFunctions;
+        HashMap<String, VariableType> engineVariables = data.engineVariables;
+        HashMap<Class<?>, ArrayList<ScriptFunctionCompletion>> engineTypesMethod = data.engineTypesMethod;
+        // the last analysis of the script, not modified by the next ones
+        ScriptAnalysis analysis = null;
+        Map<Integer, IcyFunctionBlock> localFunctions;
         if (handler != null)
-            localFunctions = handler.getBlockFunctions();
+        {
+            analysis = handler.getAnalysis();
+            localFunctions = analysis.getBlockFunctions();
+        }
         else
             localFunctions = new HashMap<Integer, IcyFunctionBlock>();
 
@@ -532,54 +697,48 @@ public class IcyCompletionProvider extends DefaultCompletionProvider
                 // add the classes
                 if (text.length() > 0 && Character.isUpperCase(text.charAt(0)))
                 {
-                    ArrayList<String> classes = ScriptEngineHandler.getAllClasses();
-                    for (String s : classes)
+                    ClassCatalog classes = ScriptEngineHandler.getClassCatalog();
+                    int end = classes.endOf(text);
+                    for (int idx = classes.startOf(text); idx < end && !isCancelled(); ++idx)
                     {
-                        String nameFinal = ClassUtil.getSimpleClassName(s);
-                        int idxD = nameFinal.indexOf('$');
-                        if (idxD != -1)
-                        {
-                            nameFinal = nameFinal.substring(idxD + 1, nameFinal.length());
-                        }
-                        if (nameFinal.toLowerCase().startsWith(text.toLowerCase()))
+                        if (classes.isStatic(idx))
+                            continue;
+                        String nameFinal = classes.getSimpleName(idx);
+                        // the constructors need the class: only the matching ones are loaded
+                        try
                         {
-                            try
+                            Class<?> clazz = classes.loadClass(idx);
+                            for (Constructor<?> c : clazz.getConstructors())
                             {
-                                Class<?> clazz = ClassUtil.findClass(s);
-                                if (Modifier.isStatic(clazz.getModifiers()))
-                                    continue;
-                                for (Constructor<?> c : clazz.getConstructors())
+                                int mod = c.getModifiers();
+                                if (Modifier.isPublic(mod))
                                 {
-                                    int mod = c.getModifiers();
-                                    if (Modifier.isPublic(mod))
+                                    NewInstanceCompletion fc = new NewInstanceCompletion(this, nameFinal, c);
+                                    fc.setRelevance(ScriptingHandler.RELEVANCE_HIGH);
+
+                                    // TODO relevance assignment = type / expression = void
+                                    fc.setDefinedIn(clazz.toString().replace('$', '.'));
+                                    ArrayList<Parameter> params = new ArrayList<Parameter>();
+                                    int i = 0;
+                                    for (Class<?> clazzParam : c.getParameterTypes())
                                     {
-                                        NewInstanceCompletion fc = new NewInstanceCompletion(this, nameFinal, c);
-                                        fc.setRelevance(ScriptingHandler.RELEVANCE_HIGH);
-
-                                        // TODO relevance assignment = type / expression = void
-                                        fc.setDefinedIn(clazz.toString().replace('$', '.'));
-                                        ArrayList<Parameter> params = new ArrayList<Parameter>();
-                                        int i = 0;
-                                        for (Class<?> clazzParam : c.getParameterTypes())
-                                        {
-                                            params.add(new Parameter(getType(clazzParam, true), "arg" + i));
-                                            ++i;
-                                        }
-                                        fc.setParams(params);
-                                        retVal.add(fc);
+                                        params.add(new Parameter(getType(clazzParam, true), "arg" + i));
+                                        ++i;
                                     }
+                                    fc.setParams(params);
+                                    retVal.add(fc);
                                 }
                             }
-                            catch (ClassNotFoundException e)
-                            {
-                            }
+                        }
+                        catch (ClassNotFoundException e)
+                        {
                         }
                     }
                 }
             }
             else if (text.isEmpty() || lastIdx == -1)
             {
-                doClassicCompletion(text, retVal);
+                doClassicCompletion(text, data, retVal);
             }
             else
             {
@@ -589,7 +748,7 @@ public class IcyCompletionProvider extends DefaultCompletionProvider
                 if (text.startsWith("Packages."))
                 {
                     String clazzWanted = text.substring("Packages.".length());
-                    ArrayList<String> classes = ScriptEngineHandler.getAllClasses();
+                    List<String> classes = ScriptEngineHandler.getAllClasses();
                     for (String s : classes)
                     {
                         s = s.replace('$', '.');
@@ -635,7 +794,7 @@ public class IcyCompletionProvider extends DefaultCompletionProvider
                     ArrayList<ScriptFunctionCompletion> methods = null;
 
                     // is the command a classname ?
-                    Class<?> clazz = handler.resolveClassDeclaration(command.replace('.', '$'));
+                    Class<?> clazz = handler.resolveClassDeclaration(command.replace('.', '$'), analysis);
                     if (clazz != null)
                     {
                         // ----------------------------
@@ -650,8 +809,7 @@ public class IcyCompletionProvider extends DefaultCompletionProvider
                             for (ScriptFunctionCompletion complete : methods)
                             {
                                 if (complete.isStatic()
-                                        && (text.isEmpty() || complete.getName().toLowerCase()
-                                                .startsWith(text.toLowerCase())))
+                                        && (text.isEmpty() || CompletionMatcher.matches(text, complete.getName())))
                                     retVal.add(generateSFCCopy(complete, true));
                             }
                         }
@@ -663,7 +821,7 @@ public class IcyCompletionProvider extends DefaultCompletionProvider
 
                     // check in the local variables if it is a variable
                     // if it is : propose depending on the variable type
-                    VariableType type = handler.getVariableDeclaration(command);
+                    VariableType type = handler.getVariableDeclaration(command, caret, analysis);
                     if ((type != null && type.getClazz() != null)
                             || ((type = engineVariables.get(command)) != null && type.getClazz() != null))
                     {
@@ -675,13 +833,13 @@ public class IcyCompletionProvider extends DefaultCompletionProvider
                         {
                             for (ScriptFunctionCompletion complete : methods)
                             {
-                                if (!complete.getName().toLowerCase().startsWith(text.toLowerCase()))
+                                if (!CompletionMatcher.matches(text, complete.getName()))
                                     continue;
                                 if (complete.isStatic())
                                     complete.setRelevance(ScriptingHandler.RELEVANCE_LOW);
                                 else if (!complete.isStatic())
                                     complete.setRelevance(ScriptingHandler.RELEVANCE_HIGH);
-                                if (text.isEmpty() || complete.getName().toLowerCase().startsWith(text.toLowerCase()))
+                                if (text.isEmpty() || CompletionMatcher.matches(text, complete.getName()))
                                     retVal.add(generateSFCCopy(complete));
                             }
                         }
@@ -696,11 +854,10 @@ public class IcyCompletionProvider extends DefaultCompletionProvider
                         // FUNCTION ACCESS
                         // ----------------------------
                         // if not : look the type of the function (if declared).
-                        int startOffset = getStartOffset(comp) - 1;
                         // System.out.println("offset:" + startOffset);
                         // for (Integer i : localFunctions.keySet())
                         // System.out.println(i);
-                        IcyFunctionBlock fb = localFunctions.get(startOffset);
+                        IcyFunctionBlock fb = localFunctions.get(textOffset - 1);
                         if (fb != null)
                         {
                             clazz = fb.getReturnType().getClazz();
@@ -714,7 +871,7 @@ public class IcyCompletionProvider extends DefaultCompletionProvider
                                     else if (!complete.isStatic())
                                         complete.setRelevance(ScriptingHandler.RELEVANCE_HIGH);
                                     if (text.isEmpty()
-                                            || complete.getName().toLowerCase().startsWith(text.toLowerCase()))
+                                            || CompletionMatcher.matches(text, complete.getName()))
                                         retVal.add(generateSFCCopy(complete));
                                 }
                             }
@@ -735,7 +892,6 @@ public class IcyCompletionProvider extends DefaultCompletionProvider
                 }
             }
         }
-        return retVal;
     }
 
     protected void populateWithConstructors(Class<?> clazz, List<Completion> retVal)
@@ -777,6 +933,24 @@ public class IcyCompletionProvider extends DefaultCompletionProvider
         }
     }
 
+    /**
+     * @return the members of the class, built at the first completion on the
+     *         class and kept while it is among the last completed ones.
+     */
+    protected synchronized MemberTable getMemberTable(Class<?> type, boolean staticOnly)
+    {
+        MemberTable[] tables = memberTables.get(type);
+        if (tables == null)
+        {
+            tables = new MemberTable[2];
+            memberTables.put(type, tables);
+        }
+        int idx = staticOnly ? 1 : 0;
+        if (tables[idx] == null)
+            tables[idx] = new MemberTable(this, type, staticOnly);
+        return tables[idx];
+    }
+
     protected void populateClassTypes(VariableType type, String text, List<Completion> retVal)
     {
         populateClassTypes(type, null, text, retVal, false);
@@ -800,121 +974,22 @@ public class IcyCompletionProvider extends DefaultCompletionProvider
         ArrayList<Completion> listMethods = new ArrayList<Completion>();
         ArrayList<Completion> listClasses = new ArrayList<Completion>();
         ArrayList<Completion> listEnums = new ArrayList<Completion>();
-        for (Field f : type.getFields())
+        ArrayList<Completion> matchingClasses = new ArrayList<Completion>();
+        getMemberTable(type, staticOnly).filter(text, type2, listFields, listMethods, matchingClasses);
+        // parsed while the user reads the list, for the summaries
+        DocumentationService.getInstance().prefetch(type);
+        for (Completion jcc : matchingClasses)
         {
-            String name = f.getName();
-            if (!name.toLowerCase().startsWith(text.toLowerCase()))
-                continue;
-            int mod = f.getModifiers();
-            if (Modifier.isPublic(mod))
-            {
-                if (!staticOnly)
-                {
-                    VariableCompletion vc = new VariableCompletion(this, name, getType(f.getType(), true));
-                    if (Modifier.isStatic(mod))
-                        vc.setRelevance(ScriptingHandler.RELEVANCE_LOW);
-                    else
-                        vc.setRelevance(ScriptingHandler.RELEVANCE_HIGH);
-                    listFields.add(vc);
-                }
-                else if (Modifier.isStatic(mod))
-                {
-                    VariableCompletion vc = new VariableCompletion(this, name, getType(f.getType(), true));
-                    vc.setRelevance(ScriptingHandler.RELEVANCE_HIGH);
-                    if (f.getAnnotation(Deprecated.class) != null)
-                    {
-                        vc.setSummary("deprecated");
-                    }
-                    listFields.add(vc);
-                }
-            }
+            if (!exists(jcc, retVal))
+                listClasses.add(jcc);
         }
-        for (Class<?> c : type.getClasses())
+        if (!text.isEmpty())
         {
-            if (Modifier.isPublic(c.getModifiers()) && c.getSimpleName().toLowerCase().startsWith(text.toLowerCase()))
-            {
-                BasicJavaClassCompletion jcc = new BasicJavaClassCompletion(this, c);
-                jcc.setRelevance(ScriptingHandler.RELEVANCE_MIN);
-                if (!exists(jcc, retVal))
-                    listClasses.add(jcc);
-            }
-        }
-        if (type.isArray())
-        {
-            VariableCompletion vc = new VariableCompletion(this, "length", int.class.getName());
-            vc.setRelevance(ScriptingHandler.RELEVANCE_HIGH);
-            listFields.add(vc);
-        }
-        for (Method m : type.getMethods())
-        {
-            if (!m.getName().toLowerCase().startsWith(text.toLowerCase()))
-                continue;
-            int mod = m.getModifiers();
-            // if (!Modifier.isPublic(mod))
-            // continue;
-            if (!staticOnly)
-            {
-                ScriptFunctionCompletion fc;
-                if (Pattern.matches("(\\[*)E", m.getGenericReturnType().toString()))
-                {
-                    fc = new ScriptFunctionCompletion(this, m.getName(), m, type2);
-                }
-                else
-                {
-                    fc = new ScriptFunctionCompletion(this, m.getName(), m);
-                }
-                if (Modifier.isStatic(mod))
-                    fc.setRelevance(ScriptingHandler.RELEVANCE_LOW);
-                else
-                    fc.setRelevance(ScriptingHandler.RELEVANCE_HIGH);
-
-                // TODO relevance assignment = type / expr = void
-                fc.setDefinedIn(type.toString().replace('$', '.'));
-                ArrayList<Parameter> params = new ArrayList<Parameter>();
-                int i = 0;
-                for (Class<?> clazzParam : m.getParameterTypes())
-                {
-                    params.add(new Parameter(getType(clazzParam, true), "arg" + i));
-                    ++i;
-                }
-                fc.setParams(params);
-                if (m.getAnnotation(Deprecated.class) != null)
-                {
-                    fc.setSummary("deprecated");
-                    fc.setShortDescription("Deprecated");
-                }
-                listMethods.add(fc);
-            }
-            else if (Modifier.isStatic(mod))
-            {
-                ScriptFunctionCompletion fc;
-                if (Pattern.matches("(\\[*)E", m.getGenericReturnType().toString()))
-                {
-                    fc = new ScriptFunctionCompletion(this, m.getName(), m, type2);
-                }
-                else
-                {
-                    fc = new ScriptFunctionCompletion(this, m.getName(), m);
-                }
-                fc.setRelevance(ScriptingHandler.RELEVANCE_HIGH);
-
-                // TODO relevance assignment = type / expr = void
-                fc.setDefinedIn(type.toString().replace('$', '.'));
-                ArrayList<Parameter> params = new ArrayList<Parameter>();
-                int i = 0;
-                for (Class<?> clazzParam : m.getParameterTypes())
-                {
-                    params.add(new Parameter(getType(clazzParam, true), "arg" + i));
-                    ++i;
-                }
-                if (m.getAnnotation(Deprecated.class) != null)
-                {
-                    fc.setSummary("deprecated");
-                    fc.setShortDescription("Deprecated");
-                }
-                fc.setParams(params);
-                listMethods.add(fc);
-            }
+            // best matches first
+            Comparator<Completion> byScore = CompletionMatcher.comparator(text);
+            Collections.sort(listFields, byScore);
+            Collections.sort(listMethods, byScore);
+            Collections.sort(listClasses, byScore);
         }
         retVal.addAll(listFields);
         retVal.addAll(listMethods);
@@ -945,47 +1020,29 @@ public class IcyCompletionProvider extends DefaultCompletionProvider
         return generateSFCCopy(complete, false);
     }
 
-    protected void doClassicCompletion(String text, List<Completion> retVal)
+    protected void doClassicCompletion(String text, CompletionData data, List<Completion> retVal)
     {
-        doClassicCompletion(text, retVal, false);
+        doClassicCompletion(text, data, retVal, false);
     }
 
     @SuppressWarnings("unchecked")
-    protected void doClassicCompletion(String text, List<Completion> retVal, boolean importOnly)
+    protected void doClassicCompletion(String text, CompletionData data, List<Completion> retVal, boolean importOnly)
     {
+        List<Completion> completions = data.completions;
         // add the classes
         if (text.length() > 0 && Character.isUpperCase(text.charAt(0)))
         {
-            ArrayList<String> classes = ScriptEngineHandler.getAllClasses();
-            for (String s : classes)
+            // the classes are loaded when selected only
+            ClassCatalog classes = ScriptEngineHandler.getClassCatalog();
+            for (int idx : classes.search(text, MAX_CLASS_COMPLETIONS))
             {
-                try
-                {
-                    Class<?> clazz = ClassUtil.findClass(s);
-                    if (Modifier.isPublic(clazz.getModifiers()))
-                    {
-                        String nameFinal = ClassUtil.getSimpleClassName(s);
-                        int idxDollar = nameFinal.indexOf('$');
-                        if (idxDollar != -1)
-                        {
-                            nameFinal = nameFinal.substring(idxDollar + 1);
-                            // continue;
-                        }
-
-                        String desc = null;
-                        if (nameFinal.toLowerCase().startsWith(text.toLowerCase()))
-                        {
-                            BasicJavaClassCompletion c = new BasicJavaClassCompletion(this, clazz, importOnly);
-                            c.setShortDescription(desc == null ? "" : desc);
-                            c.setRelevance(ScriptingHandler.RELEVANCE_MIN);
-                            c.setDefinedIn(s.replace('$', '.'));
-                            retVal.add(c);
-                        }
-                    }
-                }
-                catch (ClassNotFoundException e)
-                {
-                }
+                if (!classes.isPublic(idx))
+                    continue;
+                BasicJavaClassCompletion c = new BasicJavaClassCompletion(this, classes, idx, importOnly);
+                c.setShortDescription("");
+                c.setRelevance(ScriptingHandler.RELEVANCE_MIN);
+                c.setDefinedIn(classes.getName(idx).replace('$', '.'));
+                retVal.add(c);
             }
         }
 
@@ -1005,14 +1062,14 @@ public class IcyCompletionProvider extends DefaultCompletionProvider
             int pos = index - 1;
             while (pos > 0 && comparator.compare(completions.get(pos), text) == 0)
             {
-                retVal.add((Completion) completions.get(pos));
+                retVal.add(completions.get(pos));
                 pos--;
             }
         }
 
         while (index < completions.size())
         {
-            Completion c = (Completion) completions.get(index);
+            Completion c = completions.get(index);
             if (Util.startsWithIgnoreCase(c.getInputText(), text))
             {
                 if (c instanceof ScriptFunctionCompletion)
@@ -1242,4 +1299,211 @@ public class IcyCompletionProvider extends DefaultCompletionProvider
             ioe.printStackTrace();
         }
     }
+
+    /**
+     * Completions of the provider and types known by the engine, copied when
+     * the completions are requested.
+     */
+    protected static class CompletionData
+    {
+        final List<Completion> completions;
+        final HashMap<String, VariableType> engineVariables;
+        final HashMap<Class<?>, ArrayList<ScriptFunctionCompletion>> engineTypesMethod;
+
+        CompletionData(List<Completion> completions, ScriptEngineHandler engineHandler)
+        {
+            this.completions = completions;
+            engineVariables = new HashMap<String, VariableType>();
+            engineTypesMethod = new HashMap<Class<?>, ArrayList<ScriptFunctionCompletion>>();
+            if (engineHandler == null)
+                return;
+            engineVariables.putAll(engineHandler.getEngineVariables());
+            for (Map.Entry<Class<?>, ArrayList<ScriptFunctionCompletion>> entry : engineHandler.getEngineTypesMethod().entrySet())
+                engineTypesMethod.put(entry.getKey(), new ArrayList<ScriptFunctionCompletion>(entry.getValue()));
+        }
+    }
+
+    /**
+     * State of the text component when completions were requested.
+     */
+    private static class CompletionRequest
+    {
+        final JTextComponent comp;
+        final String text;
+        final int startOffset;
+        final int caret;
+        final int length;
+        final CompletionData data;
+
+        CompletionRequest(JTextComponent comp, String text, int startOffset, CompletionData data)
+        {
+            this.comp = comp;
+            this.text = text;
+            this.startOffset = startOffset;
+            this.caret = comp.getCaretPosition();
+            this.length = comp.getDocument().getLength();
+            this.data = data;
+        }
+
+        boolean sameAs(CompletionRequest other)
+        {
+            return comp == other.comp && caret == other.caret && length == other.length
+                    && startOffset == other.startOffset && text.equals(other.text);
+        }
+
+        /**
+         * @return <code>true</code> if the text component did not change since
+         *         the request.
+         */
+        boolean isCurrent()
+        {
+            return comp.getCaretPosition() == caret && comp.getDocument().getLength() == length;
+        }
+    }
+
+    /**
+     * Completions of a request, computed by the completion worker. The
+     * completions found so far are shown when the budget of the request is
+     * exceeded, and the popup is refreshed on the EDT until all are found.
+     */
+    private class CompletionTask implements Callable<List<Completion>>
+    {
+        final CompletionRequest request;
+        /** Filled by the worker, read on the EDT. */
+        final List<Completion> found = Collections.synchronizedList(new ArrayList<Completion>());
+        Future<List<Completion>> future;
+        Timer refreshTimer;
+        /** Number of completions shown so far, -1 if none was shown. */
+        int shown = -1;
+        /** The complete result was returned. */
+        boolean delivered = false;
+
+        CompletionTask(CompletionRequest request)
+        {
+            this.request = request;
+        }
+
+        void start()
+        {
+            future = completionExecutor.submit(this);
+        }
+
+        @Override
+        public List<Completion> call()
+        {
+            try
+            {
+                getCompletionsImpl(request.text, request.startOffset, request.data, found);
+                List<Completion> all;
+                synchronized (found)
+                {
+                    all = new ArrayList<Completion>(found);
+                }
+                return organize(all);
+            }
+            finally
+            {
+                ThreadUtil.invokeLater(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        finished();
+                    }
+                });
+            }
+        }
+
+        /**
+         * @param budget
+         *        : time to wait for the result, in milliseconds.
+         * @return the result, or the completions found so far.
+         */
+        List<Completion> get(long budget)
+        {
+            try
+            {
+                List<Completion> result = future.get(budget, TimeUnit.MILLISECONDS);
+                delivered = true;
+                stopRefresh();
+                return result;
+            }
+            catch (TimeoutException e)
+            {
+                List<Completion> partial;
+                synchronized (found)
+                {
+                    partial = new ArrayList<Completion>(found);
+                }
+                shown = partial.size();
+                startRefresh();
+                return organize(partial);
+            }
+            catch (InterruptedException e)
+            {
+                return new ArrayList<Completion>();
+            }
+            catch (CancellationException e)
+            {
+                return new ArrayList<Completion>();
+            }
+            catch (ExecutionException e)
+            {
+                e.printStackTrace();
+                delivered = true;
+                return new ArrayList<Completion>();
+            }
+        }
+
+        void cancel()
+        {
+            future.cancel(true);
+            stopRefresh();
+        }
+
+        private void startRefresh()
+        {
+            if (refreshTimer != null)
+                return;
+            refreshTimer = new Timer(PARTIAL_REFRESH_DELAY, new ActionListener()
+            {
+                @Override
+                public void actionPerformed(ActionEvent e)
+                {
+                    if (found.size() != shown)
+                        refresh();
+                }
+            });
+            refreshTimer.start();
+        }
+
+        private void stopRefresh()
+        {
+            if (refreshTimer != null)
+            {
+                refreshTimer.stop();
+                refreshTimer = null;
+            }
+        }
+
+        private void finished()
+        {
+            stopRefresh();
+            if (!delivered)
+                refresh();
+        }
+
+        /**
+         * Shows the new completions, if the user still waits for them.
+         */
+        private void refresh()
+        {
+            if (currentTask != this || autoCompletion == null || !request.isCurrent())
+            {
+                stopRefresh();
+                return;
+            }
+            autoCompletion.completionsReady(shown <= 0);
+        }
+    }
 }
@@ -1,7 +1,5 @@
 package plugins.tprovoost.scripteditor.completion;
 
-import icy.util.ClassUtil;
-
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -13,8 +11,7 @@ import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-
-import javax.swing.text.JTextComponent;
+import java.util.Map;
 
 import org.fife.ui.autocomplete.BasicCompletion;
 import org.fife.ui.autocomplete.Completion;
@@ -24,7 +21,9 @@ import org.fife.ui.rsyntaxtextarea.RSyntaxTextArea;
 
 import plugins.tprovoost.scripteditor.completion.types.NewInstanceCompletion;
 import plugins.tprovoost.scripteditor.completion.types.ScriptFunctionCompletion;
+import plugins.tprovoost.scripteditor.scriptinghandlers.ClassCatalog;
 import plugins.tprovoost.scripteditor.scriptinghandlers.IcyFunctionBlock;
+import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptAnalysis;
 import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptEngineHandler;
 import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptingHandler;
 import plugins.tprovoost.scripteditor.scriptinghandlers.VariableType;
@@ -34,22 +33,21 @@ public class IcyCompletionProviderPython extends IcyCompletionProvider
 {
 
 	@Override
-	protected List<Completion> getCompletionsImpl(JTextComponent comp)
+	protected void getCompletionsImpl(String text, int textOffset, CompletionData data, List<Completion> retVal)
 	{
-		// return completions;
-		List<Completion> retVal = new ArrayList<Completion>();
-		String text = getAlreadyEnteredTextWithFunc(comp);
 		int lastIdx = text.lastIndexOf('.');
+		int caret = textOffset + text.length();
 
-		ScriptEngineHandler engineHandler = ScriptEngineHandler.getLastEngineHandler();
-		HashMap<String, VariableType> engineVariables = ScriptEngineHandler.getLastEngineHandler().getEngineVariables();
-
-		// Cannot work directly because returns null on the provider.
-		HashMap<Class<?>, ArrayList<ScriptFunctionCompletion>> engineTypesMethod = engineHandler.getEngineTypesMethod();
-		HashMap<Integer, IcyFunctionBlock> localFunctions;
+		HashMap<String, VariableType> engineVariables = data.engineVariables;
+		HashMap<Class<?>, ArrayList<ScriptFunctionCompletion>> engineTypesMethod = data.engineTypesMethod;
+		// the last analysis of the script, not modified by the next ones
+		ScriptAnalysis analysis = null;
+		Map<Integer, IcyFunctionBlock> localFunctions;
 		if (handler != null)
-			localFunctions = handler.getBlockFunctions();
-		else
+		{
+			analysis = handler.getAnalysis();
+			localFunctions = analysis.getBlockFunctions();
+		} else
 			localFunctions = new HashMap<Integer, IcyFunctionBlock>();
 
 		if (text != null)
@@ -87,53 +85,47 @@ public class IcyCompletionProviderPython extends IcyCompletionProvider
 				// add the classes
 				if (text.length() > 0 && Character.isUpperCase(text.charAt(0)))
 				{
-					ArrayList<String> classes = ScriptEngineHandler.getAllClasses();
-					for (String s : classes)
+					ClassCatalog classes = ScriptEngineHandler.getClassCatalog();
+					int end = classes.endOf(text);
+					for (int idx = classes.startOf(text); idx < end && !isCancelled(); ++idx)
 					{
-						String nameFinal = ClassUtil.getSimpleClassName(s);
-						int idxD = nameFinal.indexOf('$');
-						if (idxD != -1)
-						{
-							nameFinal = nameFinal.substring(idxD + 1, nameFinal.length());
-						}
-						if (nameFinal.toLowerCase().startsWith(text.toLowerCase()))
+						if (classes.isStatic(idx))
+							continue;
+						String nameFinal = classes.getSimpleName(idx);
+						// the constructors need the class: only the matching ones are loaded
+						try
 						{
-							try
+							Class<?> clazz = classes.loadClass(idx);
+							for (Constructor<?> c : clazz.getConstructors())
 							{
-								Class<?> clazz = ClassUtil.findClass(s);
-								if (Modifier.isStatic(clazz.getModifiers()))
-									continue;
-								for (Constructor<?> c : clazz.getConstructors())
+								int mod = c.getModifiers();
+								if (Modifier.isPublic(mod))
 								{
-									int mod = c.getModifiers();
-									if (Modifier.isPublic(mod))
-									{
-										NewInstanceCompletion fc = new NewInstanceCompletion(this, nameFinal, c);
-										fc.setRelevance(ScriptingHandler.RELEVANCE_HIGH);
+									NewInstanceCompletion fc = new NewInstanceCompletion(this, nameFinal, c);
+									fc.setRelevance(ScriptingHandler.RELEVANCE_HIGH);
 
-										// TODO relevance assignment = type /
-										// expression = void
-										fc.setDefinedIn(clazz.toString().replace('$', '.'));
-										ArrayList<Parameter> params = new ArrayList<Parameter>();
-										int i = 0;
-										for (Class<?> clazzParam : c.getParameterTypes())
-										{
-											params.add(new Parameter(getType(clazzParam, true), "arg" + i));
-											++i;
-										}
-										fc.setParams(params);
-										retVal.add(fc);
+									// TODO relevance assignment = type /
+									// expression = void
+									fc.setDefinedIn(clazz.toString().replace('$', '.'));
+									ArrayList<Parameter> params = new ArrayList<Parameter>();
+									int i = 0;
+									for (Class<?> clazzParam : c.getParameterTypes())
+									{
+										params.add(new Parameter(getType(clazzParam, true), "arg" + i));
+										++i;
 									}
+									fc.setParams(params);
+									retVal.add(fc);
 								}
-							} catch (ClassNotFoundException e)
-							{
 							}
+						} catch (ClassNotFoundException e)
+						{
 						}
 					}
 				}
 			} else if (text.isEmpty() || lastIdx == -1)
 			{
-				doClassicCompletion(text, retVal);
+				doClassicCompletion(text, data, retVal);
 			} else
 			{
 				// -----------------
@@ -142,7 +134,7 @@ public class IcyCompletionProviderPython extends IcyCompletionProvider
 				if (text.startsWith("Packages."))
 				{
 					String clazzWanted = text.substring("Packages.".length());
-					ArrayList<String> classes = ScriptEngineHandler.getAllClasses();
+					List<String> classes = ScriptEngineHandler.getAllClasses();
 					for (String s : classes)
 					{
 						s = s.replace('$', '.');
@@ -186,7 +178,7 @@ public class IcyCompletionProviderPython extends IcyCompletionProvider
 					ArrayList<ScriptFunctionCompletion> methods = null;
 
 					// is the command a classname ?
-					Class<?> clazz = handler.resolveClassDeclaration(command.replace('.', '$'));
+					Class<?> clazz = handler.resolveClassDeclaration(command.replace('.', '$'), analysis);
 					if (clazz != null)
 					{
 						// ----------------------------
@@ -199,7 +191,7 @@ public class IcyCompletionProviderPython extends IcyCompletionProvider
 						{
 							for (ScriptFunctionCompletion complete : methods)
 							{
-								if (complete.isStatic() && (text.isEmpty() || complete.getName().toLowerCase().startsWith(text.toLowerCase())))
+								if (complete.isStatic() && (text.isEmpty() || CompletionMatcher.matches(text, complete.getName())))
 									retVal.add(generateSFCCopy(complete, true));
 							}
 						} else
@@ -210,7 +202,7 @@ public class IcyCompletionProviderPython extends IcyCompletionProvider
 
 					// check in the local variables if it is a variable
 					// if it is : propose depending on the variable type
-					VariableType type = handler.getVariableDeclaration(command);
+					VariableType type = handler.getVariableDeclaration(command, caret, analysis);
 					if ((type != null && type.getClazz() != null) || ((type = engineVariables.get(command)) != null && type.getClazz() != null))
 					{
 						// ----------------------------
@@ -221,13 +213,13 @@ public class IcyCompletionProviderPython extends IcyCompletionProvider
 						{
 							for (ScriptFunctionCompletion complete : methods)
 							{
-								if (!complete.getName().toLowerCase().startsWith(text.toLowerCase()))
+								if (!CompletionMatcher.matches(text, complete.getName()))
 									continue;
 								if (complete.isStatic())
 									complete.setRelevance(ScriptingHandler.RELEVANCE_LOW);
 								else if (!complete.isStatic())
 									complete.setRelevance(ScriptingHandler.RELEVANCE_HIGH);
-								if (text.isEmpty() || complete.getName().toLowerCase().startsWith(text.toLowerCase()))
+								if (text.isEmpty() || CompletionMatcher.matches(text, complete.getName()))
 									retVal.add(generateSFCCopy(complete));
 							}
 						} else
@@ -276,11 +268,10 @@ public class IcyCompletionProviderPython extends IcyCompletionProvider
 						// FUNCTION ACCESS
 						// ----------------------------
 						// if not : look the type of the function (if declared).
-						int startOffset = getStartOffset(comp) - 1;
 						// System.out.println("offset:" + startOffset);
 						// for (Integer i : localFunctions.keySet())
 						// System.out.println(i);
-						IcyFunctionBlock fb = localFunctions.get(startOffset);
+						IcyFunctionBlock fb = localFunctions.get(textOffset - 1);
 						if (fb != null)
 						{
 							clazz = fb.getReturnType().getClazz();
@@ -293,7 +284,7 @@ public class IcyCompletionProviderPython extends IcyCompletionProvider
 										complete.setRelevance(ScriptingHandler.RELEVANCE_LOW);
 									else if (!complete.isStatic())
 										complete.setRelevance(ScriptingHandler.RELEVANCE_HIGH);
-									if (text.isEmpty() || complete.getName().toLowerCase().startsWith(text.toLowerCase()))
+									if (text.isEmpty() || CompletionMatcher.matches(text, complete.getName()))
 										retVal.add(generateSFCCopy(complete));
 								}
 							} else
@@ -312,6 +303,5 @@ public class IcyCompletionProviderPython extends IcyCompletionProvider
 				}
 			}
 		}
-		return retVal;
 	}
 }
@@ -11,6 +11,7 @@ import org.fife.ui.autocomplete.CompletionProvider;
 import plugins.tprovoost.scripteditor.completion.types.BasicJavaClassCompletion;
 import plugins.tprovoost.scripteditor.completion.types.NewInstanceCompletion;
 import plugins.tprovoost.scripteditor.completion.types.ScriptFunctionCompletion;
+import plugins.tprovoost.scripteditor.scriptinghandlers.ClassCatalog;
 
 public class JSAutoCompletion extends IcyAutoCompletion
 {
@@ -56,10 +57,9 @@ public class JSAutoCompletion extends IcyAutoCompletion
 
             // get the caret position
             int caretPos = tc.getCaretPosition();
-            Class<?> clazz = ((BasicJavaClassCompletion) c).getJavaClass();
-            String neededClass = clazz.getName();
+            String neededClass = ((BasicJavaClassCompletion) c).getClassName();
 
-            if (clazz.isMemberClass())
+            if (neededClass.indexOf('$') != -1)
             {
                 neededClass = ClassUtil.getBaseClassName(neededClass);
             }
@@ -122,7 +122,7 @@ public class JSAutoCompletion extends IcyAutoCompletion
         }
         else if (c instanceof BasicJavaClassCompletion)
         {
-            Class<?> clazz = ((BasicJavaClassCompletion) c).getJavaClass();
+            String className = ((BasicJavaClassCompletion) c).getClassName();
 
             String textBefore = "";
             CompletionProvider provider = getCompletionProvider();
@@ -137,12 +137,12 @@ public class JSAutoCompletion extends IcyAutoCompletion
             }
             if (textBefore == "")
             {
-                toReturn = clazz.getName();
+                toReturn = className;
                 toReturn = ClassUtil.getSimpleClassName(toReturn).replace('$', '.');
             }
             else
             {
-                toReturn = clazz.getSimpleName();
+                toReturn = ClassCatalog.getSimpleName(className);
             }
         }
         return toReturn;
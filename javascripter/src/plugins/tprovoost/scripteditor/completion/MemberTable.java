@@ -0,0 +1,209 @@
+package plugins.tprovoost.scripteditor.completion;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.fife.ui.autocomplete.Completion;
+import org.fife.ui.autocomplete.CompletionProvider;
+import org.fife.ui.autocomplete.ParameterizedCompletion.Parameter;
+import org.fife.ui.autocomplete.VariableCompletion;
+
+import plugins.tprovoost.scripteditor.completion.types.BasicJavaClassCompletion;
+import plugins.tprovoost.scripteditor.completion.types.ScriptFunctionCompletion;
+import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptingHandler;
+import plugins.tprovoost.scripteditor.scriptinghandlers.VariableType;
+
+/**
+ * Members of a class proposed by the completion: public fields, member classes
+ * and methods, sorted by name. The table is built once by reflection and its
+ * completions are shared by the following requests, which only filter them.
+ * The methods returning the type parameter of the variable (e.g.
+ * <code>E get(int)</code>) are copied with the type of the variable.
+ */
+public class MemberTable
+{
+    private static final Pattern GENERIC_RETURN = Pattern.compile("(\\[*)E");
+
+    private final CompletionProvider provider;
+    private final Completion[] fields;
+    private final Completion[] classes;
+    private final ScriptFunctionCompletion[] methods;
+    /** Methods returning a type parameter. */
+    private final boolean[] generic;
+    private final boolean[] deprecated;
+
+    /**
+     * @param staticOnly
+     *            : only the static members, for an access through the class
+     *            name.
+     */
+    public MemberTable(CompletionProvider provider, Class<?> type, boolean staticOnly)
+    {
+        this.provider = provider;
+
+        Field[] typeFields = type.getFields();
+        Arrays.sort(typeFields, new Comparator<Field>()
+        {
+            @Override
+            public int compare(Field f1, Field f2)
+            {
+                return f1.getName().compareToIgnoreCase(f2.getName());
+            }
+        });
+        ArrayList<Completion> listFields = new ArrayList<Completion>();
+        for (Field f : typeFields)
+        {
+            int mod = f.getModifiers();
+            if (!Modifier.isPublic(mod))
+                continue;
+            if (!staticOnly)
+            {
+                VariableCompletion vc = new VariableCompletion(provider, f.getName(), IcyCompletionProvider.getType(f.getType(), true));
+                if (Modifier.isStatic(mod))
+                    vc.setRelevance(ScriptingHandler.RELEVANCE_LOW);
+                else
+                    vc.setRelevance(ScriptingHandler.RELEVANCE_HIGH);
+                listFields.add(vc);
+            }
+            else if (Modifier.isStatic(mod))
+            {
+                VariableCompletion vc = new VariableCompletion(provider, f.getName(), IcyCompletionProvider.getType(f.getType(), true));
+                vc.setRelevance(ScriptingHandler.RELEVANCE_HIGH);
+                if (f.getAnnotation(Deprecated.class) != null)
+                {
+                    vc.setSummary("deprecated");
+                }
+                listFields.add(vc);
+            }
+        }
+        if (type.isArray())
+        {
+            VariableCompletion vc = new VariableCompletion(provider, "length", int.class.getName());
+            vc.setRelevance(ScriptingHandler.RELEVANCE_HIGH);
+            listFields.add(vc);
+        }
+        fields = listFields.toArray(new Completion[listFields.size()]);
+
+        Class<?>[] typeClasses = type.getClasses();
+        Arrays.sort(typeClasses, new Comparator<Class<?>>()
+        {
+            @Override
+            public int compare(Class<?> c1, Class<?> c2)
+            {
+                return c1.getSimpleName().compareToIgnoreCase(c2.getSimpleName());
+            }
+        });
+        ArrayList<Completion> listClasses = new ArrayList<Completion>();
+        for (Class<?> c : typeClasses)
+        {
+            if (Modifier.isPublic(c.getModifiers()))
+            {
+                BasicJavaClassCompletion jcc = new BasicJavaClassCompletion(provider, c);
+                jcc.setRelevance(ScriptingHandler.RELEVANCE_MIN);
+                listClasses.add(jcc);
+            }
+        }
+        classes = listClasses.toArray(new Completion[listClasses.size()]);
+
+        Method[] typeMethods = type.getMethods();
+        Arrays.sort(typeMethods, new Comparator<Method>()
+        {
+            @Override
+            public int compare(Method m1, Method m2)
+            {
+                return m1.getName().compareToIgnoreCase(m2.getName());
+            }
+        });
+        ArrayList<ScriptFunctionCompletion> listMethods = new ArrayList<ScriptFunctionCompletion>();
+        ArrayList<Method> kept = new ArrayList<Method>();
+        for (Method m : typeMethods)
+        {
+            int mod = m.getModifiers();
+            if (staticOnly && !Modifier.isStatic(mod))
+                continue;
+            ScriptFunctionCompletion fc = new ScriptFunctionCompletion(provider, m.getName(), m);
+            if (!staticOnly && Modifier.isStatic(mod))
+                fc.setRelevance(ScriptingHandler.RELEVANCE_LOW);
+            else
+                fc.setRelevance(ScriptingHandler.RELEVANCE_HIGH);
+
+            // TODO relevance assignment = type / expr = void
+            fc.setDefinedIn(type.toString().replace('$', '.'));
+            ArrayList<Parameter> params = new ArrayList<Parameter>();
+            int i = 0;
+            for (Class<?> clazzParam : m.getParameterTypes())
+            {
+                params.add(new Parameter(IcyCompletionProvider.getType(clazzParam, true), "arg" + i));
+                ++i;
+            }
+            fc.setParams(params);
+            if (m.getAnnotation(Deprecated.class) != null)
+            {
+                fc.setSummary("deprecated");
+                fc.setShortDescription("Deprecated");
+            }
+            listMethods.add(fc);
+            kept.add(m);
+        }
+        methods = listMethods.toArray(new ScriptFunctionCompletion[listMethods.size()]);
+        generic = new boolean[methods.length];
+        deprecated = new boolean[methods.length];
+        for (int i = 0; i < methods.length; ++i)
+        {
+            Method m = kept.get(i);
+            generic[i] = GENERIC_RETURN.matcher(m.getGenericReturnType().toString()).matches();
+            deprecated[i] = m.getAnnotation(Deprecated.class) != null;
+        }
+    }
+
+    /**
+     * Adds the members whose name matches <code>text</code>.
+     *
+     * @param variableType
+     *            : type of the variable, gives the return type of the generic
+     *            methods.
+     */
+    public void filter(String text, VariableType variableType, List<Completion> listFields, List<Completion> listMethods,
+            List<Completion> listClasses)
+    {
+        for (Completion c : fields)
+            if (CompletionMatcher.matches(text, c.getInputText()))
+                listFields.add(c);
+        for (int i = 0; i < methods.length; ++i)
+        {
+            ScriptFunctionCompletion fc = methods[i];
+            if (!CompletionMatcher.matches(text, fc.getName()))
+                continue;
+            if (generic[i])
+                listMethods.add(copy(fc, variableType, deprecated[i]));
+            else
+                listMethods.add(fc);
+        }
+        for (Completion c : classes)
+            if (CompletionMatcher.matches(text, c.getInputText()))
+                listClasses.add(c);
+    }
+
+    private ScriptFunctionCompletion copy(ScriptFunctionCompletion fc, VariableType variableType, boolean isDeprecated)
+    {
+        ScriptFunctionCompletion copy = new ScriptFunctionCompletion(provider, fc.getName(), fc.getMethod(), variableType);
+        copy.setRelevance(fc.getRelevance());
+        copy.setDefinedIn(fc.getDefinedIn());
+        ArrayList<Parameter> params = new ArrayList<Parameter>();
+        for (int i = 0; i < fc.getParamCount(); ++i)
+            params.add(fc.getParam(i));
+        copy.setParams(params);
+        if (isDeprecated)
+        {
+            copy.setSummary("deprecated");
+            copy.setShortDescription("Deprecated");
+        }
+        return copy;
+    }
+}
@@ -1,11 +1,8 @@
 package plugins.tprovoost.scripteditor.completion.types;
 
-import japa.parser.ast.body.ClassOrInterfaceDeclaration;
-import japa.parser.ast.body.JavadocComment;
+import icy.util.ClassUtil;
 
-import java.io.InputStream;
 import java.lang.reflect.Modifier;
-import java.util.HashMap;
 
 import javax.swing.text.BadLocationException;
 import javax.swing.text.Document;
@@ -17,13 +14,16 @@ import org.fife.ui.autocomplete.Completion;
 import org.fife.ui.autocomplete.CompletionProvider;
 import org.fife.ui.autocomplete.VariableCompletion;
 
-import plugins.tprovoost.scripteditor.javasource.ClassSource;
+import plugins.tprovoost.scripteditor.javasource.ClassDoc;
+import plugins.tprovoost.scripteditor.javasource.DocumentationService;
 import plugins.tprovoost.scripteditor.javasource.JarAccess;
+import plugins.tprovoost.scripteditor.scriptinghandlers.ClassCatalog;
 
 public class BasicJavaClassCompletion extends VariableCompletion implements Completion
 {
-    private static HashMap<Class<?>, String> cache = new HashMap<Class<?>, String>();
     private Class<?> clazz;
+    private final String className;
+    private final int modifiers;
     private boolean importOnly;
     private boolean parsingDone = false;
 
@@ -36,14 +36,56 @@ public class BasicJavaClassCompletion extends VariableCompletion implements Comp
     {
         super(provider, clazz.getSimpleName(), clazz.getSimpleName());
         this.clazz = clazz;
+        this.className = clazz.getName();
+        this.modifiers = clazz.getModifiers();
         this.importOnly = importOnly;
     }
 
+    /**
+     * Completion of a class of the catalog. The class is only loaded when
+     * the completion is selected or its summary displayed.
+     */
+    public BasicJavaClassCompletion(CompletionProvider provider, ClassCatalog catalog, int index, boolean importOnly)
+    {
+        super(provider, catalog.getSimpleName(index), catalog.getSimpleName(index));
+        this.className = catalog.getName(index);
+        this.modifiers = catalog.getModifiers(index);
+        this.importOnly = importOnly;
+    }
+
+    /**
+     * @return the class, loaded at the first call. <code>null</code> if it
+     *         cannot be loaded.
+     */
     public Class<?> getJavaClass()
     {
+        if (clazz == null)
+        {
+            try
+            {
+                clazz = ClassUtil.findClass(className);
+            }
+            catch (ClassNotFoundException e)
+            {
+            }
+            catch (Error e)
+            {
+                // missing dependency
+            }
+        }
         return clazz;
     }
 
+    public String getClassName()
+    {
+        return className;
+    }
+
+    public boolean isClassLoaded()
+    {
+        return clazz != null;
+    }
+
     public boolean isParsingDone()
     {
         return parsingDone;
@@ -51,42 +93,28 @@ public class BasicJavaClassCompletion extends VariableCompletion implements Comp
 
     public boolean isAbstract()
     {
-        return Modifier.isAbstract(clazz.getModifiers());
+        return Modifier.isAbstract(modifiers);
+    }
+
+    public boolean isInterface()
+    {
+        return Modifier.isInterface(modifiers);
     }
 
     @Override
     public String getSummary()
     {
-        String summaryCache = cache.get(clazz);
+        Class<?> clazz = getJavaClass();
         // return super.getSummary();
-        if (!parsingDone)
+        if (!parsingDone && clazz != null)
         {
-            if (summaryCache == null)
+            // the source still being parsed, the summary is set at the next display
+            ClassDoc cd = DocumentationService.getInstance().getClassDoc(clazz, DocumentationService.UI_TIMEOUT);
+            if (cd != null)
             {
-                final ClassSource cs = ClassSource.getClassSource(clazz);
-                if (!cs.isClassOrInterfacesSet())
-                {
-                    cs.populateClassesOrInterfaces();
-                }
-                ClassOrInterfaceDeclaration coi = cs.getClassOrInterfaces().get(clazz.getName());
-                if (coi != null && coi.getJavaDoc() != null)
-                {
-                    JavadocComment comment = coi.getJavaDoc();
-                    if (comment != null)
-                    {
-                        String content = comment.getContent();
-                        content = ClassSource.docCommentToHtml("/**" + content + "*/");
-                        summaryCache = content;
-                    }
-                }
-                else
-                {
-                    summaryCache = "";
-                }
-                cache.put(clazz, summaryCache);
+                parsingDone = true;
+                super.setSummary(cd.getSummary() != null ? cd.getSummary() : "");
             }
-            parsingDone = true;
-            super.setSummary(summaryCache);
         }
         StringBuffer sb = new StringBuffer();
         addDefinitionString(sb);
@@ -99,8 +127,10 @@ public class BasicJavaClassCompletion extends VariableCompletion implements Comp
 
     private void possiblyAddSource(StringBuffer sb)
     {
-        InputStream is = JarAccess.getJavaSourceInputStream(clazz);
-        if (is != null)
+        Class<?> clazz = getJavaClass();
+        if (clazz == null)
+            return;
+        if (JarAccess.hasSource(clazz))
             sb.append("<hr><a href=\"SourceCodeLink\">View Source</a>"); // TODO: Localize me
     }
 
@@ -1,9 +1,5 @@
 package plugins.tprovoost.scripteditor.completion.types;
 
-import japa.parser.ast.body.ConstructorDeclaration;
-import japa.parser.ast.body.JavadocComment;
-
-import java.io.InputStream;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
@@ -11,8 +7,6 @@ import java.lang.annotation.Target;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
 
 import javax.swing.text.BadLocationException;
 import javax.swing.text.Document;
@@ -22,15 +16,16 @@ import javax.swing.text.Segment;
 
 import org.fife.ui.autocomplete.CompletionProvider;
 
-import plugins.tprovoost.scripteditor.javasource.ClassSource;
+import plugins.tprovoost.scripteditor.javasource.ClassDoc;
+import plugins.tprovoost.scripteditor.javasource.ClassDoc.MemberDoc;
+import plugins.tprovoost.scripteditor.javasource.DocumentationService;
 import plugins.tprovoost.scripteditor.javasource.JarAccess;
 
 public class NewInstanceCompletion extends JavaFunctionCompletion
 {
-    private static HashMap<String, ConstructorDeclaration> cacheConsDecl = new HashMap<String, ConstructorDeclaration>();
-    private static HashMap<String, List<Parameter>> cacheParams = new HashMap<String, List<Parameter>>();
-
     private Constructor<?> constructor;
+    /** Documentation from the source, set by {@link #populate()}. */
+    private MemberDoc doc;
     private boolean isStatic;
     private boolean isParseDone = false;
 
@@ -54,18 +49,15 @@ public class NewInstanceCompletion extends JavaFunctionCompletion
      */
     public String getMethodCall()
     {
-        ConstructorDeclaration constDecl = cacheConsDecl.get(constructor);
         String parametersAsString = "";
-        if (constDecl != null)
+        if (doc != null)
         {
-            List<japa.parser.ast.body.Parameter> params = constDecl.getParameters();
-            for (int i = 0; i < params.size(); ++i)
+            for (int i = 0; i < doc.getParamCount(); ++i)
             {
-                japa.parser.ast.body.Parameter p = params.get(i);
                 if (i != 0)
-                    parametersAsString += " ," + p.getType() + " " + p.getId().getName();
+                    parametersAsString += " ," + doc.getParamType(i) + " " + doc.getParamName(i);
                 else
-                    parametersAsString += p.getType() + " " + p.getId().getName();
+                    parametersAsString += doc.getParamType(i) + " " + doc.getParamName(i);
             }
         }
         else
@@ -161,11 +153,6 @@ public class NewInstanceCompletion extends JavaFunctionCompletion
     @Override
     public Parameter getParam(int index)
     {
-        List<Parameter> params = cacheParams.get(constructor.toGenericString());
-        if (params != null)
-        {
-            return params.get(index);
-        }
         if (!isParseDone)
         {
             populate();
@@ -176,11 +163,9 @@ public class NewInstanceCompletion extends JavaFunctionCompletion
     @Override
     public String getSummary()
     {
-        summary = cacheSummary.get(constructor.toGenericString());
         if (!isParseDone)
         {
-            if (summary == null)
-                populate();
+            populate();
         }
         StringBuffer sb = new StringBuffer();
         addDefinitionString(sb);
@@ -195,72 +180,37 @@ public class NewInstanceCompletion extends JavaFunctionCompletion
         return sb.toString();
     }
 
+    /**
+     * Reads the documentation of the constructor in its source. Does nothing
+     * if the source is still being parsed: it is done at the next call.
+     */
     private void populate()
     {
-        ConstructorDeclaration dc = cacheConsDecl.get(constructor.toGenericString());
-        if (dc == null)
+        ClassDoc cd = DocumentationService.getInstance().getClassDoc(constructor.getDeclaringClass(),
+                DocumentationService.UI_TIMEOUT);
+        if (cd == null)
+            return;
+        MemberDoc md = cd.getMember(ClassDoc.key(constructor));
+        doc = md;
+        if (md != null)
         {
-            Class<?> currentClass = constructor.getDeclaringClass();
-            while (dc == null && currentClass != null)
-            {
-                try
-                {
-                    Constructor<?> c = currentClass.getDeclaredConstructor(constructor.getParameterTypes());
-                    final ClassSource cs = ClassSource.getClassSource(currentClass);
-                    if (!cs.isConstructorsSet())
-                    {
-                        cs.populateConstructors();
-                    }
-                    dc = cs.getConstructors().get(c.toGenericString());
-                }
-                catch (SecurityException e)
-                {
-                }
-                catch (NoSuchMethodException e)
-                {
-                }
-                currentClass = currentClass.getSuperclass();
-            }
-        }
-        if (dc != null)
-        {
-            JavadocComment comment = dc.getJavaDoc();
-            if (comment != null)
-            {
-                String content = comment.getContent();
-                content = ClassSource.docCommentToHtml("/**" + content + "*/");
-                summary = content;
-            }
-            HashMap<String, String> paramsHash = ClassSource.getParameters(summary);
-
-            if (paramsHash.size() > 0 && summary != null)
-            {
-                int idx = summary.indexOf(ClassSource.PARAM_PATTERN);
-                int idxEnd = summary.indexOf("</p>", idx);
-                summary = summary.substring(0, idx) + summary.substring(idxEnd + "</p>".length());
-            }
+            summary = md.getSummary();
 
             // putting back the right parameters.
-            ArrayList<Parameter> params = new ArrayList<Parameter>();
-            List<japa.parser.ast.body.Parameter> list = dc.getParameters();
             int size = getParamCount();
-            if (list != null && list.size() == size)
+            if (md.getParamCount() == size)
             {
-                for (int i = 0; i < getParamCount(); ++i)
+                ArrayList<Parameter> params = new ArrayList<Parameter>();
+                for (int i = 0; i < size; ++i)
                 {
-                    japa.parser.ast.body.Parameter sourceParam = list.get(i);
-                    String name = sourceParam.getId().getName();
-                    Parameter param = new Parameter(sourceParam.getType(), name);
-
-                    params.add(param);
-                    String desc = paramsHash.get(name);
+                    Parameter param = new Parameter(md.getParamType(i), md.getParamName(i));
+                    String desc = md.getParamDescription(i);
                     if (desc != null)
                         param.setDescription(desc);
+                    params.add(param);
                 }
                 super.setParams(params);
-                cacheParams.put(constructor.toGenericString(), params);
             }
-            cacheSummary.put(constructor.toGenericString(), summary);
         }
         else
         {
@@ -268,11 +218,10 @@ public class NewInstanceCompletion extends JavaFunctionCompletion
         }
         isParseDone = true;
     }
-    
+
     private void possiblyAddSource(StringBuffer sb)
     {
-        InputStream is = JarAccess.getJavaSourceInputStream(constructor.getDeclaringClass());
-        if (is != null)
+        if (JarAccess.hasSource(constructor.getDeclaringClass()))
             sb.append("<hr><a href=\"SourceCodeLink\">View Source</a>");
     }
     
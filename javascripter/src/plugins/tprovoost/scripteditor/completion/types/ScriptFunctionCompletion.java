@@ -1,9 +1,5 @@
 package plugins.tprovoost.scripteditor.completion.types;
 
-import japa.parser.ast.body.JavadocComment;
-import japa.parser.ast.body.MethodDeclaration;
-
-import java.io.InputStream;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
@@ -11,8 +7,6 @@ import java.lang.annotation.Target;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
 
 import javax.swing.text.BadLocationException;
 import javax.swing.text.Document;
@@ -22,16 +16,17 @@ import javax.swing.text.Segment;
 
 import org.fife.ui.autocomplete.CompletionProvider;
 
-import plugins.tprovoost.scripteditor.javasource.ClassSource;
+import plugins.tprovoost.scripteditor.javasource.ClassDoc;
+import plugins.tprovoost.scripteditor.javasource.ClassDoc.MemberDoc;
+import plugins.tprovoost.scripteditor.javasource.DocumentationService;
 import plugins.tprovoost.scripteditor.javasource.JarAccess;
 import plugins.tprovoost.scripteditor.scriptinghandlers.VariableType;
 
 public class ScriptFunctionCompletion extends JavaFunctionCompletion
 {
-    private static HashMap<String, MethodDeclaration> cacheMetDecl = new HashMap<String, MethodDeclaration>();
-    private static HashMap<String, List<Parameter>> cacheParams = new HashMap<String, List<Parameter>>();
-
     private Method method;
+    /** Documentation from the source, set by {@link #populate()}. */
+    private MemberDoc doc;
     private boolean isStatic;
 
     @Retention(RetentionPolicy.RUNTIME)
@@ -62,17 +57,14 @@ public class ScriptFunctionCompletion extends JavaFunctionCompletion
     public String getMethodCall()
     {
         String parametersAsString = "";
-        MethodDeclaration methodDecl = cacheMetDecl.get(method);
-        if (methodDecl != null)
+        if (doc != null)
         {
-            List<japa.parser.ast.body.Parameter> params = methodDecl.getParameters();
-            for (int i = 0; i < params.size(); ++i)
+            for (int i = 0; i < doc.getParamCount(); ++i)
             {
-                japa.parser.ast.body.Parameter p = params.get(i);
                 if (i != 0)
-                    parametersAsString += " ," + p.getType() + " " + p.getId().getName();
+                    parametersAsString += " ," + doc.getParamType(i) + " " + doc.getParamName(i);
                 else
-                    parametersAsString += p.getType() + " " + p.getId().getName();
+                    parametersAsString += doc.getParamType(i) + " " + doc.getParamName(i);
             }
         }
         else
@@ -168,11 +160,6 @@ public class ScriptFunctionCompletion extends JavaFunctionCompletion
     @Override
     public Parameter getParam(int index)
     {
-        List<Parameter> params = cacheParams.get(method.toGenericString());
-        if (params != null)
-        {
-            return params.get(index);
-        }
         if (!isParseDone)
         {
             populate();
@@ -183,11 +170,9 @@ public class ScriptFunctionCompletion extends JavaFunctionCompletion
     @Override
     public String getSummary()
     {
-        summary = cacheSummary.get(method.toGenericString());
         if (!isParseDone)
         {
-            if (summary == null)
-                populate();
+            populate();
         }
         StringBuffer sb = new StringBuffer();
         addDefinitionString(sb);
@@ -237,78 +222,58 @@ public class ScriptFunctionCompletion extends JavaFunctionCompletion
 
     private void possiblyAddSource(StringBuffer sb)
     {
-        InputStream is = JarAccess.getJavaSourceInputStream(method.getDeclaringClass());
-        if (is != null)
+        if (JarAccess.hasSource(method.getDeclaringClass()))
             sb.append("<hr><a href=\"SourceCodeLink\">View Source</a>");
     }
 
+    /**
+     * Reads the documentation of the method in its source, or in the source
+     * of the overridden method. Does nothing if a source is still being
+     * parsed: it is done at the next call.
+     */
     protected void populate()
     {
-        MethodDeclaration md = cacheMetDecl.get(method.toGenericString());
-        if (md == null)
+        MemberDoc md = null;
+        Class<?> currentClass = method.getDeclaringClass();
+        while (md == null && currentClass != null)
         {
-            Class<?> currentClass = method.getDeclaringClass();
-            while (md == null && currentClass != null)
+            try
             {
-                try
-                {
-                    Method m = currentClass.getDeclaredMethod(this.method.getName(), this.method.getParameterTypes());
-                    final ClassSource cs = ClassSource.getClassSource(currentClass);
-                    if (!cs.isMethodsSet())
-                    {
-                        cs.populateMethods();
-                    }
-                    md = cs.getMethods().get(m.toGenericString());
-                }
-                catch (SecurityException e)
-                {
-                }
-                catch (NoSuchMethodException e)
-                {
-                }
-                currentClass = currentClass.getSuperclass();
+                Method m = currentClass.getDeclaredMethod(this.method.getName(), this.method.getParameterTypes());
+                ClassDoc cd = DocumentationService.getInstance().getClassDoc(currentClass,
+                        DocumentationService.UI_TIMEOUT);
+                if (cd == null)
+                    return;
+                md = cd.getMember(ClassDoc.key(m));
             }
-        }
-        if (md != null)
-        {
-            JavadocComment comment = md.getJavaDoc();
-            if (comment != null)
+            catch (SecurityException e)
             {
-                String content = comment.getContent();
-                content = ClassSource.docCommentToHtml("/**" + content + "*/");
-                summary = content;
             }
-            HashMap<String, String> paramsHash = ClassSource.getParameters(summary);
-
-            // Removes parameters from Doc since they are going to be handled in this.
-            if (paramsHash.size() > 0 && summary != null)
+            catch (NoSuchMethodException e)
             {
-                int idx = summary.indexOf(ClassSource.PARAM_PATTERN);
-                int idxEnd = summary.indexOf("</p>", idx);
-                summary = summary.substring(0, idx) + summary.substring(idxEnd + "</p>".length());
             }
+            currentClass = currentClass.getSuperclass();
+        }
+        doc = md;
+        if (md != null)
+        {
+            summary = md.getSummary();
 
             // putting back the right parameters.
-            ArrayList<Parameter> params = new ArrayList<Parameter>();
-            List<japa.parser.ast.body.Parameter> list = md.getParameters();
             int size = getParamCount();
-            if (list != null && list.size() == size)
+            if (md.getParamCount() == size)
             {
-                for (int i = 0; i < getParamCount(); ++i)
+                ArrayList<Parameter> params = new ArrayList<Parameter>();
+                for (int i = 0; i < size; ++i)
                 {
-                    japa.parser.ast.body.Parameter sourceParam = list.get(i);
-                    String name = sourceParam.getId().getName();
-                    Parameter param = new Parameter(sourceParam.getType(), name);
-
-                    params.add(param);
-                    String desc = paramsHash.get(name);
+                    Parameter param = new Parameter(md.getParamType(i), md.getParamName(i));
+                    String desc = md.getParamDescription(i);
                     if (desc != null)
                         param.setDescription(desc);
+                    params.add(param);
                 }
                 super.setParams(params);
-                cacheParams.put(method.toGenericString(), params);
             }
-            cacheSummary.put(method.toGenericString(), summary);
         }
         else
         {
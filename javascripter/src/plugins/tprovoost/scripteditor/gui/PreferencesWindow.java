@@ -1,5 +1,6 @@
 package plugins.tprovoost.scripteditor.gui;
 
+import icy.file.FileUtil;
 import icy.gui.component.IcyTextField;
 import icy.gui.frame.IcyFrame;
 import icy.preferences.PluginPreferences;
@@ -9,17 +10,24 @@ import java.awt.BorderLayout;
 import java.awt.Dimension;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.File;
 
 import javax.swing.BorderFactory;
 import javax.swing.Box;
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.SwingConstants;
 import javax.swing.border.EmptyBorder;
 
+import plugins.tprovoost.scripteditor.scriptinghandlers.ExecutionBudget;
+import plugins.tprovoost.scripteditor.scriptinghandlers.js.ExecutionPolicy.ExecutionMode;
+import plugins.tprovoost.scripteditor.scriptinghandlers.js.JSScriptEngine;
+import plugins.tprovoost.scripteditor.scriptinghandlers.py.PyScriptEngine;
+
 public class PreferencesWindow extends IcyFrame
 {
     private static PreferencesWindow singleton = new PreferencesWindow();
@@ -34,6 +42,11 @@ public class PreferencesWindow extends IcyFrame
     private final String PREF_INDENT_SPACES_VALUE = "nbSpaces";
     private final String PREF_FULL_AUTOCOMPLETE = "fullautocomplete";
     private final String PREF_AUTOCLEAR_OUTPUT = "autoclearoutput";
+    private final String PREF_JS_EXECUTION_MODE = "jsexecutionmode";
+    private final String PREF_PY_DISK_CACHE = "pydiskcache";
+    private final String PREF_LIMIT_TIME = "limittime";
+    private final String PREF_LIMIT_CPU = "limitcpu";
+    private final String PREF_LIMIT_INSTRUCTIONS = "limitinstructions";
     private IcyTextField tfSpacesTab;
     private JCheckBox cboxVarInterp;
     private JCheckBox cboxOverride;
@@ -43,6 +56,11 @@ public class PreferencesWindow extends IcyFrame
     private JCheckBox cboxAutoClearOutput;
     private JCheckBox cboxAdvanced;
     private JCheckBox cboxFullAutocomplete;
+    private JComboBox comboExecutionMode;
+    private JCheckBox cboxPyDiskCache;
+    private IcyTextField tfLimitTime;
+    private IcyTextField tfLimitCpu;
+    private IcyTextField tfLimitInstructions;
 
     private PreferencesWindow()
     {
@@ -218,6 +236,66 @@ public class PreferencesWindow extends IcyFrame
         panelAutoClearOutput.add(cboxAutoClearOutput);
         panelAutoClearOutput.add(Box.createHorizontalGlue());
 
+        // ------------------------------
+        // Javascript execution mode
+        // ------------------------------
+        JPanel panelExecutionMode = new JPanel();
+        panel.add(panelExecutionMode);
+        panelExecutionMode.setLayout(new BoxLayout(panelExecutionMode, BoxLayout.X_AXIS));
+
+        JLabel lblExecutionMode = new JLabel("Javascript execution mode: ");
+        panelExecutionMode.add(lblExecutionMode);
+
+        comboExecutionMode = new JComboBox(ExecutionMode.values());
+        comboExecutionMode.setToolTipText("<html>Interpreted: fastest start, for short scripts.<br/>"
+                + "Compiled: scripts are compiled to Java bytecode, for long loops.<br/>"
+                + "Adaptive: scripts start interpreted and are compiled when run often or long.</html>");
+        comboExecutionMode.setMaximumSize(new Dimension(120, 25));
+        panelExecutionMode.add(comboExecutionMode);
+        panelExecutionMode.add(Box.createHorizontalGlue());
+
+        // ------------------------------
+        // Python compiled scripts cache
+        // ------------------------------
+        JPanel panelPyDiskCache = new JPanel();
+        panel.add(panelPyDiskCache);
+        panelPyDiskCache.setLayout(new BoxLayout(panelPyDiskCache, BoxLayout.X_AXIS));
+
+        JLabel lblPyDiskCache = new JLabel("Keep compiled Python scripts on disk: ");
+        panelPyDiskCache.add(lblPyDiskCache);
+
+        cboxPyDiskCache = new JCheckBox("");
+        cboxPyDiskCache.setToolTipText("Compiled scripts are saved in " + getPyCacheDirectory()
+                + " and reused after a restart.");
+        cboxPyDiskCache.setEnabled(ScriptingEditor.IS_PYTHON_INSTALLED);
+        panelPyDiskCache.add(cboxPyDiskCache);
+        panelPyDiskCache.add(Box.createHorizontalGlue());
+
+        // --------------
+        // Script limits
+        // --------------
+        JPanel panelLimits = new JPanel();
+        panel.add(panelLimits);
+        panelLimits.setLayout(new BoxLayout(panelLimits, BoxLayout.X_AXIS));
+        panelLimits.setToolTipText("Scripts exceeding one of these limits are stopped. 0 means no limit.");
+
+        panelLimits.add(new JLabel("Stop scripts after (0 = never): "));
+        tfLimitTime = new IcyTextField();
+        tfLimitTime.setColumns(5);
+        tfLimitTime.setMaximumSize(new Dimension(60, 25));
+        panelLimits.add(tfLimitTime);
+        panelLimits.add(new JLabel(" s, CPU: "));
+        tfLimitCpu = new IcyTextField();
+        tfLimitCpu.setColumns(5);
+        tfLimitCpu.setMaximumSize(new Dimension(60, 25));
+        panelLimits.add(tfLimitCpu);
+        panelLimits.add(new JLabel(" s, instructions: "));
+        tfLimitInstructions = new IcyTextField();
+        tfLimitInstructions.setColumns(8);
+        tfLimitInstructions.setMaximumSize(new Dimension(90, 25));
+        panelLimits.add(tfLimitInstructions);
+        panelLimits.add(Box.createHorizontalGlue());
+
         // ----------
         // Soft Tabs
         // ----------
@@ -313,6 +391,46 @@ public class PreferencesWindow extends IcyFrame
         return cboxAutoClearOutput.isSelected();
     }
 
+    public ExecutionMode getExecutionMode()
+    {
+        return (ExecutionMode) comboExecutionMode.getSelectedItem();
+    }
+
+    public boolean isPyDiskCacheEnabled()
+    {
+        return cboxPyDiskCache.isSelected();
+    }
+
+    /**
+     * @return the directory of the compiled Python scripts when the disk
+     *         cache is enabled.
+     */
+    public static File getPyCacheDirectory()
+    {
+        return new File(FileUtil.getApplicationDirectory() + File.separator + "scripteditor" + File.separator + "pycache");
+    }
+
+    /**
+     * @return the limits of the scripts, the times are in milliseconds.
+     */
+    public ExecutionBudget getExecutionBudget()
+    {
+        return new ExecutionBudget(parseLong(tfLimitTime.getText()) * 1000, parseLong(tfLimitCpu.getText()) * 1000,
+                parseLong(tfLimitInstructions.getText()));
+    }
+
+    private static long parseLong(String text)
+    {
+        try
+        {
+            return Math.max(0, Long.parseLong(text.trim()));
+        }
+        catch (NumberFormatException e)
+        {
+            return 0;
+        }
+    }
+
     public boolean isIndentSpacesEnabled()
     {
         return cboxSoft.isSelected();
@@ -384,6 +502,22 @@ public class PreferencesWindow extends IcyFrame
         prefs.putBoolean(PREF_FULL_AUTOCOMPLETE, isFullAutoCompleteEnabled());
         prefs.putBoolean(PREF_AUTOCLEAR_OUTPUT, isAutoClearOutputEnabled());
         prefs.putInt(PREF_INDENT_SPACES_VALUE, indentSpacesCount());
+        prefs.put(PREF_JS_EXECUTION_MODE, getExecutionMode().name());
+        JSScriptEngine.setDefaultExecutionMode(getExecutionMode());
+        prefs.putBoolean(PREF_PY_DISK_CACHE, isPyDiskCacheEnabled());
+        applyPyDiskCache();
+        ExecutionBudget budget = getExecutionBudget();
+        prefs.putLong(PREF_LIMIT_TIME, budget.getWallTime());
+        prefs.putLong(PREF_LIMIT_CPU, budget.getCpuTime());
+        prefs.putLong(PREF_LIMIT_INSTRUCTIONS, budget.getInstructions());
+        ExecutionBudget.setDefault(budget);
+    }
+
+    private void applyPyDiskCache()
+    {
+        // Jython is optional: do not load its classes if it is missing
+        if (ScriptingEditor.IS_PYTHON_INSTALLED)
+            PyScriptEngine.getCodeCache().setCacheDirectory(isPyDiskCacheEnabled() ? getPyCacheDirectory() : null);
     }
 
     public void loadPrefs()
@@ -400,6 +534,28 @@ public class PreferencesWindow extends IcyFrame
         tfSpacesTab.setEnabled(active);
 
         tfSpacesTab.setValue("" + prefs.getInt(PREF_INDENT_SPACES_VALUE, 8));
+
+        ExecutionMode mode;
+        try
+        {
+            mode = ExecutionMode.valueOf(prefs.get(PREF_JS_EXECUTION_MODE, ExecutionMode.ADAPTIVE.name()));
+        }
+        catch (IllegalArgumentException e)
+        {
+            mode = ExecutionMode.ADAPTIVE;
+        }
+        comboExecutionMode.setSelectedItem(mode);
+        JSScriptEngine.setDefaultExecutionMode(mode);
+
+        cboxPyDiskCache.setSelected(prefs.getBoolean(PREF_PY_DISK_CACHE, false));
+        applyPyDiskCache();
+
+        ExecutionBudget budget = new ExecutionBudget(prefs.getLong(PREF_LIMIT_TIME, 0), prefs.getLong(PREF_LIMIT_CPU, 0),
+                prefs.getLong(PREF_LIMIT_INSTRUCTIONS, 0));
+        tfLimitTime.setValue("" + budget.getWallTime() / 1000);
+        tfLimitCpu.setValue("" + budget.getCpuTime() / 1000);
+        tfLimitInstructions.setValue("" + budget.getInstructions());
+        ExecutionBudget.setDefault(budget);
     }
 
 }
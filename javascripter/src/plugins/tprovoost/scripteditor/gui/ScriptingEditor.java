@@ -98,7 +98,7 @@ public class ScriptingEditor extends IcyFrame implements IcyFrameListener, Actio
 	private static final String STRING_LAST_DIRECTORY = "lastDirectory";
 	private XMLPreferences prefs = PluginPreferences.getPreferences().node("scripteditor");
 
-	private static final boolean IS_PYTHON_INSTALLED = ScriptEngineHandler.factory.getEngineByExtension("py") != null;
+	static final boolean IS_PYTHON_INSTALLED = ScriptEngineHandler.factory.getEngineByExtension("py") != null;
 	private static final String PREF_IDX = "idxTab";
 
 	private IcyFrameListener frameListener = new IcyFrameAdapter()
@@ -131,6 +131,11 @@ public class ScriptingEditor extends IcyFrame implements IcyFrameListener, Actio
 
 		currentDirectoryPath = prefs.get(STRING_LAST_DIRECTORY, "");
 
+		// engines ready for the first runs
+		ScriptEngineHandler.getEnginePool("javascript").refill();
+		if (IS_PYTHON_INSTALLED)
+			ScriptEngineHandler.getEnginePool("python").refill();
+
 		// load preferences
 		final XMLPreferences openedFiles = prefs.node("openedFiles");
 		final ArrayList<String> toOpen = new ArrayList<String>();
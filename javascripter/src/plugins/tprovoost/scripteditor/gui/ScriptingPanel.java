@@ -14,8 +14,6 @@ import icy.plugin.PluginRepositoryLoader;
 import icy.resource.icon.IcyIcon;
 import icy.system.FileDrop;
 import icy.system.thread.ThreadUtil;
-import japa.parser.ast.body.ConstructorDeclaration;
-import japa.parser.ast.body.MethodDeclaration;
 
 import java.awt.BorderLayout;
 import java.awt.Component;
@@ -29,6 +27,7 @@ import java.awt.event.KeyEvent;
 import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
@@ -83,12 +82,16 @@ import plugins.tprovoost.scripteditor.completion.types.BasicJavaClassCompletion;
 import plugins.tprovoost.scripteditor.completion.types.NewInstanceCompletion;
 import plugins.tprovoost.scripteditor.completion.types.ScriptFunctionCompletion;
 import plugins.tprovoost.scripteditor.gui.action.SplitButtonActionListener;
-import plugins.tprovoost.scripteditor.javasource.ClassSource;
+import plugins.tprovoost.scripteditor.javasource.ClassDoc;
+import plugins.tprovoost.scripteditor.javasource.ClassDoc.MemberDoc;
+import plugins.tprovoost.scripteditor.javasource.DocumentationService;
 import plugins.tprovoost.scripteditor.javasource.JarAccess;
 import plugins.tprovoost.scripteditor.main.ScriptListener;
 import plugins.tprovoost.scripteditor.scriptblock.Javascript;
 import plugins.tprovoost.scripteditor.scriptingconsole.BindingsScriptFrame;
+import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptEngine;
 import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptEngineHandler;
+import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptScheduler;
 import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptingHandler;
 import plugins.tprovoost.scripteditor.scriptinghandlers.js.JSScriptingHandlerRhino;
 import plugins.tprovoost.scripteditor.scriptinghandlers.py.PythonScriptingHandler;
@@ -126,6 +129,7 @@ public class ScriptingPanel extends JPanel implements CaretListener, ScriptListe
 	public JMenuItem btnRun;
 	private JSplitButton btnSplitRun;
 	public JButton btnStop;
+	private JLabel lblRunStatistics;
 	private ScriptingEditor editor;
 	private boolean integrated;
 
@@ -438,6 +442,7 @@ public class ScriptingPanel extends JPanel implements CaretListener, ScriptListe
 			scriptHandler.removeScriptListener(this);
 			textArea.removeKeyListener(scriptHandler);
 			PluginRepositoryLoader.removeListener(scriptHandler);
+			ScriptEngineHandler.removeFunctionsListener(scriptHandler);
 		}
 
 		// the provider provides the results when hitting Ctrl + Space.
@@ -520,22 +525,12 @@ public class ScriptingPanel extends JPanel implements CaretListener, ScriptListe
 						openSource(clazz);
 					} else if (c instanceof ScriptFunctionCompletion)
 					{
-						ScriptFunctionCompletion sfc = (ScriptFunctionCompletion) c;
-						Method m = sfc.getMethod();
-						clazz = m.getDeclaringClass();
-						final ClassSource cs = ClassSource.getClassSource(clazz);
-						MethodDeclaration md = cs.getMethods().get(m.toGenericString());
-						openSource(clazz, md.getBeginLine() - 1, md.getEndLine() - 1);
+						final Method m = ((ScriptFunctionCompletion) c).getMethod();
+						openSourceWhenParsed(m.getDeclaringClass(), ClassDoc.key(m));
 					} else if (c instanceof NewInstanceCompletion)
 					{
 						Constructor<?> cons = ((NewInstanceCompletion) c).getConstructor();
-						clazz = cons.getDeclaringClass();
-						final ClassSource cs = ClassSource.getClassSource(clazz);
-						ConstructorDeclaration cd = cs.getConstructors().get(cons.toGenericString());
-						if (cd != null)
-							openSource(clazz, cd.getBeginLine() - 1, cd.getEndLine() - 1);
-						else
-							System.out.println(clazz);
+						openSourceWhenParsed(cons.getDeclaringClass(), ClassDoc.key(cons));
 					}
 				} else
 				{
@@ -586,6 +581,7 @@ public class ScriptingPanel extends JPanel implements CaretListener, ScriptListe
 					provider.setHandler(scriptHandler);
 					textArea.addKeyListener(scriptHandler);
 					PluginRepositoryLoader.addListener(scriptHandler);
+					ScriptEngineHandler.addFunctionsListener(scriptHandler);
 
 					BindingsScriptFrame frame = BindingsScriptFrame.getInstance();
 					frame.setEngine(scriptHandler.getEngine());
@@ -596,6 +592,36 @@ public class ScriptingPanel extends JPanel implements CaretListener, ScriptListe
 		});
 	}
 
+	/**
+	 * Opens the source of a method or a constructor once the class source is
+	 * parsed by the {@link DocumentationService}, without blocking the EDT.
+	 */
+	private void openSourceWhenParsed(final Class<?> clazz, final String member)
+	{
+		ThreadUtil.bgRun(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				ClassDoc cd = DocumentationService.getInstance().getClassDoc(clazz);
+				if (cd == null)
+					return;
+				final MemberDoc declaration = cd.getMember(member);
+				ThreadUtil.invokeLater(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						if (declaration != null)
+							openSource(clazz, declaration.getBeginLine() - 1, declaration.getEndLine() - 1);
+						else
+							openSource(clazz);
+					}
+				});
+			}
+		});
+	}
+
 	public void openSource(Class<?> clazz)
 	{
 		openSource(clazz, 0, 0);
@@ -609,11 +635,22 @@ public class ScriptingPanel extends JPanel implements CaretListener, ScriptListe
 			String res = null;
 			try
 			{
-				byte b[] = new byte[jar.available()];
-				jar.read(b);
-				res = new String(b);
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				byte b[] = new byte[8192];
+				int n;
+				while ((n = jar.read(b)) != -1)
+					bytes.write(b, 0, n);
+				res = new String(bytes.toByteArray());
 			} catch (IOException e1)
 			{
+			} finally
+			{
+				try
+				{
+					jar.close();
+				} catch (IOException e1)
+				{
+				}
 			}
 			if (res == null)
 				return;
@@ -889,6 +926,9 @@ public class ScriptingPanel extends JPanel implements CaretListener, ScriptListe
 			add(btnSplitRun);
 			add(Box.createHorizontalStrut(STRUT_SIZE));
 			add(btnStop);
+			add(Box.createHorizontalStrut(STRUT_SIZE * 3));
+			lblRunStatistics = new JLabel();
+			add(lblRunStatistics);
 			add(Box.createHorizontalGlue());
 		}
 
@@ -1061,10 +1101,36 @@ public class ScriptingPanel extends JPanel implements CaretListener, ScriptListe
 				btnRun.setEnabled(true);
 				btnSplitRun.setEnabled(true);
 				btnStop.setEnabled(false);
+				if (lblRunStatistics != null && scriptHandler != null && scriptHandler.getEngine() != null)
+				{
+					ScriptEngine engine = scriptHandler.getEngine();
+					String statistics = engine.getRunStatistics();
+					lblRunStatistics.setText(statistics == null ? "" : statistics);
+					lblRunStatistics.setToolTipText(getRunDetails(engine));
+				}
 			}
 		});
 	}
 
+	/**
+	 * @return the statistics of the caches, the engine pool and the scheduler
+	 *         used by the runs, displayed in the tooltip of the run
+	 *         statistics.
+	 */
+	private String getRunDetails(ScriptEngine engine)
+	{
+		ArrayList<String> lines = new ArrayList<String>();
+		String cacheStatistics = engine.getCacheStatistics();
+		if (cacheStatistics != null)
+			lines.add(cacheStatistics);
+		lines.add(ScriptEngineHandler.getEnginePool(getLanguage()).toString());
+		lines.add(ScriptScheduler.getInstance().toString());
+		String details = "<html>";
+		for (int i = 0; i < lines.size(); ++i)
+			details += (i == 0 ? "" : "<br/>") + lines.get(i);
+		return details + "</html>";
+	}
+
 	/**
 	 * Displays a modal dialog to go to a specific line.
 	 */
@@ -0,0 +1,248 @@
+package plugins.tprovoost.scripteditor.javasource;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Documentation extracted from the source of a class: the HTML summary of the
+ * class and, for each method or constructor, its summary, parameters and
+ * position in the source. This is what the {@link DocumentationStore} keeps,
+ * instead of the parsed source.
+ * <p>
+ * The members are found by their signature, see {@link #key(Method)}.
+ */
+public class ClassDoc
+{
+    /** Documentation of a class without source. */
+    public static final ClassDoc NONE = new ClassDoc(null, new HashMap<String, MemberDoc>());
+
+    private static final String[] NO_STRING = new String[0];
+
+    private final String summary;
+    private final HashMap<String, MemberDoc> members;
+
+    public ClassDoc(String summary, HashMap<String, MemberDoc> members)
+    {
+        this.summary = summary;
+        this.members = members;
+    }
+
+    /**
+     * @return the key of the method: its name and the simple names of its
+     *         parameter types, e.g. <code>setImage(int,int,IcyBufferedImage)</code>.
+     */
+    public static String key(Method method)
+    {
+        return key(method.getName(), method.getParameterTypes());
+    }
+
+    /**
+     * @return the key of the constructor, e.g. <code>&lt;init&gt;(int,int)</code>.
+     */
+    public static String key(Constructor<?> constructor)
+    {
+        return key("<init>", constructor.getParameterTypes());
+    }
+
+    private static String key(String name, Class<?>[] types)
+    {
+        StringBuilder sb = new StringBuilder(name).append('(');
+        for (int i = 0; i < types.length; ++i)
+        {
+            if (i != 0)
+                sb.append(',');
+            sb.append(types[i].getSimpleName());
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * @return the HTML summary of the class, <code>null</code> if it has no
+     *         Javadoc.
+     */
+    public String getSummary()
+    {
+        return summary;
+    }
+
+    /**
+     * @return the documentation of the member, <code>null</code> if it is not
+     *         in the source.
+     */
+    public MemberDoc getMember(String key)
+    {
+        return members.get(key);
+    }
+
+    /**
+     * @return the approximate size in memory, in chars.
+     */
+    int weight()
+    {
+        int weight = 16 + length(summary);
+        for (Map.Entry<String, MemberDoc> e : members.entrySet())
+            weight += 16 + e.getKey().length() + e.getValue().weight();
+        return weight;
+    }
+
+    void write(DataOutput out) throws IOException
+    {
+        writeString(out, summary);
+        out.writeInt(members.size());
+        for (Map.Entry<String, MemberDoc> e : members.entrySet())
+        {
+            MemberDoc member = e.getValue();
+            out.writeUTF(e.getKey());
+            writeString(out, member.summary);
+            out.writeInt(member.paramNames.length);
+            for (int i = 0; i < member.paramNames.length; ++i)
+            {
+                out.writeUTF(member.paramTypes[i]);
+                out.writeUTF(member.paramNames[i]);
+                writeString(out, member.paramDescriptions[i]);
+            }
+            out.writeInt(member.beginLine);
+            out.writeInt(member.endLine);
+        }
+    }
+
+    static ClassDoc read(DataInput in) throws IOException
+    {
+        String summary = readString(in);
+        int count = in.readInt();
+        HashMap<String, MemberDoc> members = new HashMap<String, MemberDoc>(count * 2);
+        for (int m = 0; m < count; ++m)
+        {
+            String key = in.readUTF();
+            String memberSummary = readString(in);
+            int params = in.readInt();
+            String[] types = new String[params];
+            String[] names = new String[params];
+            String[] descriptions = new String[params];
+            for (int i = 0; i < params; ++i)
+            {
+                types[i] = in.readUTF();
+                names[i] = in.readUTF();
+                descriptions[i] = readString(in);
+            }
+            members.put(key, new MemberDoc(memberSummary, types, names, descriptions, in.readInt(), in.readInt()));
+        }
+        return new ClassDoc(summary, members);
+    }
+
+    /**
+     * Writes a string which may be <code>null</code> or longer than the 64 KB
+     * of {@link DataOutput#writeUTF(String)}.
+     */
+    private static void writeString(DataOutput out, String s) throws IOException
+    {
+        if (s == null)
+        {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(s.length());
+        out.writeChars(s);
+    }
+
+    private static String readString(DataInput in) throws IOException
+    {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        char[] chars = new char[length];
+        for (int i = 0; i < length; ++i)
+            chars[i] = in.readChar();
+        return new String(chars);
+    }
+
+    private static int length(String s)
+    {
+        return s == null ? 0 : s.length();
+    }
+
+    /**
+     * Documentation of a method or a constructor.
+     */
+    public static class MemberDoc
+    {
+        private final String summary;
+        private final String[] paramTypes;
+        private final String[] paramNames;
+        private final String[] paramDescriptions;
+        private final int beginLine;
+        private final int endLine;
+
+        /**
+         * @param summary
+         *        : the HTML summary, without the parameters.
+         * @param paramDescriptions
+         *        : the descriptions of the parameters, <code>null</code> if
+         *        not documented.
+         */
+        public MemberDoc(String summary, String[] paramTypes, String[] paramNames, String[] paramDescriptions,
+                int beginLine, int endLine)
+        {
+            this.summary = summary;
+            this.paramTypes = paramTypes == null ? NO_STRING : paramTypes;
+            this.paramNames = paramNames == null ? NO_STRING : paramNames;
+            this.paramDescriptions = paramDescriptions == null ? NO_STRING : paramDescriptions;
+            this.beginLine = beginLine;
+            this.endLine = endLine;
+        }
+
+        public String getSummary()
+        {
+            return summary;
+        }
+
+        public int getParamCount()
+        {
+            return paramNames.length;
+        }
+
+        /**
+         * @return the type of the parameter, as written in the source.
+         */
+        public String getParamType(int index)
+        {
+            return paramTypes[index];
+        }
+
+        public String getParamName(int index)
+        {
+            return paramNames[index];
+        }
+
+        public String getParamDescription(int index)
+        {
+            return paramDescriptions[index];
+        }
+
+        /**
+         * @return the first line of the declaration in the source, from 1.
+         */
+        public int getBeginLine()
+        {
+            return beginLine;
+        }
+
+        public int getEndLine()
+        {
+            return endLine;
+        }
+
+        int weight()
+        {
+            int weight = 16 + length(summary);
+            for (int i = 0; i < paramNames.length; ++i)
+                weight += paramTypes[i].length() + paramNames[i].length() + length(paramDescriptions[i]);
+            return weight;
+        }
+    }
+}
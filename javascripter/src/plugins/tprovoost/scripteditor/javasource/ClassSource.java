@@ -1,32 +1,22 @@
 package plugins.tprovoost.scripteditor.javasource;
 
-import icy.system.thread.ThreadUtil;
 import icy.util.StringUtil;
-import japa.parser.JavaParser;
-import japa.parser.ParseException;
-import japa.parser.ast.CompilationUnit;
-import japa.parser.ast.body.BodyDeclaration;
-import japa.parser.ast.body.ClassOrInterfaceDeclaration;
-import japa.parser.ast.body.ConstructorDeclaration;
-import japa.parser.ast.body.EnumDeclaration;
-import japa.parser.ast.body.FieldDeclaration;
-import japa.parser.ast.body.MethodDeclaration;
-import japa.parser.ast.body.VariableDeclarator;
 
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.StringReader;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Method;
 import java.text.CharacterIterator;
 import java.text.StringCharacterIterator;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import plugins.tprovoost.scripteditor.javasource.ClassDoc.MemberDoc;
+
+/**
+ * Renders the doc comments of the Java sources in HTML, see
+ * {@link JavadocScanner}.
+ */
 public class ClassSource
 {
 
@@ -58,371 +48,38 @@ public class ClassSource
     static final Pattern LINK_TAG_MEMBER_PATTERN = Pattern.compile("(?:\\w+\\.)*\\w+(?:#\\w+(?:\\([^\\)]*\\))?)?|"
             + "#\\w+(?:\\([^\\)]*\\))?");
 
-    /**
-     * Cache containing all source codes for a given class.
-     */
-    private static HashMap<Class<?>, ClassSource> allClassSources = new HashMap<Class<?>, ClassSource>();
-
-    private Class<?> clazz;
-    private CompilationUnit cu;
-    private HashMap<String, ConstructorDeclaration> constructors = new HashMap<String, ConstructorDeclaration>();
-    private HashMap<String, MethodDeclaration> methods = new HashMap<String, MethodDeclaration>();
-    private HashMap<String, VariableDeclarator> fields = new HashMap<String, VariableDeclarator>();
-    private HashMap<String, ClassOrInterfaceDeclaration> classOrInterfaces = new HashMap<String, ClassOrInterfaceDeclaration>();
-    private HashMap<String, EnumDeclaration> enums = new HashMap<String, EnumDeclaration>();
-
-    private boolean constructorsSet = false;
-    private boolean methodsSet = false;
-    private boolean enumSet = false;
-    private boolean fieldsSet = false;
-    private boolean classOrInterfacesSet = false;
-    private boolean working = false;
-
-    private boolean DEBUG = false;
-
-    public static synchronized ClassSource getClassSource(final Class<?> clazz)
-    {
-        ClassSource cm = allClassSources.get(clazz);
-        if (cm == null)
-        {
-            cm = new ClassSource(clazz);
-            final ClassSource cmFinal = cm;
-            allClassSources.put(clazz, cmFinal);
-            // ThreadUtil.bgRun(new Runnable()
-            // {
-            //
-            // @Override
-            // public void run()
-            // {
-            InputStream is = JarAccess.getJavaSourceInputStream(clazz);
-            if (is != null)
-                try
-                {
-                    cmFinal.cu = JavaParser.parse(is);
-                }
-                catch (ParseException e)
-                {
-                }
-            // }
-            // });
-        }
-        return cm;
-    }
-
-    private ClassSource(Class<?> clazz)
-    {
-        this.clazz = clazz;
-    }
-
-    public Class<?> getSourceClass()
-    {
-        return clazz;
-    }
-
-    public HashMap<String, ClassOrInterfaceDeclaration> getClassOrInterfaces()
-    {
-        return classOrInterfaces;
-    }
-
-    public HashMap<String, ConstructorDeclaration> getConstructors()
-    {
-        return constructors;
-    }
-
-    public HashMap<String, VariableDeclarator> getFields()
-    {
-        return fields;
-    }
-
-    public HashMap<String, MethodDeclaration> getMethods()
-    {
-        return methods;
-    }
-
-    public HashMap<String, EnumDeclaration> getEnums()
-    {
-        return enums;
-    }
-
-    public synchronized boolean isFieldsSet()
-    {
-        return fieldsSet;
-    }
-
-    public synchronized boolean isEnumSet()
-    {
-        return enumSet;
-    }
-
-    public synchronized boolean isClassOrInterfacesSet()
-    {
-        return classOrInterfacesSet;
-    }
-
-    public synchronized boolean isConstructorsSet()
-    {
-        return constructorsSet;
-    }
-
-    public synchronized boolean isMethodsSet()
+    private ClassSource()
     {
-        return methodsSet;
-    }
-
-    public boolean isAllSet()
-    {
-        return fieldsSet && classOrInterfacesSet && constructorsSet && methodsSet && enumSet;
-    }
-
-    public void waitForAllSet()
-    {
-        while (!isAllSet())
-        {
-            ThreadUtil.sleep(100);
-            return;
-        }
-    }
-
-    public synchronized boolean isWorking()
-    {
-        return working;
-    }
-
-    public synchronized void setWorking(boolean working)
-    {
-        this.working = working;
-    }
-
-    public void populateAll()
-    {
-        if (working)
-        {
-            waitForAllSet();
-            return;
-        }
-        working = true;
-        if (!classOrInterfacesSet)
-        {
-            populateClassesOrInterfaces();
-        }
-        if (!fieldsSet)
-        {
-            populateFields();
-        }
-        if (!constructorsSet)
-        {
-            populateConstructors();
-
-        }
-        if (!methodsSet)
-        {
-            populateMethods();
-        }
-        if (!enumSet)
-        {
-            populateEnums();
-        }
-    }
-
-    @SuppressWarnings("unchecked")
-    public void populateClassesOrInterfaces()
-    {
-        if (working)
-        {
-            return;
-        }
-        if (cu != null)
-        {
-            // JAVA SOURCE VERSION
-            ClassOrInterfaceVisitor coi = new ClassOrInterfaceVisitor();
-            coi.visit(cu, null);
-            ArrayList<BodyDeclaration> list = coi.getList();
-            if (list.isEmpty())
-            {
-                System.out.println("Empty Class/Interface Declaration in " + clazz.getName());
-            }
-            else
-            {
-                classOrInterfaces.put(clazz.getName(), (ClassOrInterfaceDeclaration) list.get(0));
-            }
-
-        }
-        classOrInterfacesSet = true;
-        startPopulating();
-    }
-
-    @SuppressWarnings("unchecked")
-    public void populateFields()
-    {
-        if (working)
-        {
-            return;
-        }
-        if (cu != null)
-        {
-            FieldVisitor coi = new FieldVisitor();
-            coi.visit(cu, null);
-            for (BodyDeclaration bd : coi.getList())
-            {
-                FieldDeclaration fd = (FieldDeclaration) bd;
-                for (VariableDeclarator vd : fd.getVariables())
-                {
-                    fields.put(vd.getId().getName(), vd);
-                }
-            }
-        }
-        startPopulating();
-        fieldsSet = true;
-    }
-
-    @SuppressWarnings("unchecked")
-    public void populateEnums()
-    {
-        if (working)
-            return;
-        if (cu != null)
-        {
-            // JAVA SOURCE VERSION
-            EnumVisitor ev = new EnumVisitor();
-            ev.visit(cu, null);
-            for (BodyDeclaration bd : ev.getList())
-            {
-                EnumDeclaration ed = (EnumDeclaration) bd;
-                enums.put(ed.getName(), ed);
-            }
-        }
-        startPopulating();
-        fieldsSet = true;
-    }
-
-    @SuppressWarnings("unchecked")
-    public void populateConstructors()
-    {
-        if (working)
-            return;
-        if (cu != null)
-        {
-            ConstructorVisitor cv = new ConstructorVisitor();
-            cv.visit(cu, null);
-            for (Constructor<?> c : clazz.getDeclaredConstructors())
-            {
-                L1: for (BodyDeclaration bd : cv.getList())
-                {
-                    ConstructorDeclaration cd = (ConstructorDeclaration) bd;
-                    if (!cd.getName().contentEquals(clazz.getSimpleName()))
-                        continue;
-                    List<japa.parser.ast.body.Parameter> paramsSource = cd.getParameters();
-                    Class<?> paramsReflect[] = c.getParameterTypes();
-                    // ArrayList<Parameter> params = new ArrayList<Parameter>();
-                    if (paramsSource != null && paramsSource.size() == paramsReflect.length)
-                    {
-                        for (int i = 0; i < paramsSource.size(); ++i)
-                        {
-                            japa.parser.ast.body.Parameter paramSource = paramsSource.get(i);
-                            Class<?> paramReflect = paramsReflect[i];
-                            String className;
-                            if (paramReflect.isArray())
-                            {
-                                className = paramReflect.getCanonicalName();
-                            }
-                            else
-                            {
-                                className = paramReflect.getName();
-                            }
-                            String paramSourceType = paramSource.getType().toString();
-                            int idx = paramSourceType.indexOf('<');
-                            if (idx != -1)
-                                paramSourceType = paramSourceType.substring(0, idx);
-                            if (!className.contains(paramSourceType))
-                                continue L1;
-                            // else
-                            // params.add(new Parameter(ClassUtil.getSimpleClassName(className),
-                            // paramSource
-                            // .getId().getName()));
-                        }
-                        constructors.put(c.toGenericString(), cd);
-                    }
-                }
-
-                if (constructors.get(c.toGenericString()) == null && DEBUG)
-                    System.out.println("No matching constructor in java: " + c.toGenericString());
-
-            }
-        }
-        startPopulating();
-        constructorsSet = true;
-    }
-
-    @SuppressWarnings("unchecked")
-    public void populateMethods()
-    {
-        if (working)
-            waitForAllSet();
-        if (cu != null)
-        {
-            // JAVA SOURCE VERSION
-
-            MethodVisitor mv = new MethodVisitor();
-            mv.visit(cu, null);
-            for (Method method : clazz.getDeclaredMethods())
-            {
-                L1: for (BodyDeclaration cd : mv.getList())
-                {
-                    MethodDeclaration md = ((MethodDeclaration) cd);
-                    if (!md.getName().contentEquals(method.getName()))
-                        continue;
-                    List<japa.parser.ast.body.Parameter> paramsSource = md.getParameters();
-                    Class<?> paramsReflect[] = method.getParameterTypes();
-                    if (paramsSource == null || paramsSource.size() == paramsReflect.length)
-                    {
-                        if (paramsSource != null)
-                        {
-                            for (int i = 0; i < paramsSource.size(); ++i)
-                            {
-                                japa.parser.ast.body.Parameter paramSource = paramsSource.get(i);
-                                Class<?> paramReflect = paramsReflect[i];
-                                String className;
-                                if (paramReflect.isArray())
-                                {
-                                    className = paramReflect.getCanonicalName();
-                                }
-                                else
-                                {
-                                    className = paramReflect.getName();
-                                }
-                                String paramSourceType = paramSource.getType().toString();
-                                int idx = paramSourceType.indexOf('<');
-                                if (idx != -1)
-                                    paramSourceType = paramSourceType.substring(0, idx);
-                                if (!className.contains(paramSourceType))
-                                    continue L1;
-                            }
-                        }
-                        methods.put(method.toGenericString(), (MethodDeclaration) cd);
-                    }
-                }
-                if (methods.get(method.toGenericString()) == null && DEBUG)
-                    System.out.println("No matching method in java: " + method.toGenericString());
-            }
-        }
-        startPopulating();
-        methodsSet = true;
     }
 
     /**
-     * Reduces code size for the thread.
+     * @param docContent
+     *        : the doc comment, without "/**" and its end, <code>null</code>
+     *        if there is none.
+     * @param types
+     *        : the types of the parameters, as written in the source.
+     * @return the documentation of a method or a constructor, rendered in
+     *         HTML.
      */
-    private void startPopulating()
+    static MemberDoc toMemberDoc(String docContent, String[] types, String[] names, int beginLine, int endLine)
     {
-        ThreadUtil.bgRun(new Runnable()
+        String summary = null;
+        if (docContent != null)
+            summary = docCommentToHtml("/**" + docContent + "*/");
+        HashMap<String, String> paramsHash = getParameters(summary);
+
+        // Removes parameters from Doc since they are displayed with the parameters.
+        if (paramsHash.size() > 0 && summary != null)
         {
+            int idx = summary.indexOf(PARAM_PATTERN);
+            int idxEnd = summary.indexOf("</p>", idx);
+            summary = summary.substring(0, idx) + summary.substring(idxEnd + "</p>".length());
+        }
 
-            @Override
-            public void run()
-            {
-                populateAll();
-            }
-        });
+        String[] descriptions = new String[names.length];
+        for (int i = 0; i < names.length; ++i)
+            descriptions[i] = paramsHash.get(names[i]);
+        return new MemberDoc(summary, types, names, descriptions, beginLine, endLine);
     }
 
     private static final void appendDocCommentTail(StringBuffer sb, StringBuffer tail)
@@ -0,0 +1,238 @@
+package plugins.tprovoost.scripteditor.javasource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Extracts the Javadoc of the Java sources in the background. The sources are
+ * scanned by a bounded pool of worker threads, see {@link JavadocScanner}, and
+ * each class is scanned once:
+ * the concurrent requests for a class share the same {@link Future}. Only the
+ * extracted {@link ClassDoc documentation} is kept, in a
+ * {@link DocumentationStore}.
+ * <p>
+ * The user interface never waits for a scan: it asks for the source with a
+ * short timeout and shows what is available, the documentation is there at
+ * the next display.
+ */
+public class DocumentationService
+{
+    public static final int POOL_SIZE = 2;
+
+    /** Time the user interface waits for a source being scanned, in milliseconds. */
+    public static final long UI_TIMEOUT = 40;
+
+    private static final DocumentationService instance = new DocumentationService(POOL_SIZE, new DocumentationStore(
+            DocumentationStore.getDefaultDirectory(), DocumentationStore.DEFAULT_CAPACITY));
+
+    private final ThreadPoolExecutor executor;
+    private final DocumentationStore store;
+    /** Classes being extracted. */
+    private final ConcurrentHashMap<String, Future<ClassDoc>> pending = new ConcurrentHashMap<String, Future<ClassDoc>>();
+
+    public DocumentationService(int poolSize, DocumentationStore store)
+    {
+        this.store = store;
+        final AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(poolSize, poolSize, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+                {
+                    @Override
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread thread = new Thread(r, "Script Editor documentation " + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static DocumentationService getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * Requests the documentation of the class. It is read from the store, or
+     * extracted from the source at the first request only.
+     */
+    public Future<ClassDoc> request(final Class<?> clazz)
+    {
+        final String className = clazz.getName();
+        ClassDoc doc = store.get(className);
+        if (doc != null)
+            return done(doc);
+        Future<ClassDoc> future = pending.get(className);
+        if (future == null)
+        {
+            FutureTask<ClassDoc> task = new FutureTask<ClassDoc>(new Callable<ClassDoc>()
+            {
+                @Override
+                public ClassDoc call()
+                {
+                    try
+                    {
+                        return extract(clazz);
+                    }
+                    finally
+                    {
+                        pending.remove(className);
+                    }
+                }
+            });
+            future = pending.putIfAbsent(className, task);
+            if (future == null)
+            {
+                future = task;
+                executor.execute(task);
+            }
+        }
+        return future;
+    }
+
+    private ClassDoc extract(Class<?> clazz)
+    {
+        String className = clazz.getName();
+        URL source = JarAccess.hasSource(clazz) ? JarAccess.getURLJava(className) : null;
+        if (source == null)
+        {
+            store.put(className, null, ClassDoc.NONE);
+            return ClassDoc.NONE;
+        }
+        ClassDoc doc = store.load(className, source);
+        if (doc == null)
+        {
+            try
+            {
+                doc = JavadocScanner.scan(read(clazz), clazz.getSimpleName());
+            }
+            catch (IOException e)
+            {
+                // kept in memory only, read again after a restart
+                System.err.println("Cannot read the source of " + className + ": " + e);
+                store.put(className, null, ClassDoc.NONE);
+                return ClassDoc.NONE;
+            }
+            catch (RuntimeException e)
+            {
+                System.err.println("Cannot scan the source of " + className + ": " + e);
+                store.put(className, null, ClassDoc.NONE);
+                return ClassDoc.NONE;
+            }
+            store.put(className, source, doc);
+        }
+        return doc;
+    }
+
+    private static String read(Class<?> clazz) throws IOException
+    {
+        InputStream is = JarAccess.getJavaSourceInputStream(clazz);
+        if (is == null)
+            throw new IOException("source not found");
+        try
+        {
+            Reader reader = new InputStreamReader(is);
+            StringBuilder sb = new StringBuilder();
+            char[] buffer = new char[8192];
+            int n;
+            while ((n = reader.read(buffer)) != -1)
+                sb.append(buffer, 0, n);
+            return sb.toString();
+        }
+        finally
+        {
+            is.close();
+        }
+    }
+
+    private static Future<ClassDoc> done(final ClassDoc doc)
+    {
+        FutureTask<ClassDoc> task = new FutureTask<ClassDoc>(new Callable<ClassDoc>()
+        {
+            @Override
+            public ClassDoc call()
+            {
+                return doc;
+            }
+        });
+        task.run();
+        return task;
+    }
+
+    /**
+     * Requests the documentation of the class and its superclasses, where the
+     * documentation of the inherited members is.
+     */
+    public void prefetch(Class<?> clazz)
+    {
+        for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass())
+            request(c);
+    }
+
+    /**
+     * @param timeout
+     *        : time to wait for the scan, in milliseconds.
+     * @return the documentation of the class, <code>null</code> if it is not
+     *         extracted yet. The extraction continues in the background.
+     */
+    public ClassDoc getClassDoc(Class<?> clazz, long timeout)
+    {
+        Future<ClassDoc> future = request(clazz);
+        try
+        {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            return null;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (ExecutionException e)
+        {
+            System.err.println("Cannot read the source of " + clazz.getName() + ": " + e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * @return the documentation of the class, waiting for its extraction. Not
+     *         to be called from the user interface.
+     */
+    public ClassDoc getClassDoc(Class<?> clazz)
+    {
+        try
+        {
+            return request(clazz).get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (ExecutionException e)
+        {
+            System.err.println("Cannot read the source of " + clazz.getName() + ": " + e.getCause());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package plugins.tprovoost.scripteditor.javasource;
+
+import icy.file.FileUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Store of the documentation extracted from the Java sources, see
+ * {@link ClassDoc}.
+ * <ul>
+ * <li>In memory, the least recently used classes are evicted when the
+ * documentation kept exceeds the capacity.</li>
+ * <li>On disk, the documentation of the classes of a jar is appended to a
+ * file named after the fingerprint of the jar (path, size and modification
+ * time): it is read again after a restart, until the jar changes.</li>
+ * </ul>
+ * File format: magic, version, then for each class its name, the size of its
+ * documentation and the documentation.
+ * <p>
+ * The memory cache has its own lock, held only for the map operations:
+ * {@link #get(String)} is called from the EDT, while the disk accesses are
+ * done under the lock of each file.
+ */
+public class DocumentationStore
+{
+    private static final int MAGIC = 0x4a444f43; // "JDOC"
+    private static final int VERSION = 1;
+    private static final String EXTENSION = ".jdoc";
+
+    /** Default capacity in memory, in chars. */
+    public static final long DEFAULT_CAPACITY = 2 * 1024 * 1024;
+
+    private final File directory;
+    private final long capacity;
+    /** Guarded by this. */
+    private final LinkedHashMap<String, ClassDoc> docs = new LinkedHashMap<String, ClassDoc>(64, 0.75f, true);
+    private long weight = 0;
+    /** Guarded by itself. */
+    private final HashMap<String, Container> containers = new HashMap<String, Container>();
+
+    /**
+     * @param directory
+     *        : where the documentation is saved, <code>null</code> to keep it
+     *        in memory only.
+     * @param capacity
+     *        : documentation kept in memory, in chars.
+     */
+    public DocumentationStore(File directory, long capacity)
+    {
+        this.directory = directory;
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return the directory used by the Script Editor.
+     */
+    public static File getDefaultDirectory()
+    {
+        return new File(FileUtil.getApplicationDirectory() + File.separator + "scripteditor" + File.separator
+                + "javadoc");
+    }
+
+    /**
+     * @return the documentation of the class if it is in memory,
+     *         <code>null</code> otherwise.
+     */
+    public synchronized ClassDoc get(String className)
+    {
+        return docs.get(className);
+    }
+
+    /**
+     * @param source
+     *        : the URL of the source of the class.
+     * @return the documentation of the class from memory or disk,
+     *         <code>null</code> if it was never stored.
+     */
+    public ClassDoc load(String className, URL source)
+    {
+        ClassDoc doc = get(className);
+        if (doc != null)
+            return doc;
+        Container container = getContainer(source);
+        if (container == null)
+            return null;
+        doc = container.read(className);
+        if (doc != null)
+            cache(className, doc);
+        return doc;
+    }
+
+    /**
+     * Stores the documentation of the class. It is saved if its source is in
+     * a jar.
+     *
+     * @param source
+     *        : the URL of the source, <code>null</code> if there is none.
+     */
+    public void put(String className, URL source, ClassDoc doc)
+    {
+        cache(className, doc);
+        Container container = getContainer(source);
+        if (container != null)
+            container.append(className, doc);
+    }
+
+    private synchronized void cache(String className, ClassDoc doc)
+    {
+        ClassDoc previous = docs.put(className, doc);
+        if (previous != null)
+            weight -= previous.weight();
+        weight += doc.weight();
+        Iterator<Map.Entry<String, ClassDoc>> it = docs.entrySet().iterator();
+        while (weight > capacity && docs.size() > 1)
+        {
+            weight -= it.next().getValue().weight();
+            it.remove();
+        }
+    }
+
+    /**
+     * @return the file of the jar containing the source, <code>null</code> if
+     *         the source is not in a jar or nothing is saved.
+     */
+    private Container getContainer(URL source)
+    {
+        if (directory == null)
+            return null;
+        File jar = JarAccess.getJarFile(source);
+        if (jar == null)
+            return null;
+        String prefix = jar.getName() + '-' + Integer.toHexString(jar.getAbsolutePath().hashCode()) + '-';
+        String name = prefix + Long.toHexString(jar.length()) + '-' + Long.toHexString(jar.lastModified()) + EXTENSION;
+        synchronized (containers)
+        {
+            Container container = containers.get(name);
+            if (container == null)
+            {
+                // the documentation of the previous versions of the jar is
+                // obsolete
+                File[] files = directory.listFiles();
+                if (files != null)
+                    for (File f : files)
+                        if (f.getName().startsWith(prefix) && !f.getName().equals(name))
+                            f.delete();
+                container = new Container(new File(directory, name));
+                containers.put(name, container);
+            }
+            return container;
+        }
+    }
+
+    /**
+     * Documentation saved for the classes of a jar, read and written under its
+     * lock.
+     */
+    private static class Container
+    {
+        final File file;
+        /** Offset of the documentation of each class, read at the first access. */
+        HashMap<String, Long> offsets;
+
+        Container(File file)
+        {
+            this.file = file;
+        }
+
+        synchronized ClassDoc read(String className)
+        {
+            try
+            {
+                index();
+                Long offset = offsets.get(className);
+                if (offset == null)
+                    return null;
+                RandomAccessFile raf = new RandomAccessFile(file, "r");
+                try
+                {
+                    raf.seek(offset);
+                    byte[] data = new byte[raf.readInt()];
+                    raf.readFully(data);
+                    return ClassDoc.read(new DataInputStream(new ByteArrayInputStream(data)));
+                }
+                finally
+                {
+                    raf.close();
+                }
+            }
+            catch (IOException e)
+            {
+                reset();
+                return null;
+            }
+        }
+
+        synchronized void append(String className, ClassDoc doc)
+        {
+            try
+            {
+                index();
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                doc.write(new DataOutputStream(bytes));
+                file.getParentFile().mkdirs();
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try
+                {
+                    if (raf.length() == 0)
+                    {
+                        raf.writeInt(MAGIC);
+                        raf.writeInt(VERSION);
+                    }
+                    raf.seek(raf.length());
+                    raf.writeUTF(className);
+                    long offset = raf.getFilePointer();
+                    raf.writeInt(bytes.size());
+                    raf.write(bytes.toByteArray());
+                    offsets.put(className, offset);
+                }
+                finally
+                {
+                    raf.close();
+                }
+            }
+            catch (IOException e)
+            {
+                System.err.println("Cannot save the documentation in " + file + ": " + e.getMessage());
+                reset();
+            }
+        }
+
+        /**
+         * Reads the class names and offsets, skipping the documentation.
+         */
+        private void index() throws IOException
+        {
+            if (offsets != null)
+                return;
+            offsets = new HashMap<String, Long>();
+            if (!file.isFile())
+                return;
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try
+            {
+                if (raf.length() < 8 || raf.readInt() != MAGIC || raf.readInt() != VERSION)
+                    throw new IOException("Invalid documentation file");
+                long length = raf.length();
+                while (raf.getFilePointer() < length)
+                {
+                    String className = raf.readUTF();
+                    long offset = raf.getFilePointer();
+                    int size = raf.readInt();
+                    if (offset + 4 + size > length)
+                        throw new IOException("Truncated documentation file");
+                    offsets.put(className, offset);
+                    raf.seek(offset + 4 + size);
+                }
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+
+        /**
+         * Deletes a corrupted file, it is written again.
+         */
+        private void reset()
+        {
+            file.delete();
+            offsets = new HashMap<String, Long>();
+        }
+    }
+}
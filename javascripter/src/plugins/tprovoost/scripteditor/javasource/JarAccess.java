@@ -2,42 +2,71 @@ package plugins.tprovoost.scripteditor.javasource;
 
 import icy.util.ClassUtil;
 
+import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
-import java.util.LinkedList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
+/**
+ * Access to the Java sources of the classes. The sources of a class loaded
+ * from a jar are looked for in this jar: the <code>.java</code> entries of each
+ * jar are indexed once, at the first access, from its central directory.
+ * Checking that a source exists then opens nothing, and the jar is kept open
+ * to read the sources.
+ * <p>
+ * The lookups take no global lock, they are done from the EDT: only the
+ * indexing of a jar locks that jar, and whether the jar changed is checked at
+ * most every {@link #CHECK_INTERVAL} ms.
+ */
 public class JarAccess
 {
-    private static LinkedList<String> toSource = new LinkedList<String>();
+    /** Minimum time between two checks of the size and date of a jar, in ms. */
+    public static final long CHECK_INTERVAL = 2000;
 
-    public static InputStream getJavaSourceInputStream(Class<?> clazz)
+    /** Marks the classes not loaded from a jar. */
+    private static final File NO_JAR = new File("");
+
+    /** Index of each jar, by path. */
+    private static final ConcurrentHashMap<File, JarHolder> jars = new ConcurrentHashMap<File, JarHolder>();
+    /** Jar of each class, by name, {@link #NO_JAR} if it is not loaded from a jar. */
+    private static final ConcurrentHashMap<String, File> classJars = new ConcurrentHashMap<String, File>();
+
+    /**
+     * @return true if the source of the class can be read. Cheap enough to be
+     *         called each time a description is displayed.
+     */
+    public static boolean hasSource(Class<?> clazz)
     {
-        String className;
-        if (clazz.isArray())
-            className = clazz.getCanonicalName();
-        else
-            className = clazz.getName();
-        return getJavaSourceInputStream(className);
+        if (clazz.isArray() || clazz.isPrimitive())
+            return false;
+        JarIndex index = getIndex(clazz);
+        if (index != null)
+            return index.contains(getEntryName(clazz));
+        return getURLJava(clazz.getName()) != null;
     }
 
     /**
-     * Make a sensible effort to get the path of the source for a class.
+     * @return the source of the class, <code>null</code> if there is none. The
+     *         stream must be closed.
      */
-    public static InputStream getJavaSourceInputStream(String className)
+    public static InputStream getJavaSourceInputStream(Class<?> clazz)
     {
-        // pauseSourcingProcess(); TODO
-
-        // First, let's try to get the .jar file for said class.
-        URL result = getURLJava(className);
-        if (result == null)
+        if (clazz.isArray() || clazz.isPrimitive())
             return null;
-
         try
         {
-            InputStream stream = result.openStream();
-            toSource.add(className);
-            return stream;
+            JarIndex index = getIndex(clazz);
+            if (index != null)
+                return index.open(getEntryName(clazz));
+            URL result = getURLJava(clazz.getName());
+            if (result != null)
+                return result.openStream();
         }
         catch (IOException e)
         {
@@ -46,6 +75,21 @@ public class JarAccess
         return null;
     }
 
+    /**
+     * Make a sensible effort to get the path of the source for a class.
+     */
+    public static InputStream getJavaSourceInputStream(String className)
+    {
+        try
+        {
+            return getJavaSourceInputStream(ClassUtil.findClass(className));
+        }
+        catch (ClassNotFoundException e)
+        {
+            return null;
+        }
+    }
+
     public static URL getURLJava(String className)
     {
         try
@@ -66,4 +110,203 @@ public class JarAccess
         }
         return null;
     }
+
+    /**
+     * @return the jar file of a "jar:" URL, <code>null</code> if the URL is
+     *         not in a local jar.
+     */
+    static File getJarFile(URL url)
+    {
+        if (url == null || !"jar".equals(url.getProtocol()))
+            return null;
+        String path = url.getPath();
+        int sep = path.indexOf("!/");
+        if (sep == -1)
+            return null;
+        try
+        {
+            return new File(new URL(path.substring(0, sep)).toURI());
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+
+    private static String getEntryName(Class<?> clazz)
+    {
+        return clazz.getName().replace('.', '/') + ".java";
+    }
+
+    /**
+     * @return the index of the jar of the class, <code>null</code> if the class
+     *         is not loaded from a jar.
+     */
+    private static JarIndex getIndex(Class<?> clazz)
+    {
+        String name = clazz.getName();
+        File jar = classJars.get(name);
+        if (jar == null)
+        {
+            jar = getJarFile(clazz.getResource(name.substring(name.lastIndexOf('.') + 1) + ".class"));
+            if (jar == null)
+                jar = NO_JAR;
+            classJars.put(name, jar);
+        }
+        if (jar == NO_JAR)
+            return null;
+        JarHolder holder = jars.get(jar);
+        if (holder == null)
+        {
+            JarHolder newHolder = new JarHolder(jar);
+            holder = jars.putIfAbsent(jar, newHolder);
+            if (holder == null)
+                holder = newHolder;
+        }
+        return holder.get();
+    }
+
+    /**
+     * Index of a jar, built at the first access and again when the jar
+     * changes.
+     */
+    private static class JarHolder
+    {
+        final File file;
+        private volatile JarIndex index;
+        /** Time of the next check of the jar. */
+        private volatile long nextCheck;
+
+        JarHolder(File file)
+        {
+            this.file = file;
+        }
+
+        JarIndex get()
+        {
+            JarIndex current = index;
+            long now = System.currentTimeMillis();
+            if (current != null && now < nextCheck)
+                return current;
+            synchronized (this)
+            {
+                current = index;
+                if (current != null && now < nextCheck)
+                    return current;
+                if (current == null || !current.isUpToDate())
+                {
+                    // the sources being read keep the previous zip open
+                    if (current != null)
+                        current.retire();
+                    current = new JarIndex(file);
+                    index = current;
+                }
+                nextCheck = now + CHECK_INTERVAL;
+                return current;
+            }
+        }
+    }
+
+    /**
+     * The <code>.java</code> entries of a jar.
+     */
+    private static class JarIndex
+    {
+        final File file;
+        final long length;
+        final long lastModified;
+        final HashSet<String> sources = new HashSet<String>();
+        /** Kept open to read the sources, <code>null</code> if the jar cannot be read. */
+        ZipFile zip;
+        /** Guarded by this: streams not closed yet, and index replaced. */
+        private int openStreams = 0;
+        private boolean retired = false;
+
+        JarIndex(File file)
+        {
+            this.file = file;
+            length = file.length();
+            lastModified = file.lastModified();
+            try
+            {
+                zip = new ZipFile(file);
+                for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements();)
+                {
+                    String name = entries.nextElement().getName();
+                    if (name.endsWith(".java"))
+                        sources.add(name);
+                }
+            }
+            catch (IOException e)
+            {
+                System.err.println("Cannot read the sources of " + file + ": " + e.getMessage());
+                sources.clear();
+                close();
+            }
+        }
+
+        boolean isUpToDate()
+        {
+            return file.length() == length && file.lastModified() == lastModified;
+        }
+
+        boolean contains(String entryName)
+        {
+            return sources.contains(entryName);
+        }
+
+        synchronized InputStream open(String entryName) throws IOException
+        {
+            if (zip == null || !sources.contains(entryName))
+                return null;
+            InputStream is = new FilterInputStream(zip.getInputStream(zip.getEntry(entryName)))
+            {
+                private boolean closed = false;
+
+                @Override
+                public void close() throws IOException
+                {
+                    super.close();
+                    if (!closed)
+                    {
+                        closed = true;
+                        streamClosed();
+                    }
+                }
+            };
+            ++openStreams;
+            return is;
+        }
+
+        private synchronized void streamClosed()
+        {
+            --openStreams;
+            if (retired && openStreams == 0)
+                close();
+        }
+
+        /**
+         * Closes the zip once the streams opened on it are closed.
+         */
+        synchronized void retire()
+        {
+            retired = true;
+            if (openStreams == 0)
+                close();
+        }
+
+        private synchronized void close()
+        {
+            if (zip == null)
+                return;
+            try
+            {
+                zip.close();
+            }
+            catch (IOException e)
+            {
+            }
+            zip = null;
+        }
+    }
 }
@@ -0,0 +1,555 @@
+package plugins.tprovoost.scripteditor.javasource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import plugins.tprovoost.scripteditor.javasource.ClassDoc.MemberDoc;
+
+/**
+ * Extracts the documentation of a class from its source in a single pass,
+ * without building a syntax tree. The scanner only tokenizes the declarations
+ * of the class body: the bodies of the methods, the initializers and the
+ * nested types are skipped by counting braces.
+ * <p>
+ * Each method and constructor is recorded with its doc comment, its
+ * parameters and its lines, under the same key as
+ * {@link ClassDoc#key(java.lang.reflect.Method)}: the parameter types are
+ * erased (generic arguments removed, type variables replaced by their bound)
+ * and reduced to their simple name, so that a reflected member is found
+ * without comparing it to every declaration.
+ */
+public class JavadocScanner
+{
+    private static final HashSet<String> MODIFIERS = new HashSet<String>(Arrays.asList("public", "protected",
+            "private", "static", "final", "abstract", "native", "synchronized", "transient", "volatile", "strictfp",
+            "default"));
+
+    private static final HashSet<String> TYPE_KEYWORDS = new HashSet<String>(Arrays.asList("class", "interface",
+            "enum"));
+
+    private final String source;
+    private final String simpleName;
+    private int pos = 0;
+    private int line = 1;
+    /** Line of the last token. */
+    private int tokenLine = 1;
+    /** Token read ahead by {@link #pushBack(String)}. */
+    private String pushedBack;
+    /** Content of the last doc comment, between "/**" and its end. */
+    private String pendingDoc;
+
+    private JavadocScanner(String source, String simpleName)
+    {
+        this.source = source;
+        this.simpleName = simpleName;
+    }
+
+    /**
+     * @param source
+     *        : the source of the file declaring the class.
+     * @param simpleName
+     *        : the simple name of the top level class to document.
+     */
+    public static ClassDoc scan(String source, String simpleName)
+    {
+        return new JavadocScanner(source, simpleName).scanFile();
+    }
+
+    private ClassDoc scanFile()
+    {
+        ArrayList<String> header = new ArrayList<String>();
+        String t;
+        while ((t = next()) != null)
+        {
+            if (t.equals("{"))
+            {
+                int idx = typeNameIndex(header);
+                if (idx != -1 && header.get(idx).equals(simpleName))
+                {
+                    String summary = pendingDoc == null ? null : ClassSource.docCommentToHtml("/**" + pendingDoc
+                            + "*/");
+                    HashMap<String, String> typeVariables = new HashMap<String, String>();
+                    if (idx + 1 < header.size() && header.get(idx + 1).equals("<"))
+                        readTypeParameters(header, idx + 1, typeVariables);
+                    return new ClassDoc(summary, scanBody(typeVariables));
+                }
+                // another top level type of the file
+                skipBlock();
+                header.clear();
+                pendingDoc = null;
+            }
+            else if (t.equals(";"))
+            {
+                // package and imports
+                header.clear();
+                pendingDoc = null;
+            }
+            else if (t.equals("@"))
+            {
+                skipAnnotation();
+            }
+            else
+            {
+                header.add(t);
+            }
+        }
+        return ClassDoc.NONE;
+    }
+
+    /**
+     * Reads the declarations of the class body, until its closing brace.
+     */
+    private HashMap<String, MemberDoc> scanBody(HashMap<String, String> classTypeVariables)
+    {
+        HashMap<String, MemberDoc> members = new HashMap<String, MemberDoc>();
+        ArrayList<String> header = new ArrayList<String>();
+        int headerLine = -1;
+        int angles = 0;
+        boolean assignment = false;
+        String t;
+        while ((t = next()) != null)
+        {
+            if (t.equals("}"))
+                break;
+            if (t.equals(";") || (t.equals(",") && angles == 0))
+            {
+                // field, enum constant
+                header.clear();
+                headerLine = -1;
+                angles = 0;
+                assignment = false;
+                pendingDoc = null;
+            }
+            else if (t.equals("@"))
+            {
+                if (headerLine == -1)
+                    headerLine = tokenLine;
+                skipAnnotation();
+            }
+            else if (t.equals("{"))
+            {
+                skipBlock();
+                if (!assignment)
+                {
+                    // initializer, nested type or enum constant body
+                    header.clear();
+                    headerLine = -1;
+                    angles = 0;
+                    pendingDoc = null;
+                }
+            }
+            else if (t.equals("(") && !assignment)
+            {
+                MemberDoc member = null;
+                String key = null;
+                int n = header.size();
+                String name = n > 0 ? header.get(n - 1) : null;
+                String previous = n > 1 ? header.get(n - 2) : null;
+                boolean named = name != null && isIdentifier(name) && typeNameIndex(header) == -1;
+                boolean constructor = named && name.equals(simpleName)
+                        && (previous == null || previous.equals(">") || MODIFIERS.contains(previous));
+                boolean method = named && !constructor && previous != null && !MODIFIERS.contains(previous);
+                if (constructor || method)
+                {
+                    HashMap<String, String> typeVariables = classTypeVariables;
+                    int typeParams = header.indexOf("<");
+                    if (typeParams != -1 && (typeParams == 0 || MODIFIERS.contains(header.get(typeParams - 1))))
+                    {
+                        typeVariables = new HashMap<String, String>(classTypeVariables);
+                        readTypeParameters(header, typeParams, typeVariables);
+                    }
+                    String doc = pendingDoc;
+                    List<List<String>> params = readParameters();
+                    String[] types = new String[params.size()];
+                    String[] names = new String[params.size()];
+                    StringBuilder sb = new StringBuilder(constructor ? "<init>" : name).append('(');
+                    for (int i = 0; i < params.size(); ++i)
+                    {
+                        List<String> param = params.get(i);
+                        int dims = 0;
+                        while (param.size() > 2 && param.get(param.size() - 1).equals("]"))
+                        {
+                            // C style array: String args[]
+                            param = param.subList(0, param.size() - 2);
+                            ++dims;
+                        }
+                        names[i] = param.isEmpty() ? "arg" + i : param.get(param.size() - 1);
+                        List<String> type = param.subList(0, Math.max(0, param.size() - 1));
+                        types[i] = join(type);
+                        for (int d = 0; d < dims; ++d)
+                            types[i] += "[]";
+                        if (i != 0)
+                            sb.append(',');
+                        sb.append(erasure(type, dims, typeVariables));
+                    }
+                    key = sb.append(')').toString();
+                    int endLine = skipDeclarationEnd();
+                    member = ClassSource.toMemberDoc(doc, types, names, headerLine == -1 ? tokenLine : headerLine,
+                            endLine);
+                }
+                else
+                {
+                    // e.g. enum constant with arguments
+                    skipParentheses();
+                    continue;
+                }
+                if (!members.containsKey(key))
+                    members.put(key, member);
+                header.clear();
+                headerLine = -1;
+                angles = 0;
+                pendingDoc = null;
+            }
+            else
+            {
+                if (t.equals("="))
+                    assignment = true;
+                else if (t.equals("<"))
+                    ++angles;
+                else if (t.equals(">"))
+                    --angles;
+                if (headerLine == -1)
+                    headerLine = tokenLine;
+                header.add(t);
+            }
+        }
+        return members;
+    }
+
+    /**
+     * @return the index of the name of the type declared by the header,
+     *         -1 if it does not declare a type.
+     */
+    private static int typeNameIndex(List<String> header)
+    {
+        for (int i = 0; i < header.size() - 1; ++i)
+            if (TYPE_KEYWORDS.contains(header.get(i)))
+                return i + 1;
+        return -1;
+    }
+
+    /**
+     * Reads the type parameters starting at <code>header[start]</code>
+     * ("&lt;"), and adds their erasure to <code>typeVariables</code>.
+     */
+    private static void readTypeParameters(List<String> header, int start, HashMap<String, String> typeVariables)
+    {
+        int depth = 0;
+        String variable = null;
+        ArrayList<String> bound = new ArrayList<String>();
+        boolean inBound = false;
+        for (int i = start; i < header.size(); ++i)
+        {
+            String t = header.get(i);
+            if (t.equals("<"))
+            {
+                if (++depth == 1)
+                    continue;
+            }
+            else if (t.equals(">"))
+            {
+                if (--depth == 0)
+                {
+                    addTypeVariable(variable, bound, typeVariables);
+                    return;
+                }
+            }
+            if (depth == 1 && t.equals(","))
+            {
+                addTypeVariable(variable, bound, typeVariables);
+                variable = null;
+                bound.clear();
+                inBound = false;
+            }
+            else if (depth == 1 && t.equals("&"))
+            {
+                // only the first bound is kept by the erasure
+                inBound = false;
+            }
+            else if (depth == 1 && t.equals("extends"))
+            {
+                inBound = true;
+            }
+            else if (variable == null)
+            {
+                variable = t;
+            }
+            else if (inBound)
+            {
+                bound.add(t);
+            }
+        }
+    }
+
+    private static void addTypeVariable(String variable, List<String> bound, HashMap<String, String> typeVariables)
+    {
+        if (variable == null)
+            return;
+        typeVariables.put(variable, bound.isEmpty() ? "Object" : erasure(bound, 0, typeVariables));
+    }
+
+    /**
+     * @return the simple name of the erased type, with <code>dims</code> more
+     *         dimensions.
+     */
+    private static String erasure(List<String> type, int dims, HashMap<String, String> typeVariables)
+    {
+        String base = "Object";
+        int depth = 0;
+        for (String t : type)
+        {
+            if (t.equals("<"))
+                ++depth;
+            else if (t.equals(">"))
+                --depth;
+            else if (depth == 0)
+            {
+                if (t.equals("[") || t.equals("..."))
+                    ++dims;
+                else if (isIdentifier(t) && !t.equals("final"))
+                    base = t;
+            }
+        }
+        String variable = typeVariables.get(base);
+        if (variable != null)
+            base = variable;
+        StringBuilder sb = new StringBuilder(base);
+        for (int d = 0; d < dims; ++d)
+            sb.append("[]");
+        return sb.toString();
+    }
+
+    /**
+     * @return the type as written in the source, e.g.
+     *         <code>Map&lt;String, ? extends Number&gt;</code>.
+     */
+    private static String join(List<String> tokens)
+    {
+        StringBuilder sb = new StringBuilder();
+        String previous = null;
+        for (String t : tokens)
+        {
+            if (previous != null
+                    && (previous.equals(",") || (isWord(previous) && isWord(t))))
+                sb.append(' ');
+            sb.append(t);
+            previous = t;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Reads the parameters until the closing parenthesis, without the
+     * annotations and modifiers.
+     */
+    private List<List<String>> readParameters()
+    {
+        ArrayList<List<String>> params = new ArrayList<List<String>>();
+        ArrayList<String> param = new ArrayList<String>();
+        int angles = 0;
+        String t;
+        while ((t = next()) != null)
+        {
+            if (t.equals(")"))
+                break;
+            if (t.equals("@"))
+                skipAnnotation();
+            else if (t.equals(",") && angles == 0)
+            {
+                params.add(param);
+                param = new ArrayList<String>();
+            }
+            else if (!t.equals("final"))
+            {
+                if (t.equals("<"))
+                    ++angles;
+                else if (t.equals(">"))
+                    --angles;
+                param.add(t);
+            }
+        }
+        if (!param.isEmpty())
+            params.add(param);
+        return params;
+    }
+
+    /**
+     * Skips the throws clause and the body of a method, or its default value.
+     *
+     * @return the last line of the declaration.
+     */
+    private int skipDeclarationEnd()
+    {
+        String t;
+        while ((t = next()) != null)
+        {
+            if (t.equals("{"))
+                return skipBlock();
+            if (t.equals(";"))
+                return tokenLine;
+            if (t.equals("@"))
+                skipAnnotation();
+        }
+        return line;
+    }
+
+    /**
+     * Skips the annotation following "@", with its arguments.
+     */
+    private void skipAnnotation()
+    {
+        String t = next();
+        if (t == null)
+            return;
+        if (t.equals("interface"))
+        {
+            // declaration of an annotation type
+            pushBack(t);
+            return;
+        }
+        while ((t = next()) != null && t.equals("."))
+            next();
+        if (t != null)
+        {
+            if (t.equals("("))
+                skipParentheses();
+            else
+                pushBack(t);
+        }
+    }
+
+    /**
+     * Skips until the brace closing the one just read.
+     *
+     * @return the line of the closing brace.
+     */
+    private int skipBlock()
+    {
+        int depth = 1;
+        String t;
+        while ((t = next()) != null)
+        {
+            if (t.equals("{"))
+                ++depth;
+            else if (t.equals("}") && --depth == 0)
+                return tokenLine;
+        }
+        return line;
+    }
+
+    private void skipParentheses()
+    {
+        int depth = 1;
+        String t;
+        while ((t = next()) != null)
+        {
+            if (t.equals("("))
+                ++depth;
+            else if (t.equals(")") && --depth == 0)
+                return;
+        }
+    }
+
+    private void pushBack(String token)
+    {
+        pushedBack = token;
+    }
+
+    /**
+     * @return the next token, <code>null</code> at the end of the source. The
+     *         comments are skipped, the last doc comment is kept in
+     *         {@link #pendingDoc}. The literals are returned as a single
+     *         placeholder token.
+     */
+    private String next()
+    {
+        if (pushedBack != null)
+        {
+            String t = pushedBack;
+            pushedBack = null;
+            return t;
+        }
+        int length = source.length();
+        while (pos < length)
+        {
+            char c = source.charAt(pos);
+            if (c == '\n')
+            {
+                ++line;
+                ++pos;
+            }
+            else if (Character.isWhitespace(c))
+            {
+                ++pos;
+            }
+            else if (c == '/' && pos + 1 < length && source.charAt(pos + 1) == '/')
+            {
+                while (pos < length && source.charAt(pos) != '\n')
+                    ++pos;
+            }
+            else if (c == '/' && pos + 1 < length && source.charAt(pos + 1) == '*')
+            {
+                int end = source.indexOf("*/", pos + 2);
+                if (end == -1)
+                    end = length - 2;
+                boolean doc = pos + 2 < end && source.charAt(pos + 2) == '*';
+                if (doc)
+                    pendingDoc = source.substring(pos + 3, end);
+                countLines(pos, end + 2);
+                pos = end + 2;
+            }
+            else
+            {
+                tokenLine = line;
+                int start = pos;
+                if (Character.isJavaIdentifierPart(c))
+                {
+                    while (pos < length && Character.isJavaIdentifierPart(source.charAt(pos)))
+                        ++pos;
+                    return source.substring(start, pos);
+                }
+                if (c == '"' || c == '\'')
+                {
+                    ++pos;
+                    while (pos < length && source.charAt(pos) != c && source.charAt(pos) != '\n')
+                    {
+                        if (source.charAt(pos) == '\\')
+                            ++pos;
+                        ++pos;
+                    }
+                    ++pos;
+                    return c == '"' ? "\"\"" : "''";
+                }
+                if (c == '.' && source.startsWith("...", pos))
+                {
+                    pos += 3;
+                    return "...";
+                }
+                ++pos;
+                return String.valueOf(c);
+            }
+        }
+        return null;
+    }
+
+    private void countLines(int start, int end)
+    {
+        end = Math.min(end, source.length());
+        for (int i = start; i < end; ++i)
+            if (source.charAt(i) == '\n')
+                ++line;
+    }
+
+    private static boolean isIdentifier(String t)
+    {
+        return Character.isJavaIdentifierStart(t.charAt(0));
+    }
+
+    private static boolean isWord(String t)
+    {
+        return isIdentifier(t) || t.equals("?");
+    }
+}
@@ -9,10 +9,10 @@ import icy.system.thread.ThreadUtil;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.Callable;
 
 import javax.script.ScriptEngineFactory;
 import javax.script.ScriptEngineManager;
-import javax.script.ScriptException;
 
 import plugins.adufour.blocks.lang.Block;
 import plugins.adufour.blocks.util.VarList;
@@ -23,6 +23,8 @@ import plugins.adufour.vars.lang.VarTrigger;
 import plugins.adufour.vars.util.TypeChangeListener;
 import plugins.adufour.vars.util.VarReferencingPolicy;
 import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptEngineHandler;
+import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptScheduler;
+import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptScheduler.Priority;
 import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptVariable;
 import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptingHandler;
 import plugins.tprovoost.scripteditor.scriptinghandlers.VariableType;
@@ -59,7 +61,7 @@ public class Javascript extends Plugin implements Block, VarListListener
     public void run()
     {
 	ScriptingHandler handler = inputScript.getEditor().getPanelIn().getScriptHandler();
-	JSScriptEngine engine = (JSScriptEngine) handler.createNewEngine();
+	final JSScriptEngine engine = (JSScriptEngine) handler.createNewEngine();
 	// String language = inputScript.getEditor().panelIn.getLanguage();
 
 	for (Var<?> var : inputMap)
@@ -77,8 +79,23 @@ public class Javascript extends Plugin implements Block, VarListListener
 	}
 	try
 	{
-	    inputScript.evaluate();
-	} catch (ScriptException e)
+	    // queued with the other scripts, runs after the interactive ones
+	    ScriptScheduler.getInstance().invokeAndWait(engine, Priority.BATCH, new Callable<Object>()
+	    {
+		@Override
+		public Object call() throws Exception
+		{
+		    inputScript.evaluate();
+		    return null;
+		}
+	    });
+	} catch (InterruptedException e)
+	{
+	    // the protocol was stopped: the scheduler drops the task if it did
+	    // not start, the engine stops it otherwise
+	    engine.cancel("interrupted");
+	    throw new IcyHandledException("Script interrupted");
+	} catch (Exception e)
 	{
 	    throw new IcyHandledException(e.getMessage());
 	}
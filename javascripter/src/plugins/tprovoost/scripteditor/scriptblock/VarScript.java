@@ -7,7 +7,6 @@ import org.w3c.dom.Node;
 import plugins.adufour.vars.gui.VarEditor;
 import plugins.adufour.vars.lang.VarString;
 import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptEngine;
-import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptEngineHandler;
 
 public class VarScript extends VarString
 {
@@ -41,7 +40,8 @@ public class VarScript extends VarString
 
 	public void evaluate() throws ScriptException
 	{
-		ScriptEngine engine = ScriptEngineHandler.getEngine("javascript");
+		// engine of the block, not shared with the other blocks and tabs
+		ScriptEngine engine = getEngine();
 		engine.eval(getValue());
 	}
 
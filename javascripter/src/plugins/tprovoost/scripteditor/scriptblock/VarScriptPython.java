@@ -7,7 +7,6 @@ import org.w3c.dom.Node;
 import plugins.adufour.vars.gui.VarEditor;
 import plugins.adufour.vars.lang.VarString;
 import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptEngine;
-import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptEngineHandler;
 
 public class VarScriptPython extends VarScript
 {
@@ -21,7 +20,7 @@ public class VarScriptPython extends VarScript
 
     public void evaluate() throws ScriptException
     {
-	ScriptEngine engine = ScriptEngineHandler.getEngine("python");
+	ScriptEngine engine = getEngine();
 	engine.eval(getValue());
     }
 
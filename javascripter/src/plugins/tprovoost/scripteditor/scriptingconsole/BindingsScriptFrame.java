@@ -6,7 +6,7 @@ import icy.system.thread.ThreadUtil;
 import java.awt.BorderLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.util.Set;
+import java.util.ArrayList;
 
 import javax.swing.Box;
 import javax.swing.BoxLayout;
@@ -23,8 +23,8 @@ import org.mozilla.javascript.NativeArray;
 import org.mozilla.javascript.NativeJavaObject;
 import org.mozilla.javascript.Scriptable;
 
+import plugins.tprovoost.scripteditor.scriptinghandlers.BindingsChanges;
 import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptEngine;
-import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptEngineHandler;
 
 // FIXME
 public class BindingsScriptFrame extends IcyFrame
@@ -105,20 +105,40 @@ public class BindingsScriptFrame extends IcyFrame
 		this.engine = engine;
 	}
 
+	/**
+	 * Refreshes the table. Only the bindings changed since the last update are
+	 * processed, unless the engine changed.
+	 */
 	public void update()
 	{
 		if (engine != null)
 		{
-			String languageName = engine.getName();
-			ScriptEngine engine = ScriptEngineHandler.getEngine(languageName);
-			if (engine != this.engine)
-				this.engine = engine;
+			// the last engine which ran a script (tab or console)
+			ScriptEngine engine = this.engine;
+			final ScriptEngine displayed = engine;
+			final ArrayList<String> names;
+			final BindingsChanges changes;
+			if (engine != model.engine)
+			{
+				// new engine: reset its changes and reload everything
+				engine.getBindingsChanges();
+				names = new ArrayList<String>(engine.getBindings().keySet());
+				changes = null;
+			} else
+			{
+				names = null;
+				changes = engine.getBindingsChanges();
+			}
+			this.engine = engine;
 			ThreadUtil.invokeLater(new Runnable()
 			{
 				@Override
 				public void run()
 				{
-					model.fireTableDataChanged();
+					if (changes == null)
+						model.reload(displayed, names);
+					else
+						model.apply(changes);
 					listVariables.repaint();
 				}
 			});
@@ -133,6 +153,40 @@ public class BindingsScriptFrame extends IcyFrame
 		 */
 		private static final long serialVersionUID = 1L;
 
+		/** Engine and names currently displayed, only modified in the EDT. */
+		private ScriptEngine engine;
+		private ArrayList<String> names = new ArrayList<String>();
+
+		void reload(ScriptEngine engine, ArrayList<String> names)
+		{
+			this.engine = engine;
+			this.names = names;
+			fireTableDataChanged();
+		}
+
+		void apply(BindingsChanges changes)
+		{
+			if (changes.isEmpty())
+				return;
+			if (!changes.getRemoved().isEmpty())
+			{
+				names.removeAll(changes.getRemoved());
+				fireTableDataChanged();
+			}
+			if (!changes.getAdded().isEmpty())
+			{
+				int first = names.size();
+				names.addAll(changes.getAdded());
+				fireTableRowsInserted(first, names.size() - 1);
+			}
+			for (String name : changes.getChanged())
+			{
+				int row = names.indexOf(name);
+				if (row != -1)
+					fireTableRowsUpdated(row, row);
+			}
+		}
+
 		@Override
 		public String getColumnName(int column)
 		{
@@ -157,30 +211,18 @@ public class BindingsScriptFrame extends IcyFrame
 		@Override
 		public int getRowCount()
 		{
-			if (engine != null)
-				return engine.getBindings().values().size();
-			return 0;
+			return names.size();
 		}
 
 		@Override
 		public Object getValueAt(int rowIndex, int columnIndex)
 		{
-			Set<String> keyset = engine.getBindings().keySet();
-			if (rowIndex >= 0 && rowIndex < keyset.size())
-			{
-				if (engine == null)
-					return null;
-				if (columnIndex == 0)
-				{
-					return keyset.toArray()[rowIndex];
-				} else
-				{
-					Object o = engine.getBindings().values().toArray()[rowIndex];
-					// Class<?> clazz = o.getClass();
-					return o;
-				}
-			}
-			return null;
+			if (engine == null || rowIndex < 0 || rowIndex >= names.size())
+				return null;
+			String name = names.get(rowIndex);
+			if (columnIndex == 0)
+				return name;
+			return engine.getBindings().get(name);
 		}
 	}
 
@@ -27,6 +27,7 @@ import javax.swing.text.Style;
 import org.fife.ui.autocomplete.Completion;
 
 import plugins.tprovoost.scripteditor.completion.IcyCompletionProvider;
+import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptScheduler.Priority;
 import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptingHandler;
 // import plugins.tprovoost.scripteditor.scriptinghandlers.JSScriptingHandler62;
 import plugins.tprovoost.scripteditor.scriptinghandlers.js.JSScriptingHandlerRhino;
@@ -65,6 +66,7 @@ public class Scriptingconsole extends JTextField implements KeyListener, MouseLi
         scriptHandler.setForceRun(false);
         scriptHandler.setStrict(false);
         scriptHandler.setVarInterpretation(false);
+        scriptHandler.setPriority(Priority.INTERACTIVE);
 
         setMinimumSize(new Dimension(0, 25));
         setPreferredSize(new Dimension(0, 25));
@@ -99,6 +101,7 @@ public class Scriptingconsole extends JTextField implements KeyListener, MouseLi
             scriptHandler.setForceRun(false);
             scriptHandler.setStrict(false);
             scriptHandler.setVarInterpretation(false);
+            scriptHandler.setPriority(Priority.INTERACTIVE);
         }
     }
 
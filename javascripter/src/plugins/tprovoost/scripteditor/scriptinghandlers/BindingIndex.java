@@ -0,0 +1,252 @@
+package plugins.tprovoost.scripteditor.scriptinghandlers;
+
+import icy.file.FileUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import plugins.tprovoost.scripteditor.scriptinghandlers.BindingScanner.BindingSignature;
+import plugins.tprovoost.scripteditor.scriptinghandlers.BindingScanner.JarContent;
+
+/**
+ * Persistent index of the class names and binding functions of the plugin
+ * jars. Each jar is identified by its path, size and modification time: only
+ * the jars added or modified since the last start are scanned again.
+ * <p>
+ * Binary format: magic, version, number of jars, then for each jar its path,
+ * size, modification time, class names and modifiers, and binding
+ * signatures.
+ */
+public class BindingIndex
+{
+	private static final int MAGIC = 0x42494458; // "BIDX"
+	private static final int VERSION = 2;
+
+	private final File file;
+	private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+	private boolean modified = false;
+
+	private BindingIndex(File file)
+	{
+		this.file = file;
+	}
+
+	/**
+	 * @return the file used by the Script Editor.
+	 */
+	public static File getDefaultFile()
+	{
+		return new File(FileUtil.getApplicationDirectory() + File.separator + "scripteditor" + File.separator + "bindings.idx");
+	}
+
+	/**
+	 * Reads the index. A missing, corrupted or outdated file gives an empty
+	 * index.
+	 */
+	public static BindingIndex load(File file)
+	{
+		BindingIndex index = new BindingIndex(file);
+		if (!file.isFile())
+			return index;
+		try
+		{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try
+			{
+				if (in.readInt() != MAGIC || in.readInt() != VERSION)
+					return index;
+				int jars = in.readInt();
+				for (int j = 0; j < jars; ++j)
+				{
+					String path = in.readUTF();
+					long size = in.readLong();
+					long lastModified = in.readLong();
+					JarContent content = new JarContent();
+					int classes = in.readInt();
+					for (int c = 0; c < classes; ++c)
+					{
+						content.classNames.add(in.readUTF());
+						content.classModifiers.add(in.readInt());
+					}
+					int bindings = in.readInt();
+					for (int b = 0; b < bindings; ++b)
+						content.bindings.add(new BindingSignature(in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(), in.readBoolean()));
+					index.entries.put(path, new Entry(size, lastModified, content));
+				}
+			} finally
+			{
+				in.close();
+			}
+		} catch (IOException e)
+		{
+			// rebuilt from the jars
+			index.entries.clear();
+		}
+		return index;
+	}
+
+	/**
+	 * Writes the index if it was modified.
+	 */
+	public void save()
+	{
+		if (!modified)
+			return;
+		File parent = file.getParentFile();
+		if (parent != null)
+			parent.mkdirs();
+		try
+		{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			try
+			{
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(entries.size());
+				for (Map.Entry<String, Entry> e : entries.entrySet())
+				{
+					Entry entry = e.getValue();
+					out.writeUTF(e.getKey());
+					out.writeLong(entry.size);
+					out.writeLong(entry.lastModified);
+					out.writeInt(entry.content.classNames.size());
+					for (int c = 0; c < entry.content.classNames.size(); ++c)
+					{
+						out.writeUTF(entry.content.classNames.get(c));
+						out.writeInt(entry.content.classModifiers.get(c));
+					}
+					out.writeInt(entry.content.bindings.size());
+					for (BindingSignature binding : entry.content.bindings)
+					{
+						out.writeUTF(binding.getClassName());
+						out.writeUTF(binding.getMethodName());
+						out.writeUTF(binding.getDescriptor());
+						out.writeUTF(binding.getBindingName());
+						out.writeBoolean(binding.isStatic());
+					}
+				}
+			} finally
+			{
+				out.close();
+			}
+			modified = false;
+		} catch (IOException e)
+		{
+			System.err.println("Cannot save the bindings index " + file + ": " + e.getMessage());
+			file.delete();
+		}
+	}
+
+	/**
+	 * Returns the content of the jars, scanning only the ones not in the index
+	 * or modified. The jars no longer given are removed from the index.
+	 */
+	public Map<File, JarContent> scan(Collection<File> jars)
+	{
+		LinkedHashMap<File, JarContent> result = new LinkedHashMap<File, JarContent>();
+		ArrayList<File> changed = new ArrayList<File>();
+		HashMap<String, Entry> kept = new HashMap<String, Entry>();
+		for (File jar : jars)
+		{
+			String path = jar.getAbsolutePath();
+			Entry entry = entries.get(path);
+			if (entry != null && entry.size == jar.length() && entry.lastModified == jar.lastModified())
+			{
+				kept.put(path, entry);
+				result.put(jar, entry.content);
+			} else
+			{
+				changed.add(jar);
+				// keep the order of the jars
+				result.put(jar, null);
+			}
+		}
+		if (kept.size() != entries.size())
+			modified = true;
+		entries.clear();
+		entries.putAll(kept);
+
+		if (!changed.isEmpty())
+		{
+			Map<File, JarContent> scanned = BindingScanner.scanJars(changed);
+			for (File jar : changed)
+			{
+				JarContent content = scanned.get(jar);
+				if (content == null)
+				{
+					result.remove(jar);
+					continue;
+				}
+				result.put(jar, content);
+				entries.put(jar.getAbsolutePath(), new Entry(jar.length(), jar.lastModified(), content));
+			}
+			modified = true;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the content of one jar, scanning it only if it is not in the
+	 * index or modified.
+	 */
+	public JarContent update(File jar) throws IOException
+	{
+		String path = jar.getAbsolutePath();
+		Entry entry = entries.get(path);
+		if (entry != null && entry.size == jar.length() && entry.lastModified == jar.lastModified())
+			return entry.content;
+		JarContent content = BindingScanner.scanJar(jar);
+		entries.put(path, new Entry(jar.length(), jar.lastModified(), content));
+		modified = true;
+		return content;
+	}
+
+	/**
+	 * Removes a jar from the index.
+	 *
+	 * @return its indexed content, <code>null</code> if it was not indexed.
+	 */
+	public JarContent remove(File jar)
+	{
+		Entry entry = entries.remove(jar.getAbsolutePath());
+		if (entry == null)
+			return null;
+		modified = true;
+		return entry.content;
+	}
+
+	/**
+	 * Content of the jar at the given path, or <code>null</code> if it is not
+	 * indexed.
+	 */
+	public JarContent get(File jar)
+	{
+		Entry entry = entries.get(jar.getAbsolutePath());
+		return entry == null ? null : entry.content;
+	}
+
+	private static class Entry
+	{
+		final long size;
+		final long lastModified;
+		final JarContent content;
+
+		Entry(long size, long lastModified, JarContent content)
+		{
+			this.size = size;
+			this.lastModified = lastModified;
+			this.content = content;
+		}
+	}
+}
@@ -0,0 +1,451 @@
+package plugins.tprovoost.scripteditor.scriptinghandlers;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import plugins.tprovoost.scripteditor.completion.types.ScriptFunctionCompletion.BindingFunction;
+
+/**
+ * Finds the methods annotated with {@link BindingFunction} by reading the
+ * class files of the jars, without loading the classes: only the constant pool,
+ * the modifiers and the method annotations are parsed. The top-level class
+ * files not referencing the annotation are skipped after their modifiers.
+ */
+public class BindingScanner
+{
+	private static final String BINDING_DESCRIPTOR = "L" + BindingFunction.class.getName().replace('.', '/') + ";";
+	private static final String ANNOTATIONS_ATTRIBUTE = "RuntimeVisibleAnnotations";
+
+	private static final String INNER_CLASSES_ATTRIBUTE = "InnerClasses";
+
+	private static final int ACC_PUBLIC = 0x0001;
+	private static final int ACC_STATIC = 0x0008;
+
+	/** Class file flags with the same meaning as in {@link java.lang.reflect.Modifier}. */
+	private static final int CLASS_MODIFIERS = 0x0001 | 0x0002 | 0x0004 | 0x0008 | 0x0010 | 0x0200 | 0x0400;
+
+	/** Modifiers of a class file which could not be read. */
+	public static final int UNKNOWN_MODIFIERS = -1;
+
+	/**
+	 * Scans the jars in parallel.
+	 *
+	 * @return the content of each jar, in the order of <code>jars</code>. The
+	 *         jars which cannot be read are missing.
+	 */
+	public static Map<File, JarContent> scanJars(Collection<File> jars)
+	{
+		LinkedHashMap<File, JarContent> result = new LinkedHashMap<File, JarContent>();
+		if (jars.isEmpty())
+			return result;
+
+		int threads = Math.min(jars.size(), Runtime.getRuntime().availableProcessors());
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try
+		{
+			LinkedHashMap<File, Future<JarContent>> futures = new LinkedHashMap<File, Future<JarContent>>();
+			for (final File jar : jars)
+			{
+				futures.put(jar, executor.submit(new Callable<JarContent>()
+				{
+					@Override
+					public JarContent call() throws Exception
+					{
+						return scanJar(jar);
+					}
+				}));
+			}
+			for (Map.Entry<File, Future<JarContent>> entry : futures.entrySet())
+			{
+				try
+				{
+					result.put(entry.getKey(), entry.getValue().get());
+				} catch (ExecutionException e)
+				{
+					System.err.println("Cannot read " + entry.getKey() + ": " + e.getCause());
+				} catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		} finally
+		{
+			executor.shutdownNow();
+		}
+		return result;
+	}
+
+	/**
+	 * Lists the classes of the jar and their binding functions.
+	 */
+	public static JarContent scanJar(File jar) throws IOException
+	{
+		JarContent content = new JarContent();
+		ZipFile zip = new ZipFile(jar);
+		try
+		{
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements())
+			{
+				ZipEntry entry = entries.nextElement();
+				String name = entry.getName();
+				if (entry.isDirectory() || !name.endsWith(".class"))
+					continue;
+				content.classNames.add(name.substring(0, name.length() - ".class".length()).replace('/', '.'));
+				InputStream is = zip.getInputStream(entry);
+				try
+				{
+					content.classModifiers.add(scanClass(is, content.bindings));
+				} catch (IOException e)
+				{
+					// corrupted class file, ignore it
+					content.classModifiers.add(UNKNOWN_MODIFIERS);
+				} finally
+				{
+					is.close();
+				}
+			}
+		} finally
+		{
+			zip.close();
+		}
+		return content;
+	}
+
+	/**
+	 * Parses a class file and adds its binding functions to
+	 * <code>bindings</code>.
+	 *
+	 * @return the modifiers of the class, as given by
+	 *         {@link Class#getModifiers()}.
+	 */
+	public static int scanClass(InputStream is, List<BindingSignature> bindings) throws IOException
+	{
+		DataInputStream in = new DataInputStream(is);
+		if (in.readInt() != 0xCAFEBABE)
+			throw new IOException("Not a class file");
+		in.readUnsignedShort(); // minor
+		in.readUnsignedShort(); // major
+
+		// constant pool: only the UTF8 and class entries are kept
+		int count = in.readUnsignedShort();
+		String[] utf8 = new String[count];
+		int[] classes = new int[count];
+		boolean annotated = false;
+		for (int i = 1; i < count; ++i)
+		{
+			int tag = in.readUnsignedByte();
+			switch (tag)
+			{
+			case 1: // Utf8
+				utf8[i] = in.readUTF();
+				if (BINDING_DESCRIPTOR.equals(utf8[i]))
+					annotated = true;
+				break;
+			case 7: // Class
+				classes[i] = in.readUnsignedShort();
+				break;
+			case 8: // String
+			case 16: // MethodType
+			case 19: // Module
+			case 20: // Package
+				in.skipBytes(2);
+				break;
+			case 15: // MethodHandle
+				in.skipBytes(3);
+				break;
+			case 3: // Integer
+			case 4: // Float
+			case 9: // Fieldref
+			case 10: // Methodref
+			case 11: // InterfaceMethodref
+			case 12: // NameAndType
+			case 17: // Dynamic
+			case 18: // InvokeDynamic
+				in.skipBytes(4);
+				break;
+			case 5: // Long
+			case 6: // Double
+				in.skipBytes(8);
+				++i;
+				break;
+			default:
+				throw new IOException("Unknown constant pool tag " + tag);
+			}
+		}
+		int modifiers = in.readUnsignedShort() & CLASS_MODIFIERS;
+		int thisClass = classes[in.readUnsignedShort()];
+		String className = utf8[thisClass].replace('/', '.');
+		// the modifiers of a member class are in its InnerClasses attribute
+		boolean nested = className.indexOf('$') != -1;
+		if (!annotated && !nested)
+			return modifiers;
+
+		in.readUnsignedShort(); // super class
+		in.skipBytes(2 * in.readUnsignedShort()); // interfaces
+
+		// fields
+		int fields = in.readUnsignedShort();
+		for (int i = 0; i < fields; ++i)
+		{
+			in.skipBytes(6);
+			skipAttributes(in);
+		}
+
+		// methods
+		int methods = in.readUnsignedShort();
+		for (int i = 0; i < methods; ++i)
+		{
+			int access = in.readUnsignedShort();
+			String methodName = utf8[in.readUnsignedShort()];
+			String descriptor = utf8[in.readUnsignedShort()];
+			int attributes = in.readUnsignedShort();
+			for (int a = 0; a < attributes; ++a)
+			{
+				String attributeName = utf8[in.readUnsignedShort()];
+				int length = in.readInt();
+				if (!annotated || !ANNOTATIONS_ATTRIBUTE.equals(attributeName))
+				{
+					in.skipBytes(length);
+					continue;
+				}
+				int annotations = in.readUnsignedShort();
+				for (int n = 0; n < annotations; ++n)
+				{
+					String type = utf8[in.readUnsignedShort()];
+					String value = readAnnotationValue(in, utf8, BINDING_DESCRIPTOR.equals(type));
+					if (value != null && (access & ACC_PUBLIC) != 0)
+						bindings.add(new BindingSignature(className, methodName, descriptor, value, (access & ACC_STATIC) != 0));
+				}
+			}
+		}
+		if (!nested)
+			return modifiers;
+
+		int attributes = in.readUnsignedShort();
+		for (int a = 0; a < attributes; ++a)
+		{
+			String attributeName = utf8[in.readUnsignedShort()];
+			int length = in.readInt();
+			if (!INNER_CLASSES_ATTRIBUTE.equals(attributeName))
+			{
+				in.skipBytes(length);
+				continue;
+			}
+			int innerClasses = in.readUnsignedShort();
+			for (int i = 0; i < innerClasses; ++i)
+			{
+				int inner = in.readUnsignedShort();
+				in.skipBytes(4); // outer class and simple name
+				int access = in.readUnsignedShort();
+				if (classes[inner] == thisClass)
+					modifiers = access & CLASS_MODIFIERS;
+			}
+			break;
+		}
+		return modifiers;
+	}
+
+	/**
+	 * Reads the modifiers of a class from its class file, without loading
+	 * it.
+	 *
+	 * @return the modifiers, {@link #UNKNOWN_MODIFIERS} if the class file
+	 *         cannot be found or read.
+	 */
+	public static int readModifiers(ClassLoader loader, String className)
+	{
+		InputStream is = loader.getResourceAsStream(className.replace('.', '/') + ".class");
+		if (is == null)
+			return UNKNOWN_MODIFIERS;
+		try
+		{
+			try
+			{
+				return scanClass(is, new ArrayList<BindingSignature>());
+			} finally
+			{
+				is.close();
+			}
+		} catch (IOException e)
+		{
+			return UNKNOWN_MODIFIERS;
+		}
+	}
+
+	/**
+	 * Reads the element/value pairs of an annotation.
+	 *
+	 * @return the <code>value</code> string element if <code>keep</code>,
+	 *         <code>null</code> otherwise.
+	 */
+	private static String readAnnotationValue(DataInputStream in, String[] utf8, boolean keep) throws IOException
+	{
+		String value = null;
+		int pairs = in.readUnsignedShort();
+		for (int p = 0; p < pairs; ++p)
+		{
+			String name = utf8[in.readUnsignedShort()];
+			int tag = in.readUnsignedByte();
+			if (keep && tag == 's' && "value".equals(name))
+				value = utf8[in.readUnsignedShort()];
+			else
+				skipElementValue(in, tag);
+		}
+		return value;
+	}
+
+	private static void skipElementValue(DataInputStream in, int tag) throws IOException
+	{
+		switch (tag)
+		{
+		case 'e':
+			in.skipBytes(4);
+			break;
+		case '@':
+			in.skipBytes(2);
+			int pairs = in.readUnsignedShort();
+			for (int p = 0; p < pairs; ++p)
+			{
+				in.skipBytes(2);
+				skipElementValue(in, in.readUnsignedByte());
+			}
+			break;
+		case '[':
+			int values = in.readUnsignedShort();
+			for (int v = 0; v < values; ++v)
+				skipElementValue(in, in.readUnsignedByte());
+			break;
+		default:
+			// constants and classes
+			in.skipBytes(2);
+		}
+	}
+
+	private static void skipAttributes(DataInputStream in) throws IOException
+	{
+		int attributes = in.readUnsignedShort();
+		for (int a = 0; a < attributes; ++a)
+		{
+			in.skipBytes(2);
+			in.skipBytes(in.readInt());
+		}
+	}
+
+	/**
+	 * Same as {@link #scanClass(InputStream, List)} on the bytes of a class
+	 * file.
+	 */
+	public static List<BindingSignature> scanClass(byte[] bytes) throws IOException
+	{
+		ArrayList<BindingSignature> bindings = new ArrayList<BindingSignature>();
+		scanClass(new ByteArrayInputStream(bytes), bindings);
+		return bindings;
+	}
+
+	/**
+	 * Classes and binding functions of a jar.
+	 */
+	public static class JarContent
+	{
+		final List<String> classNames = new ArrayList<String>();
+		final List<Integer> classModifiers = new ArrayList<Integer>();
+		final List<BindingSignature> bindings = new ArrayList<BindingSignature>();
+
+		public List<String> getClassNames()
+		{
+			return classNames;
+		}
+
+		/**
+		 * @return the modifiers of the classes, in the order of
+		 *         {@link #getClassNames()}.
+		 */
+		public List<Integer> getClassModifiers()
+		{
+			return classModifiers;
+		}
+
+		public List<BindingSignature> getBindings()
+		{
+			return bindings;
+		}
+	}
+
+	/**
+	 * A method annotated with {@link BindingFunction}, as found in the class
+	 * file. The class is only loaded when the method is resolved.
+	 */
+	public static class BindingSignature
+	{
+		private final String className;
+		private final String methodName;
+		private final String descriptor;
+		private final String bindingName;
+		private final boolean isStatic;
+
+		public BindingSignature(String className, String methodName, String descriptor, String bindingName, boolean isStatic)
+		{
+			this.className = className;
+			this.methodName = methodName;
+			this.descriptor = descriptor;
+			this.bindingName = bindingName;
+			this.isStatic = isStatic;
+		}
+
+		public String getClassName()
+		{
+			return className;
+		}
+
+		public String getMethodName()
+		{
+			return methodName;
+		}
+
+		/**
+		 * @return the JVM descriptor of the method, e.g.
+		 *         <code>(Ljava/lang/String;I)V</code>.
+		 */
+		public String getDescriptor()
+		{
+			return descriptor;
+		}
+
+		/**
+		 * @return the name given in the annotation.
+		 */
+		public String getBindingName()
+		{
+			return bindingName;
+		}
+
+		public boolean isStatic()
+		{
+			return isStatic;
+		}
+
+		@Override
+		public String toString()
+		{
+			return className + "." + methodName + descriptor + " -> " + bindingName;
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package plugins.tprovoost.scripteditor.scriptinghandlers;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Names of the bindings added, changed or removed in an engine between two
+ * calls to {@link ScriptEngine#getBindingsChanges()}.
+ */
+public class BindingsChanges
+{
+	private final Set<String> added = new LinkedHashSet<String>();
+	private final Set<String> changed = new LinkedHashSet<String>();
+	private final Set<String> removed = new LinkedHashSet<String>();
+
+	public void markAdded(String name)
+	{
+		added.add(name);
+	}
+
+	public void markChanged(String name)
+	{
+		changed.add(name);
+	}
+
+	public void markRemoved(String name)
+	{
+		removed.add(name);
+	}
+
+	public Set<String> getAdded()
+	{
+		return Collections.unmodifiableSet(added);
+	}
+
+	public Set<String> getChanged()
+	{
+		return Collections.unmodifiableSet(changed);
+	}
+
+	public Set<String> getRemoved()
+	{
+		return Collections.unmodifiableSet(removed);
+	}
+
+	public boolean isEmpty()
+	{
+		return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "added: " + added + ", changed: " + changed + ", removed: " + removed;
+	}
+}
@@ -0,0 +1,245 @@
+package plugins.tprovoost.scripteditor.scriptinghandlers;
+
+import icy.plugin.PluginLoader;
+import icy.util.ClassUtil;
+
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Set;
+
+import plugins.tprovoost.scripteditor.completion.CompletionMatcher;
+
+/**
+ * Immutable catalog of the classes of Icy and the plugins, sorted by simple
+ * name for the class-name completion. A prefix lookup is a binary search, a
+ * {@link CompletionMatcher} search a scan of the precomputed simple names. The
+ * modifiers read from the class files are kept: no class is loaded until a
+ * completion is selected.
+ * <p>
+ * The modifiers of the classes not found in the plugin jars are read from
+ * their class file at their first lookup, and remembered.
+ */
+public class ClassCatalog
+{
+	public static final ClassCatalog EMPTY = new Builder().build();
+
+	/** Full names, sorted by simple name. */
+	private final String[] names;
+	private final String[] simpleNames;
+	/** Lower case simple names, sorted. */
+	private final String[] keys;
+	/** Resolved at the first lookup if unknown, a benign race. */
+	private final int[] modifiers;
+
+	private ClassCatalog(String[] names, String[] simpleNames, String[] keys, int[] modifiers)
+	{
+		this.names = names;
+		this.simpleNames = simpleNames;
+		this.keys = keys;
+		this.modifiers = modifiers;
+	}
+
+	/**
+	 * @return the simple name of the class, e.g. <code>Inner</code> for
+	 *         <code>icy.Outer$Inner</code>.
+	 */
+	public static String getSimpleName(String className)
+	{
+		int idx = Math.max(className.lastIndexOf('.'), className.lastIndexOf('$'));
+		return className.substring(idx + 1);
+	}
+
+	public int size()
+	{
+		return names.length;
+	}
+
+	/**
+	 * @return the index of the first class whose simple name starts with
+	 *         <code>prefix</code>, ignoring the case.
+	 * @see #endOf(String)
+	 */
+	public int startOf(String prefix)
+	{
+		return lowerBound(prefix.toLowerCase());
+	}
+
+	/**
+	 * @return the index following the last class whose simple name starts
+	 *         with <code>prefix</code>, ignoring the case.
+	 */
+	public int endOf(String prefix)
+	{
+		return lowerBound(prefix.toLowerCase() + Character.MAX_VALUE);
+	}
+
+	private int lowerBound(String key)
+	{
+		int low = 0;
+		int high = keys.length;
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (keys[mid].compareTo(key) < 0)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Finds the classes whose simple name matches <code>text</code> (prefix,
+	 * camel humps or subsequence, see {@link CompletionMatcher}).
+	 *
+	 * @return the indexes of at most <code>max</code> classes, best match
+	 *         first. The search stops early if the thread is interrupted (the
+	 *         completion was cancelled).
+	 */
+	public int[] search(String text, int max)
+	{
+		// score and index packed in a long: one array, sorted in place
+		long[] found = new long[64];
+		int count = 0;
+		for (int i = 0; i < simpleNames.length; ++i)
+		{
+			if ((i & 0xfff) == 0 && Thread.currentThread().isInterrupted())
+				break;
+			int score = CompletionMatcher.match(text, simpleNames[i]);
+			if (score == CompletionMatcher.NO_MATCH)
+				continue;
+			if (count == found.length)
+				found = Arrays.copyOf(found, count * 2);
+			found[count++] = ((long) (Integer.MAX_VALUE - score) << 32) | i;
+		}
+		Arrays.sort(found, 0, count);
+		int[] result = new int[Math.min(count, max)];
+		for (int i = 0; i < result.length; ++i)
+			result[i] = (int) found[i];
+		return result;
+	}
+
+	public String getName(int index)
+	{
+		return names[index];
+	}
+
+	public String getSimpleName(int index)
+	{
+		return simpleNames[index];
+	}
+
+	/**
+	 * @return the modifiers of the class, as given by
+	 *         {@link Class#getModifiers()}, 0 if they cannot be read.
+	 */
+	public int getModifiers(int index)
+	{
+		int m = modifiers[index];
+		if (m == BindingScanner.UNKNOWN_MODIFIERS)
+		{
+			m = BindingScanner.readModifiers(PluginLoader.getLoader(), names[index]);
+			if (m == BindingScanner.UNKNOWN_MODIFIERS)
+				m = 0;
+			modifiers[index] = m;
+		}
+		return m;
+	}
+
+	public boolean isPublic(int index)
+	{
+		return Modifier.isPublic(getModifiers(index));
+	}
+
+	public boolean isStatic(int index)
+	{
+		return Modifier.isStatic(getModifiers(index));
+	}
+
+	public boolean isInterface(int index)
+	{
+		return Modifier.isInterface(getModifiers(index));
+	}
+
+	public Class<?> loadClass(int index) throws ClassNotFoundException
+	{
+		return ClassUtil.findClass(names[index]);
+	}
+
+	/**
+	 * Builds a catalog.
+	 */
+	public static class Builder
+	{
+		private final ArrayList<String> names = new ArrayList<String>();
+		private int[] modifiers = new int[256];
+
+		/**
+		 * @param modifiers
+		 *            : modifiers of the class,
+		 *            {@link BindingScanner#UNKNOWN_MODIFIERS} to read them at
+		 *            the first lookup.
+		 */
+		public Builder add(String className, int modifiers)
+		{
+			if (names.size() == this.modifiers.length)
+				this.modifiers = Arrays.copyOf(this.modifiers, this.modifiers.length * 2);
+			this.modifiers[names.size()] = modifiers;
+			names.add(className);
+			return this;
+		}
+
+		/**
+		 * Adds the classes of <code>catalog</code> not in
+		 * <code>excluded</code>.
+		 */
+		public Builder addAll(ClassCatalog catalog, Set<String> excluded)
+		{
+			for (int i = 0; i < catalog.size(); ++i)
+				if (!excluded.contains(catalog.names[i]))
+					add(catalog.names[i], catalog.modifiers[i]);
+			return this;
+		}
+
+		public ClassCatalog build()
+		{
+			final int size = names.size();
+			final String[] keys = new String[size];
+			final String[] simpleNames = new String[size];
+			Integer[] order = new Integer[size];
+			for (int i = 0; i < size; ++i)
+			{
+				simpleNames[i] = getSimpleName(names.get(i));
+				keys[i] = simpleNames[i].toLowerCase();
+				order[i] = i;
+			}
+			Arrays.sort(order, new Comparator<Integer>()
+			{
+				@Override
+				public int compare(Integer o1, Integer o2)
+				{
+					int compare = keys[o1].compareTo(keys[o2]);
+					if (compare == 0)
+						compare = names.get(o1).compareTo(names.get(o2));
+					return compare;
+				}
+			});
+
+			String[] sortedNames = new String[size];
+			String[] sortedSimpleNames = new String[size];
+			String[] sortedKeys = new String[size];
+			int[] sortedModifiers = new int[size];
+			for (int i = 0; i < size; ++i)
+			{
+				int o = order[i];
+				sortedNames[i] = names.get(o);
+				sortedSimpleNames[i] = simpleNames[o];
+				sortedKeys[i] = keys[o];
+				sortedModifiers[i] = modifiers[o];
+			}
+			return new ClassCatalog(sortedNames, sortedSimpleNames, sortedKeys, sortedModifiers);
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package plugins.tprovoost.scripteditor.scriptinghandlers;
+
+/**
+ * Limits of a script run: wall-clock time, CPU time of the running thread and
+ * number of instructions (javascript instructions or python lines). A limit of
+ * 0 means no limit.
+ */
+public class ExecutionBudget
+{
+	public static final ExecutionBudget UNLIMITED = new ExecutionBudget(0, 0, 0);
+
+	private static volatile ExecutionBudget defaultBudget = UNLIMITED;
+
+	private final long wallTime;
+	private final long cpuTime;
+	private final long instructions;
+
+	/**
+	 * @param wallTime
+	 *            : maximum duration of the run, in milliseconds.
+	 * @param cpuTime
+	 *            : maximum CPU time of the run, in milliseconds.
+	 * @param instructions
+	 *            : maximum number of instructions.
+	 */
+	public ExecutionBudget(long wallTime, long cpuTime, long instructions)
+	{
+		this.wallTime = Math.max(0, wallTime);
+		this.cpuTime = Math.max(0, cpuTime);
+		this.instructions = Math.max(0, instructions);
+	}
+
+	/**
+	 * @return the budget of the engines without their own budget.
+	 */
+	public static ExecutionBudget getDefault()
+	{
+		return defaultBudget;
+	}
+
+	public static void setDefault(ExecutionBudget budget)
+	{
+		defaultBudget = budget == null ? UNLIMITED : budget;
+	}
+
+	public long getWallTime()
+	{
+		return wallTime;
+	}
+
+	public long getCpuTime()
+	{
+		return cpuTime;
+	}
+
+	public long getInstructions()
+	{
+		return instructions;
+	}
+
+	public boolean isUnlimited()
+	{
+		return wallTime == 0 && cpuTime == 0 && instructions == 0;
+	}
+
+	@Override
+	public String toString()
+	{
+		if (isUnlimited())
+			return "unlimited";
+		return "time: " + wallTime + " ms, cpu: " + cpuTime + " ms, instructions: " + instructions;
+	}
+}
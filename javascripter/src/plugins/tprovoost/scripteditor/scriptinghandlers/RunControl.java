@@ -0,0 +1,169 @@
+package plugins.tprovoost.scripteditor.scriptinghandlers;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * State of one script run, used to stop it cooperatively: the interpreters
+ * call {@link #check(int)} regularly (Rhino instruction observer, Jython trace
+ * function), which throws a {@link ScriptCancelledException} once the run is
+ * cancelled or over budget. The exception unwinds the script normally
+ * (<code>finally</code> blocks are run, the output already written is kept),
+ * unlike <code>Thread.stop()</code>.
+ * <p>
+ * The wall-clock limit is enforced by a timer, which also interrupts the
+ * thread in case the script is waiting in Java code.
+ */
+public class RunControl
+{
+	/** Instructions between two checks of the CPU time. */
+	private static final int CPU_CHECK_INTERVAL = 10000;
+
+	private static final ThreadLocal<RunControl> current = new ThreadLocal<RunControl>();
+	private static Timer timer;
+
+	private final ExecutionBudget budget;
+	/** Guarded by this, <code>null</code> once the run is over. */
+	private Thread thread;
+	private long startCpuTime;
+	private long instructions = 0;
+	private long nextCpuCheck = CPU_CHECK_INTERVAL;
+	private TimerTask timeout;
+	private volatile String cancelReason = null;
+
+	public RunControl(ExecutionBudget budget)
+	{
+		this.budget = budget == null ? ExecutionBudget.UNLIMITED : budget;
+	}
+
+	/**
+	 * @return the run started in the current thread, or <code>null</code>.
+	 */
+	public static RunControl current()
+	{
+		return current.get();
+	}
+
+	/**
+	 * Starts the run in the current thread.
+	 */
+	public void start()
+	{
+		synchronized (this)
+		{
+			thread = Thread.currentThread();
+		}
+		current.set(this);
+		if (budget.getCpuTime() > 0)
+			startCpuTime = getCpuTime();
+		if (budget.getWallTime() > 0)
+		{
+			timeout = new TimerTask()
+			{
+				@Override
+				public void run()
+				{
+					RunControl.this.cancel("time limit of " + budget.getWallTime() + " ms exceeded");
+				}
+			};
+			getTimer().schedule(timeout, budget.getWallTime());
+		}
+	}
+
+	/**
+	 * Ends the run, must be called in the thread of the run.
+	 */
+	public void stop()
+	{
+		if (timeout != null)
+			timeout.cancel();
+		if (current.get() == this)
+			current.remove();
+		// cancel() cannot interrupt the thread after this
+		synchronized (this)
+		{
+			thread = null;
+		}
+		// clear a pending interruption of this run
+		if (cancelReason != null)
+			Thread.interrupted();
+	}
+
+	/**
+	 * Asks the run to stop, can be called from any thread.
+	 */
+	public synchronized void cancel(String reason)
+	{
+		if (cancelReason != null)
+			return;
+		cancelReason = reason;
+		if (thread != null)
+			thread.interrupt();
+	}
+
+	public boolean isCancelled()
+	{
+		return cancelReason != null;
+	}
+
+	public String getCancelReason()
+	{
+		return cancelReason;
+	}
+
+	/**
+	 * Called by the interpreters in the thread of the run.
+	 * 
+	 * @param count
+	 *            : instructions executed since the last call.
+	 * @throws ScriptCancelledException
+	 *             if the run is cancelled or over budget.
+	 */
+	public void check(int count)
+	{
+		if (cancelReason != null)
+			throw new ScriptCancelledException(cancelReason);
+		instructions += count;
+		if (budget.getInstructions() > 0 && instructions > budget.getInstructions())
+			fail("instruction limit of " + budget.getInstructions() + " exceeded");
+		if (budget.getCpuTime() > 0 && instructions >= nextCpuCheck)
+		{
+			nextCpuCheck = instructions + CPU_CHECK_INTERVAL;
+			if ((getCpuTime() - startCpuTime) / 1000000 > budget.getCpuTime())
+				fail("CPU time limit of " + budget.getCpuTime() + " ms exceeded");
+		}
+	}
+
+	private void fail(String reason)
+	{
+		cancelReason = reason;
+		throw new ScriptCancelledException(reason);
+	}
+
+	public long getInstructions()
+	{
+		return instructions;
+	}
+
+	public ExecutionBudget getBudget()
+	{
+		return budget;
+	}
+
+	private static long getCpuTime()
+	{
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!bean.isCurrentThreadCpuTimeSupported())
+			return 0;
+		return bean.getCurrentThreadCpuTime();
+	}
+
+	private static synchronized Timer getTimer()
+	{
+		if (timer == null)
+			timer = new Timer("Script timeouts", true);
+		return timer;
+	}
+}
@@ -0,0 +1,119 @@
+package plugins.tprovoost.scripteditor.scriptinghandlers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Result of the analysis of a script for a revision of its document: the
+ * variables, functions and imports declared, and the errors found. It is never
+ * modified once published by the {@link ScriptingHandler}: the completion, the
+ * link detection and the evaluation read it from their thread without
+ * locking, instead of the fields the next analysis fills.
+ *
+ * @see ScriptingHandler#getAnalysis()
+ */
+public class ScriptAnalysis
+{
+	/** Published before the first analysis. */
+	static final ScriptAnalysis EMPTY = new ScriptAnalysis(-1, "", false, new HashMap<String, ScriptVariable>(),
+			new HashMap<String, VariableType>(), new HashMap<Integer, IcyFunctionBlock>(), new ArrayList<String>(),
+			new ArrayList<String>(), new ArrayList<ScriptEditorException>());
+
+	private final long revision;
+	private final String text;
+	private final boolean documentText;
+	private final Map<String, ScriptVariable> localVariables;
+	private final Map<String, VariableType> localFunctions;
+	private final Map<Integer, IcyFunctionBlock> blockFunctions;
+	private final List<String> imports;
+	private final List<String> importClasses;
+	private final List<ScriptEditorException> diagnostics;
+
+	ScriptAnalysis(long revision, String text, boolean documentText, Map<String, ScriptVariable> localVariables,
+			Map<String, VariableType> localFunctions, Map<Integer, IcyFunctionBlock> blockFunctions, List<String> imports,
+			List<String> importClasses, List<ScriptEditorException> diagnostics)
+	{
+		this.revision = revision;
+		this.text = text;
+		this.documentText = documentText;
+		// the variables are copied, the next analysis adds types to them
+		HashMap<String, ScriptVariable> variables = new HashMap<String, ScriptVariable>();
+		for (Map.Entry<String, ScriptVariable> entry : localVariables.entrySet())
+			variables.put(entry.getKey(), new ScriptVariable(entry.getValue()));
+		this.localVariables = Collections.unmodifiableMap(variables);
+		this.localFunctions = Collections.unmodifiableMap(new HashMap<String, VariableType>(localFunctions));
+		this.blockFunctions = Collections.unmodifiableMap(new HashMap<Integer, IcyFunctionBlock>(blockFunctions));
+		this.imports = Collections.unmodifiableList(new ArrayList<String>(imports));
+		this.importClasses = Collections.unmodifiableList(new ArrayList<String>(importClasses));
+		this.diagnostics = Collections.unmodifiableList(new ArrayList<ScriptEditorException>(diagnostics));
+	}
+
+	/**
+	 * @return the revision of the document analyzed, see
+	 *         {@link ScriptingHandler#getRevision()}.
+	 */
+	public long getRevision()
+	{
+		return revision;
+	}
+
+	/**
+	 * @return the text analyzed. It is the text of the document only if
+	 *         {@link #isDocumentText()}: the selection, or the text without
+	 *         the dot being completed, can be analyzed too.
+	 */
+	public String getText()
+	{
+		return text;
+	}
+
+	public boolean isDocumentText()
+	{
+		return documentText;
+	}
+
+	public Map<String, ScriptVariable> getLocalVariables()
+	{
+		return localVariables;
+	}
+
+	public Map<String, VariableType> getLocalFunctions()
+	{
+		return localFunctions;
+	}
+
+	/**
+	 * @return the function calls, by offset.
+	 */
+	public Map<Integer, IcyFunctionBlock> getBlockFunctions()
+	{
+		return blockFunctions;
+	}
+
+	/**
+	 * @return the packages imported by the script.
+	 */
+	public List<String> getImports()
+	{
+		return imports;
+	}
+
+	/**
+	 * @return the classes imported by the script.
+	 */
+	public List<String> getImportClasses()
+	{
+		return importClasses;
+	}
+
+	/**
+	 * @return the errors and warnings found, displayed in the gutter.
+	 */
+	public List<ScriptEditorException> getDiagnostics()
+	{
+		return diagnostics;
+	}
+}
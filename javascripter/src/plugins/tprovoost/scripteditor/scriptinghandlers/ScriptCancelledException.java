@@ -0,0 +1,34 @@
+package plugins.tprovoost.scripteditor.scriptinghandlers;
+
+/**
+ * Thrown in the thread of a script stopped by the user or because it exceeded
+ * its {@link ExecutionBudget}. It is unchecked so it goes through the
+ * interpreters and the scripts cannot declare it.
+ */
+public class ScriptCancelledException extends RuntimeException
+{
+	private static final long serialVersionUID = 1L;
+
+	public ScriptCancelledException(String reason)
+	{
+		super(reason);
+	}
+
+	/**
+	 * @return the {@link ScriptCancelledException} at the origin of
+	 *         <code>t</code> (interpreters wrap the exceptions thrown in
+	 *         Java code), or <code>null</code>.
+	 */
+	public static ScriptCancelledException find(Throwable t)
+	{
+		while (t != null)
+		{
+			if (t instanceof ScriptCancelledException)
+				return (ScriptCancelledException) t;
+			if (t.getCause() == t)
+				break;
+			t = t.getCause();
+		}
+		return null;
+	}
+}
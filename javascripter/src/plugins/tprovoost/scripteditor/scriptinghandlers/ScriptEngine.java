@@ -2,13 +2,24 @@ package plugins.tprovoost.scripteditor.scriptinghandlers;
 
 import java.io.PrintWriter;
 import java.util.HashMap;
+import java.util.Map;
 
 public abstract class ScriptEngine
 {
-	protected HashMap<String, Object> bindings = new HashMap<String, Object>();
+	protected Map<String, Object> bindings = new HashMap<String, Object>();
 	private PrintWriter pw;
 	private PrintWriter pwE;
 
+	/** Description of the last run (time, mode...), null if not available. */
+	protected String runStatistics = null;
+
+	/** Bindings at the last call of {@link #getBindingsChanges()}. */
+	private HashMap<String, Object> lastBindings = new HashMap<String, Object>();
+
+	/** Budget of the runs, null to use the default budget. */
+	private ExecutionBudget budget = null;
+	private volatile RunControl currentRun = null;
+
 	protected ScriptEngine() {
 		pw = new PrintWriter(System.out);
 		pwE = new PrintWriter(System.err);
@@ -40,9 +51,86 @@ public abstract class ScriptEngine
 
 	public abstract String getName();
 
+	/**
+	 * @return a short description of the last run, or <code>null</code> if
+	 *         the engine does not provide it.
+	 */
+	public String getRunStatistics()
+	{
+		return runStatistics;
+	}
+
+	/**
+	 * @return the statistics of the caches shared by the engines of this
+	 *         language, or <code>null</code> if the engine has none.
+	 */
+	public String getCacheStatistics()
+	{
+		return null;
+	}
+
+	public ExecutionBudget getBudget()
+	{
+		return budget == null ? ExecutionBudget.getDefault() : budget;
+	}
+
+	/**
+	 * Sets the limits of the next runs, <code>null</code> to use
+	 * {@link ExecutionBudget#getDefault()}.
+	 */
+	public void setBudget(ExecutionBudget budget)
+	{
+		this.budget = budget;
+	}
+
+	/**
+	 * Starts a run in the current thread. Must be called by the eval methods,
+	 * followed by {@link #endRun(RunControl)} in a finally block.
+	 * 
+	 * @return the new run, or <code>null</code> if this is a nested evaluation
+	 *         in a run already started.
+	 */
+	protected RunControl startRun()
+	{
+		RunControl run = currentRun;
+		if (run != null && run == RunControl.current())
+			return null;
+		run = new RunControl(getBudget());
+		run.start();
+		currentRun = run;
+		return run;
+	}
+
+	protected void endRun(RunControl run)
+	{
+		if (run == null)
+			return;
+		run.stop();
+		currentRun = null;
+	}
+
+	/**
+	 * @return the run in progress, or <code>null</code>.
+	 */
+	public RunControl getCurrentRun()
+	{
+		return currentRun;
+	}
+
+	/**
+	 * Asks the script running in this engine to stop. The script stops at its
+	 * next instruction with a {@link ScriptCancelledException}.
+	 */
+	public void cancel(String reason)
+	{
+		RunControl run = currentRun;
+		if (run != null)
+			run.cancel(reason);
+	}
+
 	public void clear()
 	{
-		HashMap<String, Object> bindings = getBindings();
+		Map<String, Object> bindings = getBindings();
 		for (String s : bindings.keySet())
 		{
 			bindings.put(s, null);
@@ -72,9 +160,36 @@ public abstract class ScriptEngine
 		return bindings.get(name);
 	}
 
-	public HashMap<String, Object> getBindings()
+	public Map<String, Object> getBindings()
 	{
 		return bindings;
 	}
 
+	/**
+	 * Returns the names of the bindings added, changed or removed since the
+	 * last call of this method. A changed binding is a name bound to another
+	 * object. This default implementation compares all the bindings with a copy
+	 * of the previous ones; engines able to track their modifications should
+	 * override it.
+	 */
+	public BindingsChanges getBindingsChanges()
+	{
+		BindingsChanges changes = new BindingsChanges();
+		HashMap<String, Object> current = new HashMap<String, Object>(getBindings());
+		for (String name : current.keySet())
+		{
+			if (!lastBindings.containsKey(name))
+				changes.markAdded(name);
+			else if (lastBindings.get(name) != current.get(name))
+				changes.markChanged(name);
+		}
+		for (String name : lastBindings.keySet())
+		{
+			if (!current.containsKey(name))
+				changes.markRemoved(name);
+		}
+		lastBindings = current;
+		return changes;
+	}
+
 }
\ No newline at end of file
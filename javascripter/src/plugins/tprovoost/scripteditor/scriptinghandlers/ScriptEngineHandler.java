@@ -2,18 +2,30 @@ package plugins.tprovoost.scripteditor.scriptinghandlers;
 
 import icy.gui.frame.progress.ProgressFrame;
 import icy.plugin.PluginDescriptor;
+import icy.plugin.PluginInstaller;
 import icy.plugin.PluginInstaller.PluginInstallerListener;
 import icy.plugin.PluginLoader;
 import icy.plugin.classloader.JarClassLoader;
+import icy.system.thread.ThreadUtil;
 import icy.util.ClassUtil;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.script.ScriptEngineFactory;
 import javax.script.ScriptEngineManager;
@@ -23,6 +35,8 @@ import org.fife.ui.autocomplete.ParameterizedCompletion.Parameter;
 import plugins.tprovoost.scripteditor.completion.IcyCompletionProvider;
 import plugins.tprovoost.scripteditor.completion.types.ScriptFunctionCompletion;
 import plugins.tprovoost.scripteditor.completion.types.ScriptFunctionCompletion.BindingFunction;
+import plugins.tprovoost.scripteditor.scriptinghandlers.BindingScanner.BindingSignature;
+import plugins.tprovoost.scripteditor.scriptinghandlers.BindingScanner.JarContent;
 import plugins.tprovoost.scripteditor.scriptinghandlers.js.JSScriptEngine;
 import plugins.tprovoost.scripteditor.scriptinghandlers.py.PyScriptEngine;
 
@@ -33,17 +47,42 @@ public class ScriptEngineHandler implements PluginInstallerListener
 	 *	   static
 	 *---------------*/
 	/**
-	 * This {@link HashMap} is used to avoid multiple different engines for the
-	 * same language to be initialized.
+	 * Current engine of each owner (editor tab, console, block...), by
+	 * language. Owners do not share engines, so their scripts can run at the
+	 * same time. The owners are weakly referenced: the engines of a closed
+	 * owner are released.
+	 * <p>
+	 * All the static registries are immutable snapshots, replaced with a copy
+	 * on each modification: they are read without lock.
 	 */
-	private static final HashMap<String, ScriptEngine> engines = new HashMap<String, ScriptEngine>();
+	private static final AtomicReference<Map<OwnerKey, Map<String, ScriptEngine>>> engines = new AtomicReference<Map<OwnerKey, Map<String, ScriptEngine>>>(
+			Collections.<OwnerKey, Map<String, ScriptEngine>> emptyMap());
+
+	/** Owner of the engines obtained without owner. */
+	private static final Object DEFAULT_OWNER = new Object();
+
+	/** Engines already initialized, ready to be used by a new run. */
+	private static final HashMap<String, ScriptEnginePool> enginePools = new HashMap<String, ScriptEnginePool>();
 
 	/** The factory contains all the engines. */
 	public static final ScriptEngineManager factory = new ScriptEngineManager(PluginLoader.getLoader());
-	private static HashMap<ScriptEngine, ScriptEngineHandler> engineHandlers = new HashMap<ScriptEngine, ScriptEngineHandler>();
-	private static ScriptEngineHandler lastEngineHandler = null;
-	private static ArrayList<Method> bindingFunctions;
-	private static ArrayList<String> allClasses = new ArrayList<String>();
+	private static final AtomicReference<Map<ScriptEngine, ScriptEngineHandler>> engineHandlers = new AtomicReference<Map<ScriptEngine, ScriptEngineHandler>>(
+			Collections.<ScriptEngine, ScriptEngineHandler> emptyMap());
+	private static final AtomicReference<ScriptEngineHandler> lastEngineHandler = new AtomicReference<ScriptEngineHandler>();
+
+	/** Binding functions and class names, null until the first scan. */
+	private static final AtomicReference<Catalog> catalog = new AtomicReference<Catalog>();
+
+	/** Only one scan of the plugins at a time. */
+	private static final Object scanLock = new Object();
+
+	/** Content of the plugin jars saved between sessions, guarded by scanLock. */
+	private static BindingIndex bindingIndex;
+
+	/** Only one handler listens to the plugin installer. */
+	private static final AtomicBoolean installerListened = new AtomicBoolean(false);
+
+	private static final CopyOnWriteArrayList<FunctionsListener> functionsListeners = new CopyOnWriteArrayList<FunctionsListener>();
 
 	/*
 	 * ------------ non static ------------
@@ -56,58 +95,264 @@ public class ScriptEngineHandler implements PluginInstallerListener
 
 	private ScriptEngineHandler()
 	{
-		if (bindingFunctions == null)
+		boolean scanned = false;
+		if (catalog.get() == null)
 		{
-			bindingFunctions = new ArrayList<Method>();
-			findBindingMethodsPlugins();
+			synchronized (scanLock)
+			{
+				if (catalog.get() == null)
+				{
+					catalog.set(findBindingMethodsPlugins());
+					scanned = true;
+				}
+			}
 		}
+		// the scan only registered the functions in the handler doing it
+		if (!scanned)
+		{
+			for (Method method : catalog.get().functions)
+				addBindingFunction(method);
+		}
+		if (installerListened.compareAndSet(false, true))
+			PluginInstaller.addListener(this);
+	}
+
+	/**
+	 * Notified when the binding functions change after a plugin has been
+	 * installed or removed.
+	 */
+	public static interface FunctionsListener
+	{
+		/**
+		 * Called from the thread of the plugin installer.
+		 */
+		public void functionsChanged(List<Method> added, List<Method> removed);
+	}
+
+	public static void addFunctionsListener(FunctionsListener listener)
+	{
+		functionsListeners.addIfAbsent(listener);
+	}
+
+	public static void removeFunctionsListener(FunctionsListener listener)
+	{
+		functionsListeners.remove(listener);
 	}
 
 	public static ScriptEngineHandler getLastEngineHandler()
 	{
-		return lastEngineHandler;
+		return lastEngineHandler.get();
 	}
 
 	public static void setEngine(String engineType, ScriptEngine engine)
 	{
-		engines.put(engineType, engine);
+		setEngine(DEFAULT_OWNER, engineType, engine);
+	}
+
+	public static void setEngine(Object owner, String engineType, ScriptEngine engine)
+	{
+		putEngine(owner, engineType.toLowerCase(), engine, true);
 	}
 
 	public static ScriptEngineHandler getEngineHandler(ScriptEngine engine)
 	{
-		ScriptEngineHandler engineHandler = engineHandlers.get(engine);
+		ScriptEngineHandler engineHandler = engineHandlers.get().get(engine);
 		if (engineHandler == null)
 		{
-			engineHandler = new ScriptEngineHandler();
-			engineHandlers.put(engine, engineHandler);
+			// created out of any lock: the first one scans the plugins
+			ScriptEngineHandler newHandler = new ScriptEngineHandler();
+			while (true)
+			{
+				Map<ScriptEngine, ScriptEngineHandler> current = engineHandlers.get();
+				engineHandler = current.get(engine);
+				if (engineHandler != null)
+					break;
+				HashMap<ScriptEngine, ScriptEngineHandler> copy = new HashMap<ScriptEngine, ScriptEngineHandler>(current);
+				copy.put(engine, newHandler);
+				if (engineHandlers.compareAndSet(current, Collections.unmodifiableMap(copy)))
+				{
+					engineHandler = newHandler;
+					break;
+				}
+			}
 		}
-		lastEngineHandler = engineHandler;
+		lastEngineHandler.set(engineHandler);
 		return engineHandler;
 	}
 
+	private static void removeEngineHandler(ScriptEngine engine)
+	{
+		while (true)
+		{
+			Map<ScriptEngine, ScriptEngineHandler> current = engineHandlers.get();
+			if (!current.containsKey(engine))
+				return;
+			HashMap<ScriptEngine, ScriptEngineHandler> copy = new HashMap<ScriptEngine, ScriptEngineHandler>(current);
+			ScriptEngineHandler removed = copy.remove(engine);
+			if (engineHandlers.compareAndSet(current, Collections.unmodifiableMap(copy)))
+			{
+				lastEngineHandler.compareAndSet(removed, null);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Engine shared by the callers without owner. Prefer
+	 * {@link #getEngine(Object, String)}.
+	 */
 	public static ScriptEngine getEngine(String engineType)
 	{
-		return getEngine(engineType, false);
+		return getEngine(DEFAULT_OWNER, engineType, false);
 	}
 
 	public static ScriptEngine getEngine(String engineType, boolean create)
+	{
+		return getEngine(DEFAULT_OWNER, engineType, create);
+	}
+
+	/**
+	 * @param owner
+	 *            : the object using the engine (e.g. the
+	 *            {@link ScriptingHandler} of a tab).
+	 * @param engineType
+	 *            : "javascript" or "python".
+	 * @return the current engine of the owner for this language, created if
+	 *         needed.
+	 */
+	public static ScriptEngine getEngine(Object owner, String engineType)
+	{
+		return getEngine(owner, engineType, false);
+	}
+
+	/**
+	 * Same as {@link #getEngine(Object, String)}, <code>create</code> forces
+	 * a new engine, which replaces the current one of the owner.
+	 */
+	public static ScriptEngine getEngine(Object owner, String engineType, boolean create)
 	{
 		String engineTypeL = engineType.toLowerCase();
-		ScriptEngine engineHash = engines.get(engineTypeL);
-		if (engineHash == null || create)
+		if (!create)
 		{
-			// engineHash = factory.getEngineByName(engineType);
-			if (engineTypeL.contentEquals("javascript"))
-			{
-				engineHash = new JSScriptEngine();
-				engines.put(engineTypeL, engineHash);
-			} else if (engineTypeL.contentEquals("python"))
+			Map<String, ScriptEngine> ownerEngines = engines.get().get(new OwnerKey(owner));
+			if (ownerEngines != null && ownerEngines.get(engineTypeL) != null)
+				return ownerEngines.get(engineTypeL);
+		}
+		// engineHash = factory.getEngineByName(engineType);
+		ScriptEngine newEngine = getEnginePool(engineTypeL).acquire();
+		if (newEngine == null)
+			return null;
+		ScriptEngine current = putEngine(owner, engineTypeL, newEngine, create);
+		if (current != newEngine)
+		{
+			// created concurrently by another thread of the owner
+			newEngine.clear();
+		}
+		return current;
+	}
+
+	/**
+	 * Registers the engine of the owner.
+	 * 
+	 * @param replace
+	 *            : if false, an engine already registered is kept.
+	 * @return the registered engine.
+	 */
+	private static ScriptEngine putEngine(Object owner, String engineTypeL, ScriptEngine engine, boolean replace)
+	{
+		OwnerKey key = new OwnerKey(owner);
+		while (true)
+		{
+			Map<OwnerKey, Map<String, ScriptEngine>> current = engines.get();
+			Map<String, ScriptEngine> ownerEngines = current.get(key);
+			if (!replace && ownerEngines != null && ownerEngines.get(engineTypeL) != null)
+				return ownerEngines.get(engineTypeL);
+
+			HashMap<OwnerKey, Map<String, ScriptEngine>> copy = copyEngines(current);
+			HashMap<String, ScriptEngine> ownerCopy = ownerEngines == null ? new HashMap<String, ScriptEngine>()
+					: new HashMap<String, ScriptEngine>(ownerEngines);
+			ownerCopy.put(engineTypeL, engine);
+			copy.put(key, Collections.unmodifiableMap(ownerCopy));
+			if (engines.compareAndSet(current, Collections.unmodifiableMap(copy)))
+				return engine;
+		}
+	}
+
+	/**
+	 * @return a modifiable copy of the engines, without the owners already
+	 *         garbage collected.
+	 */
+	private static HashMap<OwnerKey, Map<String, ScriptEngine>> copyEngines(Map<OwnerKey, Map<String, ScriptEngine>> current)
+	{
+		HashMap<OwnerKey, Map<String, ScriptEngine>> copy = new HashMap<OwnerKey, Map<String, ScriptEngine>>();
+		for (Map.Entry<OwnerKey, Map<String, ScriptEngine>> entry : current.entrySet())
+			if (entry.getKey().get() != null)
+				copy.put(entry.getKey(), entry.getValue());
+		return copy;
+	}
+
+	/**
+	 * Disposes the engines of the owner, e.g. when its tab is closed.
+	 */
+	public static void releaseEngines(Object owner)
+	{
+		OwnerKey key = new OwnerKey(owner);
+		Map<String, ScriptEngine> ownerEngines;
+		while (true)
+		{
+			Map<OwnerKey, Map<String, ScriptEngine>> current = engines.get();
+			HashMap<OwnerKey, Map<String, ScriptEngine>> copy = copyEngines(current);
+			ownerEngines = copy.remove(key);
+			if (engines.compareAndSet(current, Collections.unmodifiableMap(copy)))
+				break;
+		}
+		if (ownerEngines == null)
+			return;
+		for (ScriptEngine engine : ownerEngines.values())
+		{
+			engine.clear();
+			removeEngineHandler(engine);
+		}
+	}
+
+	/**
+	 * Get the pool of ready-to-use engines for the given language.
+	 * 
+	 * @param engineType
+	 *            : "javascript" or "python".
+	 * @return
+	 */
+	public static ScriptEnginePool getEnginePool(String engineType)
+	{
+		String engineTypeL = engineType.toLowerCase();
+		synchronized (enginePools)
+		{
+			ScriptEnginePool pool = enginePools.get(engineTypeL);
+			if (pool == null)
 			{
-				engineHash = new PyScriptEngine();
-				engines.put(engineTypeL, engineHash);
+				pool = new ScriptEnginePool(engineTypeL);
+				enginePools.put(engineTypeL, pool);
 			}
+			return pool;
 		}
-		return engineHash;
+	}
+
+	/**
+	 * Creates and initializes a new engine for the given language, without
+	 * registering it.
+	 * 
+	 * @param engineType
+	 *            : "javascript" or "python" (lower case).
+	 * @return the new engine, or <code>null</code> if the language is not
+	 *         supported.
+	 */
+	static ScriptEngine createEngine(String engineType)
+	{
+		if (engineType.contentEquals("javascript"))
+			return new JSScriptEngine();
+		else if (engineType.contentEquals("python"))
+			return new PyScriptEngine();
+		return null;
 	}
 
 	public void disposeEngine(ScriptEngine engine)
@@ -115,7 +360,7 @@ public class ScriptEngineHandler implements PluginInstallerListener
 		engine.clear();
 
 		// remove the reference to the engine
-		engineHandlers.remove(engine);
+		removeEngineHandler(engine);
 	}
 
 	// public ScriptEngine generateNewEngine() {
@@ -156,28 +401,46 @@ public class ScriptEngineHandler implements PluginInstallerListener
 		return factory;
 	}
 
-	private void findBindingMethodsPlugins()
+	/**
+	 * Scans Icy and the plugins. The result is built aside and published at
+	 * once by the caller, the readers never see a partial scan.
+	 */
+	private Catalog findBindingMethodsPlugins()
 	{
+		ArrayList<Method> bindingFunctions = new ArrayList<Method>();
+		ArrayList<String> allClasses = new ArrayList<String>();
+		ClassCatalog.Builder classCatalog = new ClassCatalog.Builder();
 		ProgressFrame frame = new ProgressFrame("Loading functions...");
 		try
 		{
 			try
 			{
-				allClasses.addAll(ClassUtil.findClassNamesInPackage("icy", true));
+				for (String className : ClassUtil.findClassNamesInPackage("icy", true))
+				{
+					allClasses.add(className);
+					classCatalog.add(className, BindingScanner.UNKNOWN_MODIFIERS);
+				}
 			} catch (IOException e)
 			{
 			}
 			if (getClass().getClassLoader() instanceof JarClassLoader)
 			{
-				// Collection<Class<?>> col =
-				// PluginLoader.getLoadedClasses().values();
-				Collection<Class<?>> col = PluginLoader.getLoadedClasses().values();
-				frame.setLength(col.size());
+				// read the class files of the jars instead of loading every
+				// plugin class: only the classes declaring binding functions
+				// are loaded. The jars unchanged since the last session are
+				// not read again.
+				if (bindingIndex == null)
+					bindingIndex = BindingIndex.load(BindingIndex.getDefaultFile());
+				Map<File, JarContent> contents = bindingIndex.scan(getPluginJars());
+				bindingIndex.save();
+				frame.setLength(contents.size());
 				int i = 0;
-				for (Class<?> clazz : new ArrayList<Class<?>>(col))
+				for (JarContent content : contents.values())
 				{
-					findBindingsMethods(clazz);
-					allClasses.add(clazz.getName());
+					allClasses.addAll(content.getClassNames());
+					for (int c = 0; c < content.getClassNames().size(); ++c)
+						classCatalog.add(content.getClassNames().get(c), content.getClassModifiers().get(c));
+					findBindingsMethods(content.getBindings(), bindingFunctions);
 					++i;
 					frame.setPosition(i);
 				}
@@ -190,8 +453,9 @@ public class ScriptEngineHandler implements PluginInstallerListener
 				{
 					Class<?> clazz = pd.getPluginClass();
 					// System.out.println(pd);
-					findBindingsMethods(clazz);
+					findBindingsMethods(clazz, bindingFunctions);
 					allClasses.add(clazz.getName());
+					classCatalog.add(clazz.getName(), clazz.getModifiers());
 					++i;
 					frame.setPosition(i);
 				}
@@ -202,9 +466,77 @@ public class ScriptEngineHandler implements PluginInstallerListener
 			// chrono.displayInSeconds();
 			frame.close();
 		}
+		return new Catalog(bindingFunctions, allClasses, classCatalog.build());
+	}
+
+	/**
+	 * @return the jar files of the installed plugins.
+	 */
+	private static Set<File> getPluginJars()
+	{
+		LinkedHashSet<File> jars = new LinkedHashSet<File>();
+		for (PluginDescriptor pd : PluginLoader.getPlugins())
+		{
+			String jarName = pd.getJarFilename();
+			if (jarName == null || jarName.isEmpty())
+				continue;
+			File jar = new File(jarName);
+			if (jar.isFile())
+				jars.add(jar);
+		}
+		return jars;
+	}
+
+	/**
+	 * Loads the classes declaring the bindings found by the
+	 * {@link BindingScanner}, and adds their binding functions.
+	 */
+	private void findBindingsMethods(List<BindingSignature> bindings, List<Method> bindingFunctions)
+	{
+		LinkedHashSet<String> classNames = new LinkedHashSet<String>();
+		for (BindingSignature binding : bindings)
+			classNames.add(binding.getClassName());
+		for (String className : classNames)
+		{
+			try
+			{
+				findBindingsMethods(ClassUtil.findClass(className), bindingFunctions);
+			} catch (ClassNotFoundException e)
+			{
+			} catch (Error e)
+			{
+				// missing dependency of the plugin
+			}
+		}
 	}
 
+	/**
+	 * Adds the binding functions of the class to the known ones.
+	 */
 	public void findBindingsMethods(Class<?> clazz)
+	{
+		ArrayList<Method> found = new ArrayList<Method>();
+		findBindingsMethods(clazz, found);
+		if (found.isEmpty())
+			return;
+		synchronized (scanLock)
+		{
+			Catalog current = catalog.get();
+			ArrayList<Method> functions = new ArrayList<Method>();
+			List<String> classes = Collections.emptyList();
+			ClassCatalog classCatalog = ClassCatalog.EMPTY;
+			if (current != null)
+			{
+				functions.addAll(current.functions);
+				classes = current.classes;
+				classCatalog = current.classCatalog;
+			}
+			functions.addAll(found);
+			catalog.set(new Catalog(functions, classes, classCatalog));
+		}
+	}
+
+	private void findBindingsMethods(Class<?> clazz, List<Method> bindingFunctions)
 	{
 		if (clazz == null)
 			return;
@@ -231,88 +563,219 @@ public class ScriptEngineHandler implements PluginInstallerListener
 			if (blockFunction == null)
 				continue;
 			bindingFunctions.add(method);
+			addBindingFunction(method);
+		}
+	}
 
-			// Generate the function for the provider
-			ArrayList<Parameter> fParams = new ArrayList<Parameter>();
-			Class<?>[] paramTypes = method.getParameterTypes();
-
-			// get the parameters
-			String params = "";
-			String functionName = blockFunction.value();
-			// get the parameters
-			for (int i = 0; i < paramTypes.length; ++i)
-			{
-				fParams.add(new Parameter(IcyCompletionProvider.getType(paramTypes[i], true), "arg" + i));
-				params += ",arg" + i;
-			}
-			if (params.length() > 0)
-				params = params.substring(1);
-
-			// the object for the provider
-			ScriptFunctionCompletion sfc;
-			if (Modifier.isStatic(method.getModifiers()))
-				sfc = new ScriptFunctionCompletion(null, functionName, method);
+	/**
+	 * Registers a binding function in the functions and types of this
+	 * handler.
+	 */
+	private void addBindingFunction(Method method)
+	{
+		Class<?> clazz = method.getDeclaringClass();
+		BindingFunction blockFunction = method.getAnnotation(BindingFunction.class);
+		// Generate the function for the provider
+		ArrayList<Parameter> fParams = new ArrayList<Parameter>();
+		Class<?>[] paramTypes = method.getParameterTypes();
+
+		// get the parameters
+		String params = "";
+		String functionName = blockFunction.value();
+		// get the parameters
+		for (int i = 0; i < paramTypes.length; ++i)
+		{
+			fParams.add(new Parameter(IcyCompletionProvider.getType(paramTypes[i], true), "arg" + i));
+			params += ",arg" + i;
+		}
+		if (params.length() > 0)
+			params = params.substring(1);
+
+		// the object for the provider
+		ScriptFunctionCompletion sfc;
+		if (Modifier.isStatic(method.getModifiers()))
+			sfc = new ScriptFunctionCompletion(null, functionName, method);
+		else
+			sfc = new ScriptFunctionCompletion(null, method.getName(), method);
+		sfc.setDefinedIn(clazz.getName());
+		sfc.setParams(fParams);
+		sfc.setRelevance(2);
+
+		if (engineFunctions != null)
+		{
+			Class<?> returnType = method.getReturnType();
+			if (VariableType.isGeneric(returnType))
+				engineFunctions.put(functionName, new VariableType(returnType, VariableType.getType(method.getGenericReturnType().toString())));
 			else
-				sfc = new ScriptFunctionCompletion(null, method.getName(), method);
-			sfc.setDefinedIn(clazz.getName());
-			sfc.setParams(fParams);
-			sfc.setRelevance(2);
-
-			if (engineFunctions != null)
-			{
-				Class<?> returnType = method.getReturnType();
-				if (VariableType.isGeneric(returnType))
-					engineFunctions.put(functionName, new VariableType(returnType, VariableType.getType(method.getGenericReturnType().toString())));
-				else
-					engineFunctions.put(functionName, new VariableType(returnType));
-			}
-			if (engineTypesMethod != null)
-			{
-				ArrayList<ScriptFunctionCompletion> methodsExisting = engineTypesMethod.get(clazz);
-				if (methodsExisting == null)
-					methodsExisting = new ArrayList<ScriptFunctionCompletion>();
-				if (methodsExisting.contains(sfc))
-					methodsExisting.remove(sfc);
-				methodsExisting.add(sfc);
-				engineTypesMethod.put(clazz, methodsExisting);
-			}
+				engineFunctions.put(functionName, new VariableType(returnType));
+		}
+		if (engineTypesMethod != null)
+		{
+			ArrayList<ScriptFunctionCompletion> methodsExisting = engineTypesMethod.get(clazz);
+			if (methodsExisting == null)
+				methodsExisting = new ArrayList<ScriptFunctionCompletion>();
+			if (methodsExisting.contains(sfc))
+				methodsExisting.remove(sfc);
+			methodsExisting.add(sfc);
+			engineTypesMethod.put(clazz, methodsExisting);
 		}
 	}
 
-	public ArrayList<Method> getFunctions()
+	/**
+	 * @return the binding functions of Icy and the plugins (immutable).
+	 */
+	public List<Method> getFunctions()
 	{
-		return bindingFunctions;
+		Catalog c = catalog.get();
+		return c == null ? Collections.<Method> emptyList() : c.functions;
 	}
 
 	@Override
 	public void pluginInstalled(PluginDescriptor plugin, boolean success)
 	{
 		if (success)
-		{
-			bindingFunctions.clear();
-			engineFunctions.clear();
-			engineTypesMethod.clear();
-			allClasses.clear();
-			findBindingMethodsPlugins();
-			// ArrayList<IcyFrame> list =
-			// IcyFrame.getAllFrames(ScriptingEditor.class);
-			// if (list != null && !list.isEmpty())
-			// new AnnounceFrame("Binded functions in the current");
-		}
+			updatePlugin(plugin, true);
+		// ArrayList<IcyFrame> list =
+		// IcyFrame.getAllFrames(ScriptingEditor.class);
+		// if (list != null && !list.isEmpty())
+		// new AnnounceFrame("Binded functions in the current");
 	}
 
 	@Override
 	public void pluginRemoved(PluginDescriptor plugin, boolean success)
 	{
 		if (success)
+			updatePlugin(plugin, false);
+	}
+
+	/**
+	 * Removes the classes and binding functions of the previous version of
+	 * the plugin and, if <code>installed</code>, adds the ones of its new
+	 * version. The other plugins are not scanned again; the handlers and the
+	 * {@link FunctionsListener}s receive the differences.
+	 */
+	private void updatePlugin(PluginDescriptor plugin, boolean installed)
+	{
+		final ArrayList<Method> added = new ArrayList<Method>();
+		final ArrayList<Method> removed = new ArrayList<Method>();
+		final HashSet<String> oldClasses = new HashSet<String>();
+		synchronized (scanLock)
 		{
-			bindingFunctions.clear();
-			engineFunctions.clear();
-			engineTypesMethod.clear();
-			allClasses.clear();
-			findBindingMethodsPlugins();
+			Catalog current = catalog.get();
+			// no scan yet: the first one will see the plugin
+			if (current == null)
+				return;
+
+			ArrayList<String> newClasses = new ArrayList<String>();
+			ArrayList<Integer> newModifiers = new ArrayList<Integer>();
+			String jarName = plugin.getJarFilename();
+			if (bindingIndex != null && jarName != null && !jarName.isEmpty())
+			{
+				File jar = new File(jarName);
+				JarContent previous = bindingIndex.remove(jar);
+				if (previous != null)
+					oldClasses.addAll(previous.getClassNames());
+				if (installed && jar.isFile())
+				{
+					try
+					{
+						JarContent content = bindingIndex.update(jar);
+						newClasses.addAll(content.getClassNames());
+						newModifiers.addAll(content.getClassModifiers());
+						findBindingsMethods(content.getBindings(), added);
+					} catch (IOException e)
+					{
+						System.err.println("Cannot read " + jar + ": " + e.getMessage());
+					}
+				}
+				bindingIndex.save();
+			} else
+			{
+				// plugin loaded from the class path
+				oldClasses.add(plugin.getClassAsString());
+				if (installed)
+				{
+					try
+					{
+						Class<?> clazz = ClassUtil.findClass(plugin.getClassAsString());
+						newClasses.add(clazz.getName());
+						newModifiers.add(clazz.getModifiers());
+						findBindingsMethods(clazz, added);
+					} catch (ClassNotFoundException e)
+					{
+					}
+				}
+			}
+
+			ArrayList<Method> functions = new ArrayList<Method>();
+			for (Method method : current.functions)
+			{
+				if (oldClasses.contains(method.getDeclaringClass().getName()))
+					removed.add(method);
+				else
+					functions.add(method);
+			}
+			functions.addAll(added);
+
+			ArrayList<String> classes = new ArrayList<String>(current.classes.size() + newClasses.size());
+			for (String className : current.classes)
+				if (!oldClasses.contains(className))
+					classes.add(className);
+			classes.addAll(newClasses);
+			Collections.sort(classes);
+
+			ClassCatalog.Builder classCatalog = new ClassCatalog.Builder().addAll(current.classCatalog, oldClasses);
+			for (int i = 0; i < newClasses.size(); ++i)
+				classCatalog.add(newClasses.get(i), newModifiers.get(i));
+			catalog.set(new Catalog(functions, classes, classCatalog.build()));
 		}
 
+		// the pooled engines were initialized with the previous class loader
+		clearEnginePools();
+
+		// the maps of the handlers are only modified on the EDT, where the
+		// completion copies them
+		ThreadUtil.invokeLater(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				for (ScriptEngineHandler handler : engineHandlers.get().values())
+				{
+					handler.removeBindingFunctions(removed, oldClasses);
+					for (Method method : added)
+						handler.addBindingFunction(method);
+				}
+			}
+		});
+		if (!added.isEmpty() || !removed.isEmpty())
+			for (FunctionsListener listener : functionsListeners)
+				listener.functionsChanged(added, removed);
+	}
+
+	/**
+	 * Forgets the binding functions and the types of the given classes.
+	 */
+	private void removeBindingFunctions(List<Method> functions, Set<String> classNames)
+	{
+		for (Method method : functions)
+		{
+			BindingFunction blockFunction = method.getAnnotation(BindingFunction.class);
+			if (blockFunction != null)
+				engineFunctions.remove(blockFunction.value());
+		}
+		for (Iterator<Class<?>> it = engineTypesMethod.keySet().iterator(); it.hasNext();)
+			if (classNames.contains(it.next().getName()))
+				it.remove();
+	}
+
+	/**
+	 * @return the classes of Icy and the plugins, indexed by simple name.
+	 */
+	public static ClassCatalog getClassCatalog()
+	{
+		Catalog c = catalog.get();
+		return c == null ? ClassCatalog.EMPTY : c.classCatalog;
 	}
 
 	/**
@@ -320,9 +783,10 @@ public class ScriptEngineHandler implements PluginInstallerListener
 	 * 
 	 * @return
 	 */
-	public static ArrayList<String> getAllClasses()
+	public static List<String> getAllClasses()
 	{
-		return allClasses;
+		Catalog c = catalog.get();
+		return c == null ? Collections.<String> emptyList() : c.classes;
 	}
 
 	/**
@@ -344,9 +808,71 @@ public class ScriptEngineHandler implements PluginInstallerListener
 
 	public static void clearEngines()
 	{
-		for (ScriptEngine engine : engines.values())
+		for (Map<String, ScriptEngine> ownerEngines : engines.get().values())
 		{
-			engine.clear();
+			for (ScriptEngine engine : ownerEngines.values())
+				engine.clear();
+		}
+		clearEnginePools();
+	}
+
+	/**
+	 * Disposes the engines ready in the pools.
+	 */
+	private static void clearEnginePools()
+	{
+		synchronized (enginePools)
+		{
+			for (ScriptEnginePool pool : enginePools.values())
+				pool.clear();
+		}
+	}
+
+	/**
+	 * Immutable result of a scan of Icy and the plugins.
+	 */
+	private static class Catalog
+	{
+		final List<Method> functions;
+		final List<String> classes;
+		final ClassCatalog classCatalog;
+
+		Catalog(List<Method> functions, List<String> classes, ClassCatalog classCatalog)
+		{
+			this.functions = Collections.unmodifiableList(functions);
+			this.classes = Collections.unmodifiableList(classes);
+			this.classCatalog = classCatalog;
+		}
+	}
+
+	/**
+	 * Weak reference to an owner, compared by identity.
+	 */
+	private static class OwnerKey extends WeakReference<Object>
+	{
+		private final int hash;
+
+		OwnerKey(Object owner)
+		{
+			super(owner);
+			hash = System.identityHashCode(owner);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (obj == this)
+				return true;
+			if (!(obj instanceof OwnerKey))
+				return false;
+			Object owner = get();
+			return owner != null && owner == ((OwnerKey) obj).get();
 		}
 	}
 }
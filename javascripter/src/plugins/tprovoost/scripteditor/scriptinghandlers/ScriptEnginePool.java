@@ -0,0 +1,244 @@
+package plugins.tprovoost.scripteditor.scriptinghandlers;
+
+import icy.plugin.PluginLoader;
+import icy.system.thread.ThreadUtil;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Small pool of already initialized engines for one language. Engines handed
+ * out by {@link #acquire()} have never been used: once a script ran on an
+ * engine, it is disposed and never comes back in the pool, so no state can
+ * leak between runs. The pool is filled in background when an editor starts
+ * and after each acquisition. Engines staying idle longer than the idle
+ * timeout, or created with a previous plugin class loader, are evicted.
+ */
+public class ScriptEnginePool
+{
+	public static final int DEFAULT_SIZE = 2;
+	public static final long DEFAULT_IDLE_TIMEOUT = 10 * 60 * 1000;
+
+	private final String engineType;
+	private final LinkedList<PooledEngine> idle = new LinkedList<PooledEngine>();
+	private int size = DEFAULT_SIZE;
+	private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	private int pendingRefills = 0;
+	/** Incremented by {@link #clear()}: older refills are dropped. */
+	private int generation = 0;
+
+	// metrics
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long refills = 0;
+	private long totalRefillTime = 0;
+	private long lastRefillTime = 0;
+
+	public ScriptEnginePool(String engineType)
+	{
+		this.engineType = engineType;
+	}
+
+	/**
+	 * Returns a clean engine, taken from the pool if possible, created on the
+	 * caller's thread otherwise. The pool is refilled in background.
+	 *
+	 * @return a fresh engine, or <code>null</code> if the language is unknown.
+	 */
+	public ScriptEngine acquire()
+	{
+		ScriptEngine engine = null;
+		synchronized (this)
+		{
+			evictIdle();
+			if (!idle.isEmpty())
+			{
+				engine = idle.removeFirst().engine;
+				++hits;
+			} else
+				++misses;
+		}
+		if (engine == null)
+			engine = ScriptEngineHandler.createEngine(engineType);
+		refill();
+		return engine;
+	}
+
+	/**
+	 * Creates in background the engines missing to reach the pool size.
+	 */
+	public void refill()
+	{
+		final int missing;
+		final int refillGeneration;
+		synchronized (this)
+		{
+			evictIdle();
+			missing = size - idle.size() - pendingRefills;
+			if (missing <= 0)
+				return;
+			pendingRefills += missing;
+			refillGeneration = generation;
+		}
+		for (int i = 0; i < missing; ++i)
+		{
+			ThreadUtil.bgRun(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					long start = System.nanoTime();
+					ClassLoader loader = PluginLoader.getLoader();
+					ScriptEngine engine = null;
+					try
+					{
+						engine = ScriptEngineHandler.createEngine(engineType);
+					} finally
+					{
+						long time = (System.nanoTime() - start) / 1000000;
+						synchronized (ScriptEnginePool.this)
+						{
+							pendingRefills--;
+							if (engine != null && refillGeneration != generation)
+							{
+								// created before a clear, maybe with a stale
+								// class loader
+								engine.clear();
+							} else if (engine != null)
+							{
+								idle.addLast(new PooledEngine(engine, loader));
+								++refills;
+								totalRefillTime += time;
+								lastRefillTime = time;
+							}
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Disposes all the idle engines, and the ones being created.
+	 */
+	public synchronized void clear()
+	{
+		++generation;
+		for (PooledEngine pe : idle)
+			pe.engine.clear();
+		evictions += idle.size();
+		idle.clear();
+	}
+
+	private void evictIdle()
+	{
+		long now = System.currentTimeMillis();
+		ClassLoader loader = PluginLoader.getLoader();
+		for (Iterator<PooledEngine> it = idle.iterator(); it.hasNext();)
+		{
+			PooledEngine pe = it.next();
+			if (pe.loader != loader || now - pe.since > idleTimeout)
+			{
+				it.remove();
+				pe.engine.clear();
+				++evictions;
+			}
+		}
+	}
+
+	public String getEngineType()
+	{
+		return engineType;
+	}
+
+	public synchronized int getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * Sets the number of engines kept ready. 0 disables the pool.
+	 */
+	public synchronized void setSize(int size)
+	{
+		this.size = Math.max(0, size);
+		while (idle.size() > this.size)
+		{
+			idle.removeLast().engine.clear();
+			++evictions;
+		}
+	}
+
+	public synchronized long getIdleTimeout()
+	{
+		return idleTimeout;
+	}
+
+	public synchronized void setIdleTimeout(long idleTimeout)
+	{
+		this.idleTimeout = idleTimeout;
+	}
+
+	public synchronized int getIdleCount()
+	{
+		return idle.size();
+	}
+
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	public synchronized long getEvictions()
+	{
+		return evictions;
+	}
+
+	/**
+	 * @return the time spent to create the last engine in background, in
+	 *         milliseconds.
+	 */
+	public synchronized long getLastRefillTime()
+	{
+		return lastRefillTime;
+	}
+
+	/**
+	 * @return the mean time spent to create an engine in background, in
+	 *         milliseconds.
+	 */
+	public synchronized long getAverageRefillTime()
+	{
+		if (refills == 0)
+			return 0;
+		return totalRefillTime / refills;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return engineType + " engines: " + idle.size() + "/" + size + " ready (hits: " + hits + ", misses: " + misses + ", evictions: "
+				+ evictions + ", refill: " + getAverageRefillTime() + " ms)";
+	}
+
+	private static class PooledEngine
+	{
+		final ScriptEngine engine;
+		final long since;
+		/** Plugin class loader when the engine was created. */
+		final ClassLoader loader;
+
+		PooledEngine(ScriptEngine engine, ClassLoader loader)
+		{
+			this.engine = engine;
+			this.since = System.currentTimeMillis();
+			this.loader = loader;
+		}
+	}
+}
@@ -0,0 +1,450 @@
+package plugins.tprovoost.scripteditor.scriptinghandlers;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Runs the scripts of the editors, consoles and blocks on a bounded pool of
+ * worker threads:
+ * <ul>
+ * <li>an engine is never entered by two tasks at the same time, the tasks of
+ * an engine run in submission order, whatever their priority;</li>
+ * <li>among the tasks that can run, the one with the highest
+ * {@link Priority} runs first (interactive console before editor runs before
+ * blocks);</li>
+ * <li>the queue depth and the waiting times are recorded.</li>
+ * </ul>
+ * A task waited for from a worker (e.g. a protocol with script blocks
+ * launched by a script) runs directly in the worker if it targets the engine
+ * the worker already holds. Otherwise it is queued, and the pool grows by one
+ * worker while the caller waits, to avoid deadlocks when all the workers are
+ * busy.
+ */
+public class ScriptScheduler
+{
+	public enum Priority
+	{
+		INTERACTIVE, EDITOR, BATCH
+	}
+
+	public static final int DEFAULT_POOL_SIZE = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+	private static final ScriptScheduler instance = new ScriptScheduler(DEFAULT_POOL_SIZE);
+
+	private final TreeSet<ScriptTask> queue = new TreeSet<ScriptTask>();
+	private final IdentityHashMap<ScriptEngine, ScriptTask> runningEngines = new IdentityHashMap<ScriptEngine, ScriptTask>();
+	private final ArrayList<Worker> workers = new ArrayList<Worker>();
+	private int poolSize;
+	private int idleWorkers = 0;
+	/** Workers waiting in {@link #invokeAndWait}, replaced in the pool. */
+	private int blockedWorkers = 0;
+	private long sequence = 0;
+	/** Index of the next worker, for unique thread names. */
+	private int nextWorkerIndex = 0;
+
+	// metrics
+	private long submitted = 0;
+	private long completed = 0;
+	private int maxQueueDepth = 0;
+	private long totalWaitTime = 0;
+	private long maxWaitTime = 0;
+	private long totalRunTime = 0;
+
+	public ScriptScheduler(int poolSize)
+	{
+		this.poolSize = Math.max(1, poolSize);
+	}
+
+	public static ScriptScheduler getInstance()
+	{
+		return instance;
+	}
+
+	/**
+	 * Queues a task running on <code>engine</code>.
+	 *
+	 * @param engine
+	 *            : engine used by the task, may be <code>null</code> if the
+	 *            task does not use one.
+	 * @return the task, to wait for it or cancel it.
+	 */
+	public synchronized ScriptTask submit(ScriptEngine engine, Priority priority, Runnable runnable)
+	{
+		ScriptTask task = new ScriptTask(engine, priority, runnable, sequence++);
+		queue.add(task);
+		++submitted;
+		maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+		if (idleWorkers > 0)
+			notifyAll();
+		else if (workers.size() < poolSize + blockedWorkers)
+		{
+			Worker worker = new Worker(nextWorkerIndex++);
+			workers.add(worker);
+			worker.start();
+		}
+		return task;
+	}
+
+	private synchronized void setBlocked(boolean blocked)
+	{
+		if (blocked)
+			++blockedWorkers;
+		else
+			--blockedWorkers;
+	}
+
+	/**
+	 * Runs <code>callable</code> on <code>engine</code> and waits for its
+	 * result. Exceptions thrown by the callable are rethrown. If the wait is
+	 * interrupted, the task is cancelled: removed from the queue, or
+	 * interrupted if it is running.
+	 */
+	public <T> T invokeAndWait(ScriptEngine engine, Priority priority, final Callable<T> callable) throws Exception
+	{
+		Thread current = Thread.currentThread();
+		boolean fromWorker = current instanceof Worker;
+		if (fromWorker)
+		{
+			// the worker already holds the engine, no other task can enter it
+			ScriptTask running = ((Worker) current).task;
+			if (engine == null || (running != null && running.engine == engine))
+				return callable.call();
+		}
+
+		// counted before the submission, so that a worker is started for the task
+		if (fromWorker)
+			setBlocked(true);
+		try
+		{
+			final ArrayList<T> result = new ArrayList<T>(1);
+			ScriptTask task = submit(engine, priority, new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						result.add(callable.call());
+					} catch (Exception e)
+					{
+						throw new CallableException(e);
+					}
+				}
+			});
+			try
+			{
+				task.waitFor();
+			} catch (InterruptedException e)
+			{
+				task.cancel();
+				throw e;
+			}
+			return result.isEmpty() ? null : result.get(0);
+		} catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof CallableException)
+				throw (Exception) e.getCause().getCause();
+			if (e.getCause() instanceof Error)
+				throw (Error) e.getCause();
+			throw (RuntimeException) e.getCause();
+		} finally
+		{
+			if (fromWorker)
+				setBlocked(false);
+		}
+	}
+
+	private synchronized ScriptTask take(Worker worker) throws InterruptedException
+	{
+		while (true)
+		{
+			if (workers.size() > poolSize + blockedWorkers)
+			{
+				workers.remove(worker);
+				return null;
+			}
+			// the oldest task of each engine, the only one that can run
+			IdentityHashMap<ScriptEngine, ScriptTask> oldestTasks = new IdentityHashMap<ScriptEngine, ScriptTask>();
+			for (ScriptTask task : queue)
+			{
+				if (task.engine == null || task.isCancelled())
+					continue;
+				ScriptTask oldest = oldestTasks.get(task.engine);
+				if (oldest == null || task.sequence < oldest.sequence)
+					oldestTasks.put(task.engine, task);
+			}
+			for (Iterator<ScriptTask> it = queue.iterator(); it.hasNext();)
+			{
+				ScriptTask task = it.next();
+				if (task.isCancelled())
+				{
+					it.remove();
+					task.done(null);
+					continue;
+				}
+				if (task.engine == null || (!runningEngines.containsKey(task.engine) && oldestTasks.get(task.engine) == task))
+				{
+					it.remove();
+					if (task.engine != null)
+						runningEngines.put(task.engine, task);
+					long wait = System.currentTimeMillis() - task.submitTime;
+					totalWaitTime += wait;
+					maxWaitTime = Math.max(maxWaitTime, wait);
+					return task;
+				}
+			}
+			++idleWorkers;
+			try
+			{
+				wait();
+			} finally
+			{
+				--idleWorkers;
+			}
+		}
+	}
+
+	private synchronized void finished(ScriptTask task, long runTime)
+	{
+		if (task.engine != null)
+			runningEngines.remove(task.engine);
+		++completed;
+		totalRunTime += runTime;
+		// tasks waiting for this engine can run
+		notifyAll();
+	}
+
+	public synchronized int getPoolSize()
+	{
+		return poolSize;
+	}
+
+	/**
+	 * Sets the maximum number of workers. Extra workers stop once their task
+	 * is over.
+	 */
+	public synchronized void setPoolSize(int poolSize)
+	{
+		this.poolSize = Math.max(1, poolSize);
+		notifyAll();
+	}
+
+	public synchronized int getQueueDepth()
+	{
+		return queue.size();
+	}
+
+	public synchronized int getMaxQueueDepth()
+	{
+		return maxQueueDepth;
+	}
+
+	public synchronized int getRunningCount()
+	{
+		return workers.size() - idleWorkers;
+	}
+
+	public synchronized long getSubmittedCount()
+	{
+		return submitted;
+	}
+
+	public synchronized long getCompletedCount()
+	{
+		return completed;
+	}
+
+	/**
+	 * @return the mean time spent by the tasks in the queue, in milliseconds.
+	 */
+	public synchronized long getAverageWaitTime()
+	{
+		long started = completed + getRunningCount();
+		if (started == 0)
+			return 0;
+		return totalWaitTime / started;
+	}
+
+	public synchronized long getMaxWaitTime()
+	{
+		return maxWaitTime;
+	}
+
+	/**
+	 * @return the mean execution time of the tasks, in milliseconds.
+	 */
+	public synchronized long getAverageRunTime()
+	{
+		if (completed == 0)
+			return 0;
+		return totalRunTime / completed;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "Script scheduler: " + getRunningCount() + "/" + poolSize + " running, " + queue.size() + " queued (max " + maxQueueDepth
+				+ "), wait: " + getAverageWaitTime() + " ms (max " + maxWaitTime + " ms), run: " + getAverageRunTime() + " ms";
+	}
+
+	private class Worker extends Thread
+	{
+		/** Task running in this worker, <code>null</code> between tasks. */
+		volatile ScriptTask task;
+
+		Worker(int index)
+		{
+			super("Script worker " + index);
+			setDaemon(true);
+			// like the former evaluation threads, leaves the CPU to the GUI
+			setPriority(Thread.MIN_PRIORITY);
+		}
+
+		@Override
+		public void run()
+		{
+			while (true)
+			{
+				ScriptTask task;
+				try
+				{
+					task = take(this);
+				} catch (InterruptedException e)
+				{
+					continue;
+				}
+				if (task == null)
+					return;
+
+				long start = System.currentTimeMillis();
+				Throwable error = null;
+				task.setThread(this);
+				this.task = task;
+				try
+				{
+					task.runnable.run();
+				} catch (Throwable t)
+				{
+					error = t;
+				} finally
+				{
+					// no cancel() can interrupt this worker after this
+					task.setThread(null);
+					this.task = null;
+					// do not leak an interruption to the next task
+					Thread.interrupted();
+					finished(task, System.currentTimeMillis() - start);
+					task.done(error);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wraps the checked exceptions of the callables.
+	 */
+	private static class CallableException extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+
+		CallableException(Exception e)
+		{
+			super(e);
+		}
+	}
+
+	/**
+	 * A queued or running script.
+	 */
+	public static class ScriptTask implements Comparable<ScriptTask>
+	{
+		final ScriptEngine engine;
+		final Priority priority;
+		final Runnable runnable;
+		final long sequence;
+		final long submitTime = System.currentTimeMillis();
+		private Thread thread;
+		private volatile boolean cancelled = false;
+		private boolean done = false;
+		private Throwable error;
+
+		ScriptTask(ScriptEngine engine, Priority priority, Runnable runnable, long sequence)
+		{
+			this.engine = engine;
+			this.priority = priority;
+			this.runnable = runnable;
+			this.sequence = sequence;
+		}
+
+		public ScriptEngine getEngine()
+		{
+			return engine;
+		}
+
+		public Priority getPriority()
+		{
+			return priority;
+		}
+
+		/**
+		 * Removes the task from the queue if it did not start, interrupts
+		 * the thread running it otherwise. A running script should rather be
+		 * cancelled with {@link ScriptEngine#cancel(String)}.
+		 */
+		public synchronized void cancel()
+		{
+			cancelled = true;
+			// under the lock: the worker cannot move on to another task
+			if (thread != null)
+				thread.interrupt();
+		}
+
+		synchronized void setThread(Thread thread)
+		{
+			this.thread = thread;
+		}
+
+		public boolean isCancelled()
+		{
+			return cancelled;
+		}
+
+		public synchronized boolean isDone()
+		{
+			return done;
+		}
+
+		/**
+		 * Waits for the end of the task.
+		 *
+		 * @throws ExecutionException
+		 *             if the task threw an exception.
+		 */
+		public synchronized void waitFor() throws InterruptedException, ExecutionException
+		{
+			while (!done)
+				wait();
+			if (error != null)
+				throw new ExecutionException(error);
+		}
+
+		synchronized void done(Throwable error)
+		{
+			this.error = error;
+			done = true;
+			notifyAll();
+		}
+
+		@Override
+		public int compareTo(ScriptTask o)
+		{
+			if (priority != o.priority)
+				return priority.compareTo(o.priority);
+			return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+		}
+	}
+}
@@ -15,6 +15,16 @@ public class ScriptVariable
         addType(0, returnType);
     }
 
+    /**
+     * Copies the scopes of <code>variable</code>. The types are shared, they
+     * are not modified once assigned.
+     */
+    public ScriptVariable(ScriptVariable variable)
+    {
+        for (ScriptVariableScope svc : variable.variableScopes)
+            new ScriptVariableScope(svc.declarationOffset, svc.endScopeOffset, svc.type);
+    }
+
     public void addType(int offsetBegin, VariableType returnType)
     {
         addType(offsetBegin, -1, returnType);
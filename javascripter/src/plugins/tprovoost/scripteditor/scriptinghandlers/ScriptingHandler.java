@@ -25,6 +25,8 @@ import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.script.ScriptException;
 import javax.swing.JTextArea;
@@ -53,6 +55,7 @@ import plugins.tprovoost.scripteditor.completion.types.ScriptFunctionCompletion.
 import plugins.tprovoost.scripteditor.gui.PreferencesWindow;
 import plugins.tprovoost.scripteditor.gui.ScriptingPanel;
 import plugins.tprovoost.scripteditor.main.ScriptListener;
+import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptScheduler.Priority;
 import plugins.tprovoost.scripteditor.scriptingconsole.BindingsScriptFrame;
 
 /**
@@ -61,7 +64,7 @@ import plugins.tprovoost.scripteditor.scriptingconsole.BindingsScriptFrame;
  * 
  * @author Thomas Provoost
  */
-public abstract class ScriptingHandler implements KeyListener, PluginRepositoryLoaderListener, LinkGenerator
+public abstract class ScriptingHandler implements KeyListener, PluginRepositoryLoaderListener, LinkGenerator, ScriptEngineHandler.FunctionsListener
 {
 
 	/**
@@ -130,10 +133,22 @@ public abstract class ScriptingHandler implements KeyListener, PluginRepositoryL
 	private boolean varInterpretation = false;
 
 	/**
-	 * Thread running the evaluation.
+	 * Evaluation queued or running.
 	 */
 	public EvalThread thread;
 
+	/** Priority of the evaluations in the {@link ScriptScheduler}. */
+	private Priority priority = Priority.EDITOR;
+
+	/** Revision of the document, incremented at each change of its text. */
+	private final AtomicLong revision = new AtomicLong();
+
+	/** Last analysis published, see {@link #getAnalysis()}. */
+	private volatile ScriptAnalysis analysis = ScriptAnalysis.EMPTY;
+
+	/** Text of the document being analyzed, <code>null</code> if a part of it is. */
+	private String analyzedDocument;
+
 	private ArrayList<ScriptListener> listeners = new ArrayList<ScriptListener>();
 
 	/** Turn to true if you need to display more information in the console. */
@@ -302,6 +317,44 @@ public abstract class ScriptingHandler implements KeyListener, PluginRepositoryL
 		return externalVariables;
 	}
 
+	/**
+	 * @return the revision of the document, incremented at each change of its
+	 *         text.
+	 */
+	public long getRevision()
+	{
+		return revision.get();
+	}
+
+	/**
+	 * Returns the last analysis of the script, from any thread. The script is
+	 * analyzed on the EDT, when it is run, a dot is typed or the autobuild
+	 * timer ends: the analysis may be older than the document, its revision
+	 * can be compared to {@link #getRevision()}.
+	 */
+	public ScriptAnalysis getAnalysis()
+	{
+		return analysis;
+	}
+
+	/**
+	 * @return the text of the document, taken from the last analysis if it is
+	 *         up to date to avoid copying the document again.
+	 */
+	protected String getDocumentText()
+	{
+		ScriptAnalysis a = analysis;
+		if (a.isDocumentText() && a.getRevision() == revision.get())
+			return a.getText();
+		return textArea.getText();
+	}
+
+	private void publishAnalysis(String s)
+	{
+		analysis = new ScriptAnalysis(revision.get(), s, s == analyzedDocument, localVariables, localFunctions, blockFunctions,
+				scriptDeclaredImports, scriptDeclaredImportClasses, ignoredLines);
+	}
+
 	/**
 	 * Get the variable type.
 	 * 
@@ -320,6 +373,20 @@ public abstract class ScriptingHandler implements KeyListener, PluginRepositoryL
 	 * @return
 	 */
 	public VariableType getVariableDeclaration(String name, int offset)
+	{
+		return getVariableDeclaration(localVariables, name, offset);
+	}
+
+	/**
+	 * Get a variable declaration according to a specific offset, in an
+	 * analysis of the script.
+	 */
+	public VariableType getVariableDeclaration(String name, int offset, ScriptAnalysis analysis)
+	{
+		return getVariableDeclaration(analysis.getLocalVariables(), name, offset);
+	}
+
+	private VariableType getVariableDeclaration(Map<String, ScriptVariable> variables, String name, int offset)
 	{
 		boolean isArray = name.contains("[");
 		String originalName = name;
@@ -327,7 +394,7 @@ public abstract class ScriptingHandler implements KeyListener, PluginRepositoryL
 		{
 			name = name.substring(0, name.indexOf('['));
 		}
-		ScriptVariable sv = localVariables.get(name);
+		ScriptVariable sv = variables.get(name);
 		if (sv == null)
 			return null;
 		VariableType type = sv.getVariableClassType(offset);
@@ -399,14 +466,49 @@ public abstract class ScriptingHandler implements KeyListener, PluginRepositoryL
 		{
 			// install functions from ScriptEngineHandler
 			ScriptEngineHandler handler = ScriptEngineHandler.getEngineHandler(getEngine());
-			ArrayList<Method> functions = handler.getFunctions();
+			List<Method> functions = handler.getFunctions();
 
 			((IcyCompletionProvider) provider).installMethods(functions);
 			installMethods(getEngine(), functions);
 		}
 	}
 
-	public abstract void installMethods(ScriptEngine engine, ArrayList<Method> functions);
+	public abstract void installMethods(ScriptEngine engine, List<Method> functions);
+
+	/**
+	 * Updates the completions and the engine with the binding functions of an
+	 * installed or removed plugin.
+	 */
+	@Override
+	public void functionsChanged(final List<Method> added, final List<Method> removed)
+	{
+		if (!(provider instanceof IcyCompletionProvider))
+			return;
+		ThreadUtil.invokeLater(new Runnable()
+		{
+
+			@Override
+			public void run()
+			{
+				IcyCompletionProvider icyProvider = (IcyCompletionProvider) provider;
+				icyProvider.uninstallMethods(removed);
+				icyProvider.installMethods(added);
+			}
+		});
+		if (!added.isEmpty())
+		{
+			final ScriptEngine engine = getEngine();
+			ScriptScheduler.getInstance().submit(engine, Priority.EDITOR, new Runnable()
+			{
+
+				@Override
+				public void run()
+				{
+					installMethods(engine, added);
+				}
+			});
+		}
+	}
 
 	/**
 	 * Returns if should execute the code or not.
@@ -479,15 +581,17 @@ public abstract class ScriptingHandler implements KeyListener, PluginRepositoryL
 		// use either selected text if any or all text
 		String s = textArea.getSelectedText();
 		if (s == null)
-			s = textArea.getText();
+			s = analyzedDocument = textArea.getText();
 
 		// interpret the code
 		if (exec && forceRun)
 		{
+			analyzedDocument = null;
 			run();
 		} else
 		{
 			interpret(s);
+			analyzedDocument = null;
 			if (exec && (isCompilationOk()))
 				run();
 		}
@@ -597,9 +701,14 @@ public abstract class ScriptingHandler implements KeyListener, PluginRepositoryL
 				detectVariables(s);
 			}
 			setCompilationOk(true);
+			publishAnalysis(s);
 		} catch (Exception e)
 		{
+			ScriptAnalysis previous = analysis;
 			processError(s, e);
+			// unless the script was interpreted again without the faulty line
+			if (analysis == previous)
+				publishAnalysis(s);
 		}
 	}
 
@@ -614,8 +723,9 @@ public abstract class ScriptingHandler implements KeyListener, PluginRepositoryL
 			VariableCompletion c = new VariableCompletion(provider, s, type);
 			c.setRelevance(RELEVANCE_HIGH);
 			variableCompletions.add(c);
+			// a copy: the analysis adds the types assigned by the script
+			localVariables.put(s, new ScriptVariable(sv));
 		}
-		localVariables.putAll(externalVariables);
 	}
 
 	@SuppressWarnings("unchecked")
@@ -672,14 +782,13 @@ public abstract class ScriptingHandler implements KeyListener, PluginRepositoryL
 				// g.dispose();
 			}
 			ScriptEngine engine = createNewEngine();
-			thread = new EvalThread(engine, textArea.getText());
-			thread.setPriority(Thread.MIN_PRIORITY);
-			thread.start();
+			thread = new EvalThread(engine, getDocumentText());
+			ScriptScheduler.getInstance().submit(engine, priority, thread);
 		} else
 		{
 			ScriptEngine engine = getEngine();
-			EvalThread thread = new EvalThread(engine, textArea.getText());
-			thread.start();
+			thread = new EvalThread(engine, getDocumentText());
+			ScriptScheduler.getInstance().submit(engine, priority, thread);
 		}
 	}
 
@@ -697,14 +806,14 @@ public abstract class ScriptingHandler implements KeyListener, PluginRepositoryL
 		{
 			// retrieve the methods known to the old engine to transfert them to the new engine
 			ScriptEngineHandler engineHandler = ScriptEngineHandler.getEngineHandler(oldEngine);
-			ArrayList<Method> functions = engineHandler.getFunctions();
+			List<Method> functions = engineHandler.getFunctions();
 
 			// unregister the old engine (will do the housekeeping)
 			engineHandler.disposeEngine(oldEngine);
 			
 			// create a new engine
 			String newEngineType = oldEngine.getName();
-			ScriptEngine newEngine = ScriptEngineHandler.getEngine(newEngineType, true);
+			ScriptEngine newEngine = ScriptEngineHandler.getEngine(this, newEngineType, true);
 			installMethods(newEngine, functions);
 			try
 			{
@@ -836,9 +945,29 @@ public abstract class ScriptingHandler implements KeyListener, PluginRepositoryL
 	 * @return
 	 */
 	public Class<?> resolveClassDeclaration(String type)
+	{
+		return resolveClassDeclaration(type, scriptDeclaredImportClasses, scriptDeclaredImports);
+	}
+
+	/**
+	 * Same as {@link #resolveClassDeclaration(String)}, with the imports of an
+	 * analysis of the script.
+	 */
+	public Class<?> resolveClassDeclaration(String type, ScriptAnalysis analysis)
+	{
+		return resolveClassDeclaration(type, analysis.getImportClasses(), analysis.getImports());
+	}
+
+	/**
+	 * @param importClasses
+	 *            : classes imported by the script.
+	 * @param imports
+	 *            : packages imported by the script.
+	 */
+	protected Class<?> resolveClassDeclaration(String type, List<String> importClasses, List<String> imports)
 	{
 		// try with declared in the script importClass
-		for (String s : scriptDeclaredImportClasses)
+		for (String s : importClasses)
 		{
 			String className = ClassUtil.getSimpleClassName(s);
 			int idx = className.indexOf('$');
@@ -868,7 +997,7 @@ public abstract class ScriptingHandler implements KeyListener, PluginRepositoryL
 		}
 
 		// try with declared in the script importPackage
-		for (String s : scriptDeclaredImports)
+		for (String s : imports)
 		{
 			try
 			{
@@ -935,6 +1064,7 @@ public abstract class ScriptingHandler implements KeyListener, PluginRepositoryL
 		@Override
 		public void insertUpdate(DocumentEvent e)
 		{
+			revision.incrementAndGet();
 			try
 			{
 				Document doc = e.getDocument();
@@ -959,6 +1089,7 @@ public abstract class ScriptingHandler implements KeyListener, PluginRepositoryL
 		@Override
 		public void removeUpdate(DocumentEvent e)
 		{
+			revision.incrementAndGet();
 		}
 
 		@Override
@@ -1028,12 +1159,15 @@ public abstract class ScriptingHandler implements KeyListener, PluginRepositoryL
 	/**
 	 * @author Thomas Provoost
 	 */
-	public class EvalThread extends Thread
+	public class EvalThread implements Runnable
 	{
 
 		private String s;
 		private ScriptEngine evalEngine;
 		private String filename;
+		private volatile boolean cancelled = false;
+		/** Guarded by this, cleared before the worker moves on. */
+		private Thread runner;
 
 		public EvalThread(ScriptEngine engine, String script)
 		{
@@ -1044,6 +1178,10 @@ public abstract class ScriptingHandler implements KeyListener, PluginRepositoryL
 		@Override
 		public void run()
 		{
+			synchronized (this)
+			{
+				runner = Thread.currentThread();
+			}
 			fireEvaluationStarted();
 			if (evalEngine != getEngine())
 			{
@@ -1052,21 +1190,38 @@ public abstract class ScriptingHandler implements KeyListener, PluginRepositoryL
 			}
 			try
 			{
+				if (cancelled)
+					throw new ScriptCancelledException("stopped by the user");
 				evalEngine(evalEngine, s);
 
-				ScriptEngineHandler engineHandler = ScriptEngineHandler.getEngineHandler(getEngine());
+				final ScriptEngineHandler engineHandler = ScriptEngineHandler.getEngineHandler(getEngine());
+
+				// the declarations found by the last analysis, added on the
+				// EDT where the completion copies the engine types
+				final ScriptAnalysis a = getAnalysis();
+				ThreadUtil.invokeLater(new Runnable()
+				{
 
-				for (String key : localVariables.keySet())
-					engineHandler.getEngineVariables().put(key, localVariables.get(key).getVariableLastClassType());
-				engineHandler.getEngineFunctions().putAll(localFunctions);
-				engineHandler.getEngineDeclaredImportClasses().addAll(scriptDeclaredImportClasses);
-				engineHandler.getEngineDeclaredImports().addAll(scriptDeclaredImports);
+					@Override
+					public void run()
+					{
+						Map<String, ScriptVariable> variables = a.getLocalVariables();
+						for (String key : variables.keySet())
+							engineHandler.getEngineVariables().put(key, variables.get(key).getVariableLastClassType());
+						engineHandler.getEngineFunctions().putAll(a.getLocalFunctions());
+						engineHandler.getEngineDeclaredImportClasses().addAll(a.getImportClasses());
+						engineHandler.getEngineDeclaredImports().addAll(a.getImports());
+					}
+				});
 				BindingsScriptFrame frame = BindingsScriptFrame.getInstance();
 				frame.setEngine(evalEngine);
 				frame.update();
-			} catch (ThreadDeath td)
+			} catch (ScriptCancelledException e)
 			{
-				System.out.println("shutdown");
+				// the output written before the cancellation is kept
+				PrintWriter errorWriter = evalEngine.getErrorWriter();
+				errorWriter.write("\nScript stopped: " + e.getMessage() + "\n");
+				errorWriter.flush();
 			} catch (final Exception e)
 			{
 				ThreadUtil.invokeLater(new Runnable()
@@ -1082,20 +1237,38 @@ public abstract class ScriptingHandler implements KeyListener, PluginRepositoryL
 			{
 				updateGutter();
 				fireEvaluationOver();
-				thread = null;
+				synchronized (this)
+				{
+					runner = null;
+				}
+				if (thread == this)
+					thread = null;
+			}
+		}
+
+		/**
+		 * Asks the script to stop: it ends at its next instruction, or when
+		 * the Java call it is waiting for is interrupted.
+		 */
+		public void cancel()
+		{
+			cancelled = true;
+			evalEngine.cancel("stopped by the user");
+			// under the lock: the thread is still running this script
+			synchronized (this)
+			{
+				if (runner != null)
+					runner.interrupt();
 			}
 		}
 	}
 
-	@SuppressWarnings("deprecation")
 	public void killScript()
 	{
 		// Something is Running !
-		if (thread != null)
-		{
-			thread.stop();
-			thread = null;
-		}
+		EvalThread t = thread;
+		if (t != null)
+			t.cancel();
 	}
 
 	public void fireEvaluationStarted()
@@ -1115,6 +1288,20 @@ public abstract class ScriptingHandler implements KeyListener, PluginRepositoryL
 		return thread != null;
 	}
 
+	public Priority getPriority()
+	{
+		return priority;
+	}
+
+	/**
+	 * Sets the priority of the next evaluations, the consoles use
+	 * {@link Priority#INTERACTIVE}.
+	 */
+	public void setPriority(Priority priority)
+	{
+		this.priority = priority;
+	}
+
 	public void addScriptListener(ScriptListener listener)
 	{
 		listeners.add(listener);
@@ -1134,6 +1321,8 @@ public abstract class ScriptingHandler implements KeyListener, PluginRepositoryL
 	{
 		textArea.getDocument().removeDocumentListener(autoverify);
 		killScript();
+		ScriptEngineHandler.releaseEngines(this);
+		ScriptEngineHandler.removeFunctionsListener(this);
 	}
 
 	public static Method resolveMethod(Class<?> clazz, String name, Class<?>[] parameterTypes) throws SecurityException, NoSuchMethodException
@@ -0,0 +1,170 @@
+package plugins.tprovoost.scripteditor.scriptinghandlers.js;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+
+/**
+ * Bounded LRU cache of compiled Rhino {@link Script}s. Entries are keyed by a
+ * digest of the source text plus the compile options of the {@link Context}
+ * (optimization level, language version, debug info, instruction counting)
+ * and the source name, so running an unchanged script again skips parsing and
+ * code generation.
+ */
+public class CompiledScriptCache
+{
+	public static final int DEFAULT_CAPACITY = 64;
+
+	private final int capacity;
+	private final LinkedHashMap<String, Script> scripts;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	public CompiledScriptCache()
+	{
+		this(DEFAULT_CAPACITY);
+	}
+
+	public CompiledScriptCache(int capacity)
+	{
+		this.capacity = capacity;
+		scripts = new LinkedHashMap<String, Script>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Script> eldest)
+			{
+				if (size() > CompiledScriptCache.this.capacity)
+				{
+					++evictions;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns the compiled version of <code>source</code>, compiling it with
+	 * <code>context</code> only if no script compiled with the same options is
+	 * already cached.
+	 *
+	 * @param context
+	 *            : the current context, gives the compile options.
+	 * @param source
+	 *            : the script text.
+	 * @param sourceName
+	 *            : name used in error messages.
+	 * @return the compiled script.
+	 */
+	public Script compile(Context context, String source, String sourceName)
+	{
+		return compile(context, source, digest(source), sourceName);
+	}
+
+	/**
+	 * Same as {@link #compile(Context, String, String)}, with the digest of
+	 * the source already computed by {@link #digest(String)}.
+	 */
+	public Script compile(Context context, String source, String digest, String sourceName)
+	{
+		String key = createKey(context, digest, source.length(), sourceName);
+		synchronized (this)
+		{
+			Script script = scripts.get(key);
+			if (script != null)
+			{
+				++hits;
+				return script;
+			}
+			++misses;
+		}
+
+		// compile outside of the lock: may be long and may throw
+		Script script = context.compileString(source, sourceName, 0, null);
+		synchronized (this)
+		{
+			scripts.put(key, script);
+		}
+		return script;
+	}
+
+	public synchronized void clear()
+	{
+		scripts.clear();
+	}
+
+	public synchronized int size()
+	{
+		return scripts.size();
+	}
+
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	public synchronized long getEvictions()
+	{
+		return evictions;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "Compiled scripts: " + scripts.size() + "/" + capacity + " (hits: " + hits + ", misses: " + misses + ", evictions: " + evictions
+				+ ")";
+	}
+
+	private static String createKey(Context context, String digest, int length, String sourceName)
+	{
+		CompilerEnvirons env = new CompilerEnvirons();
+		env.initFromContext(context);
+		return digest + ":" + length + ":" + context.getOptimizationLevel() + ":" + context.getLanguageVersion() + ":"
+				+ context.isGeneratingDebug() + ":" + env.isGenerateObserverCount() + ":" + sourceName;
+	}
+
+	/**
+	 * @return the hexadecimal SHA-1 digest of the source.
+	 */
+	public static String digest(String source)
+	{
+		try
+		{
+			byte[] hash = MessageDigest.getInstance("SHA-1").digest(source.getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder(hash.length * 2);
+			for (byte b : hash)
+			{
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+				sb.append(Character.forDigit(b & 0xF, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e)
+		{
+			// every JRE has SHA-1, fallback on the String hash anyway.
+			return Integer.toHexString(source.hashCode());
+		} catch (UnsupportedEncodingException e)
+		{
+			return Integer.toHexString(source.hashCode());
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package plugins.tprovoost.scripteditor.scriptinghandlers.js;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Chooses the Rhino optimization level used to compile a script. In
+ * {@link ExecutionMode#ADAPTIVE} mode, a script starts interpreted (fast to
+ * start) and is compiled to JVM bytecode once it has been run enough times or
+ * has spent enough time in the interpreter.
+ */
+public class ExecutionPolicy
+{
+	public enum ExecutionMode
+	{
+		INTERPRETED("Interpreted"), COMPILED("Compiled"), ADAPTIVE("Adaptive");
+
+		private final String label;
+
+		private ExecutionMode(String label)
+		{
+			this.label = label;
+		}
+
+		@Override
+		public String toString()
+		{
+			return label;
+		}
+	}
+
+	public static final int INTERPRETED_LEVEL = -1;
+	public static final int COMPILED_LEVEL = 9;
+
+	/** Executions in interpreted mode before compiling the script. */
+	public static final int ADAPTIVE_EXECUTIONS = 3;
+
+	/** Time spent in interpreted mode before compiling the script (ms). */
+	public static final long ADAPTIVE_TIME = 500;
+
+	private static final int MAX_PROFILES = 256;
+
+	private final LinkedHashMap<String, Profile> profiles = new LinkedHashMap<String, Profile>(16, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Profile> eldest)
+		{
+			return size() > MAX_PROFILES;
+		}
+	};
+
+	/**
+	 * @param mode
+	 *            : the execution mode of the engine.
+	 * @param digest
+	 *            : digest of the script source.
+	 * @return the optimization level to use for this script.
+	 */
+	public synchronized int getOptimizationLevel(ExecutionMode mode, String digest)
+	{
+		switch (mode)
+		{
+		case INTERPRETED:
+			return INTERPRETED_LEVEL;
+		case COMPILED:
+			return COMPILED_LEVEL;
+		default:
+			Profile profile = profiles.get(digest);
+			if (profile != null && (profile.executions >= ADAPTIVE_EXECUTIONS || profile.time >= ADAPTIVE_TIME))
+				return COMPILED_LEVEL;
+			return INTERPRETED_LEVEL;
+		}
+	}
+
+	/**
+	 * Records an execution of the script.
+	 *
+	 * @param digest
+	 *            : digest of the script source.
+	 * @param optimizationLevel
+	 *            : level the script was compiled with.
+	 * @param time
+	 *            : execution time in milliseconds.
+	 */
+	public synchronized void executed(String digest, int optimizationLevel, long time)
+	{
+		if (optimizationLevel != INTERPRETED_LEVEL)
+			return;
+		Profile profile = profiles.get(digest);
+		if (profile == null)
+		{
+			profile = new Profile();
+			profiles.put(digest, profile);
+		}
+		profile.executions++;
+		profile.time += time;
+	}
+
+	public synchronized void clear()
+	{
+		profiles.clear();
+	}
+
+	private static class Profile
+	{
+		int executions = 0;
+		long time = 0;
+	}
+}
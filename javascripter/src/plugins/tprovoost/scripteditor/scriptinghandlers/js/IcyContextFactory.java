@@ -0,0 +1,93 @@
+package plugins.tprovoost.scripteditor.scriptinghandlers.js;
+
+import icy.plugin.PluginLoader;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+
+import plugins.tprovoost.scripteditor.scriptinghandlers.RunControl;
+
+/**
+ * {@link ContextFactory} used for all the javascript of the Script Editor:
+ * execution, analysis and formatting. Contexts are configured once when they
+ * are created (instruction observer, observer count in compiled scripts), so
+ * the callers only have to enter and exit them.
+ * <p>
+ * Each thread (script workers, EDT for the analysis) keeps its context after
+ * exiting it, and enters it again next time: only the settings a caller may
+ * change (class loader, optimization level, language version) are reset. A
+ * thread already inside a context (e.g. <code>eval()</code> called from a
+ * script) reuses it. The instruction observer checks the {@link RunControl}
+ * of the running script, so a script can be stopped whatever its execution
+ * mode.
+ * <p>
+ * This is not installed as the global Rhino factory, other plugins using Rhino
+ * are not affected.
+ */
+public class IcyContextFactory extends ContextFactory
+{
+	/** Number of instructions between two calls to the observer. */
+	public static final int INSTRUCTION_OBSERVER_THRESHOLD = 10000;
+
+	private static final IcyContextFactory instance = new IcyContextFactory();
+
+	private final AtomicLong instructionCount = new AtomicLong();
+
+	/** Context of each thread, kept between two entries. */
+	private final ThreadLocal<Context> threadContext = new ThreadLocal<Context>();
+
+	public static IcyContextFactory getInstance()
+	{
+		return instance;
+	}
+
+	/**
+	 * Enters the context of the current thread, created on the first call.
+	 * Must be followed by {@link Context#exit()}.
+	 */
+	@Override
+	public Context enterContext()
+	{
+		// nested call: stay in the context already entered
+		if (Context.getCurrentContext() != null)
+			return super.enterContext();
+
+		Context context = enterContext(threadContext.get());
+		threadContext.set(context);
+		context.setApplicationClassLoader(PluginLoader.getLoader());
+		context.setOptimizationLevel(ExecutionPolicy.INTERPRETED_LEVEL);
+		context.setLanguageVersion(Context.VERSION_DEFAULT);
+		return context;
+	}
+
+	@Override
+	protected Context makeContext()
+	{
+		Context context = super.makeContext();
+		context.setInstructionObserverThreshold(INSTRUCTION_OBSERVER_THRESHOLD);
+		// without it, the compiled scripts never call the observer
+		context.setGenerateObserverCount(true);
+		return context;
+	}
+
+	@Override
+	protected void observeInstructionCount(Context cx, int instructionCount)
+	{
+		this.instructionCount.addAndGet(instructionCount);
+		// stops the script if it was cancelled or exceeded its budget
+		RunControl run = RunControl.current();
+		if (run != null)
+			run.check(instructionCount);
+	}
+
+	/**
+	 * @return the number of javascript instructions executed through this
+	 *         factory (approximated to {@link #INSTRUCTION_OBSERVER_THRESHOLD}).
+	 */
+	public long getInstructionCount()
+	{
+		return instructionCount.get();
+	}
+}
@@ -8,7 +8,15 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.EvaluatorException;
@@ -16,23 +24,131 @@ import org.mozilla.javascript.ImporterTopLevel;
 import org.mozilla.javascript.NativeJavaObject;
 import org.mozilla.javascript.RhinoException;
 import org.mozilla.javascript.Script;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
 
+import plugins.tprovoost.scripteditor.scriptinghandlers.BindingsChanges;
+import plugins.tprovoost.scripteditor.scriptinghandlers.RunControl;
+import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptCancelledException;
 import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptEditorException;
 import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptEngine;
+import plugins.tprovoost.scripteditor.scriptinghandlers.js.ExecutionPolicy.ExecutionMode;
 
 public class JSScriptEngine extends ScriptEngine
 {
+	/** Compiled scripts, shared by all the javascript engines. */
+	private static final CompiledScriptCache scriptCache = new CompiledScriptCache();
+
+	/**
+	 * Sealed scope holding the java access objects shared by all the
+	 * javascript engines. Rebuilt if the plugin class loader changes.
+	 */
+	private static ImporterTopLevel sharedScope;
+	private static ClassLoader sharedScopeLoader;
+
+	/** Execution profiles of the scripts, shared by all the javascript engines. */
+	private static final ExecutionPolicy executionPolicy = new ExecutionPolicy();
+	private static volatile ExecutionMode defaultExecutionMode = ExecutionMode.ADAPTIVE;
 
 	public ScriptableObject scriptable;
 	public String lastFileName = "";
+	/** Mode of this engine, <code>null</code> to follow the default one. */
+	private volatile ExecutionMode executionMode = null;
+
+	/** Names put or deleted in the scope since the last bindings changes. */
+	private final LinkedHashSet<String> modifiedBindings = new LinkedHashSet<String>();
+
+	/**
+	 * Bindings reported by the last bindings changes, read from the thread of
+	 * the run and from the EDT.
+	 */
+	private final Set<String> knownBindings = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
 	public JSScriptEngine()
 	{
-		Context context = Context.enter();
-		context.setApplicationClassLoader(PluginLoader.getLoader());
-		scriptable = new IcyImporterTopLevel(context);
-		Context.exit();
+		Context context = IcyContextFactory.getInstance().enterContext();
+		try
+		{
+			scriptable = new IcyImporterTopLevel(context);
+		} finally
+		{
+			Context.exit();
+		}
+		bindings = new ScopeBindings();
+	}
+
+	/** Objects of the shared scope defined in every engine scope. */
+	private static final String[] SHARED_OBJECTS = { "Packages", "java", "javax", "org", "com", "edu", "net", "getClass", "JavaAdapter" };
+
+	/**
+	 * Returns the sealed scope holding the java access objects (packages,
+	 * <code>getClass</code>, <code>JavaAdapter</code>). They are built once
+	 * and then defined in every engine scope, so the classes and packages
+	 * looked up by a script are found again by the next engines.<br/>
+	 * The engine scopes are deliberately not thin children of this scope:
+	 * with a sealed shared parent, the prototypes of the standard objects
+	 * could not be extended by the scripts (polyfills), and with an unsealed
+	 * one, an extension made by a script would leak to every other engine.
+	 * Only the java access objects, which are the expensive part of a scope
+	 * and hold no script state, are shared; each scope keeps its own
+	 * standard objects, which Rhino loads lazily.
+	 * 
+	 * @param context
+	 *            : the current context.
+	 * @return the sealed shared scope, built with the current plugin class
+	 *         loader.
+	 */
+	public static synchronized ImporterTopLevel getSharedScope(Context context)
+	{
+		ClassLoader loader = PluginLoader.getLoader();
+		if (sharedScope == null || sharedScopeLoader != loader)
+		{
+			ClassLoader oldLoader = context.getApplicationClassLoader();
+			context.setApplicationClassLoader(loader);
+			try
+			{
+				ImporterTopLevel scope = new ImporterTopLevel();
+				scope.initStandardObjects(context, true);
+
+				// force the lazily loaded objects to be loaded before sealing
+				context.evaluateString(scope, "RegExp; getClass; java; Packages; JavaAdapter;", "lazyLoad", 0, null);
+				scope.sealObject();
+
+				sharedScope = scope;
+				sharedScopeLoader = loader;
+			} finally
+			{
+				context.setApplicationClassLoader(oldLoader);
+			}
+		}
+		return sharedScope;
+	}
+
+	/**
+	 * Creates a new scope with its own standard objects and the shared java
+	 * access objects (see {@link #getSharedScope(Context)}).
+	 * 
+	 * @param context
+	 *            : the current context.
+	 * @return the new top level scope.
+	 */
+	public static Scriptable newScope(Context context)
+	{
+		ScriptableObject scope = context.initStandardObjects();
+		defineSharedObjects(context, scope);
+		return scope;
+	}
+
+	/**
+	 * Defines the objects of the shared scope in <code>scope</code>, in place
+	 * of the lazily loaded ones of its standard objects.
+	 */
+	private static void defineSharedObjects(Context context, ScriptableObject scope)
+	{
+		ImporterTopLevel shared = getSharedScope(context);
+		for (String name : SHARED_OBJECTS)
+			scope.defineProperty(name, ScriptableObject.getProperty(shared, name), ScriptableObject.DONTENUM);
 	}
 
 	@Override
@@ -41,8 +157,8 @@ public class JSScriptEngine extends ScriptEngine
 		// uses Context from Rhino integrated in JRE or impossibility
 		// to use already defined methods in ScriptEngine, such as println or
 		// getImage
-		Context context = Context.enter();
-		context.setApplicationClassLoader(PluginLoader.getLoader());
+		RunControl run = startRun();
+		Context context = IcyContextFactory.getInstance().enterContext();
 		// context.setErrorReporter(errorReporter);
 		try
 		{
@@ -53,8 +169,7 @@ public class JSScriptEngine extends ScriptEngine
 			// Object o = bs.get(key);
 			// scriptable.put(key, scriptable, o);
 			// }
-			Script script = context.compileString(s, "script", 0, null);
-			script.exec(context, scriptable);
+			exec(context, s, run);
 			// for (Object o : scriptable.getIds())
 			// {
 			// String key = (String) o;
@@ -66,16 +181,16 @@ public class JSScriptEngine extends ScriptEngine
 			throw new ScriptEditorException(e.getMessage(), e.sourceName(), e.lineNumber() + 1, e.columnNumber());
 		} catch (RhinoException e3)
 		{
+			// stopped in a java call, the cancellation was wrapped
+			ScriptCancelledException cancelled = ScriptCancelledException.find(e3);
+			if (cancelled != null)
+				throw cancelled;
 			getErrorWriter().write(e3.getMessage());
 			throw new ScriptEditorException(e3.getMessage(), e3.sourceName(), e3.lineNumber() + 1, e3.columnNumber());
 		} finally
 		{
-			bindings.clear();
-			for (Object o : scriptable.getIds())
-			{
-				bindings.put((String) o, scriptable.get(o));
-			}
 			Context.exit();
+			endRun(run);
 		}
 	}
 
@@ -101,33 +216,113 @@ public class JSScriptEngine extends ScriptEngine
 		}
 		String s = new String(bytes);
 
-		Context context = Context.enter();
-		context.setApplicationClassLoader(PluginLoader.getLoader());
+		RunControl run = startRun();
+		Context context = IcyContextFactory.getInstance().enterContext();
 		// context.setErrorReporter(errorReporter);
 		try
 		{
-			Script script = context.compileString(s, "script", 0, null);
-			script.exec(context, scriptable);
+			exec(context, s, run);
 		} catch (EvaluatorException e)
 		{
 			getErrorWriter().write(e.getMessage());
 			throw new ScriptEditorException(e.getMessage(), e.sourceName(), e.lineNumber() + 1, e.columnNumber());
 		} catch (RhinoException e3)
 		{
+			// stopped in a java call, the cancellation was wrapped
+			ScriptCancelledException cancelled = ScriptCancelledException.find(e3);
+			if (cancelled != null)
+				throw cancelled;
 			getErrorWriter().write(e3.getMessage());
 			throw new ScriptEditorException(e3.getMessage(), e3.sourceName(), e3.lineNumber() + 1, e3.columnNumber());
 		} finally
 		{
-			bindings.clear();
-			for (Object o : scriptable.getIds())
-			{
-				bindings.put((String) o, scriptable.get(o));
-			}
 			lastFileName = "";
 			Context.exit();
+			endRun(run);
 		}
 	}
 
+	/**
+	 * Compiles the script with the optimization level given by the execution
+	 * mode of this engine, and executes it in the engine scope.
+	 * 
+	 * @param context
+	 *            : the current context.
+	 * @param s
+	 *            : the script.
+	 * @param run
+	 *            : the run started for this script, <code>null</code> for a
+	 *            nested evaluation: the statistics of the outer run are kept.
+	 * @return the result of the script.
+	 */
+	private Object exec(Context context, String s, RunControl run)
+	{
+		String digest = CompiledScriptCache.digest(s);
+		// read at each run: the default mode can change in the preferences
+		ExecutionMode mode = getExecutionMode();
+		int level = executionPolicy.getOptimizationLevel(mode, digest);
+		Script script;
+		// the context is shared by all the runs of the thread
+		int oldLevel = context.getOptimizationLevel();
+		context.setOptimizationLevel(level);
+		try
+		{
+			try
+			{
+				script = scriptCache.compile(context, s, digest, "script");
+			} catch (EvaluatorException e)
+			{
+				if (level == ExecutionPolicy.INTERPRETED_LEVEL || !isCodeGenerationError(e))
+					throw e;
+
+				// the bytecode generation can fail on huge scripts (64K limit
+				// per method), fallback on the interpreter.
+				level = ExecutionPolicy.INTERPRETED_LEVEL;
+				context.setOptimizationLevel(level);
+				script = scriptCache.compile(context, s, digest, "script");
+			}
+		} finally
+		{
+			context.setOptimizationLevel(oldLevel);
+		}
+
+		long start = System.nanoTime();
+		try
+		{
+			return script.exec(context, scriptable);
+		} finally
+		{
+			long time = (System.nanoTime() - start) / 1000000;
+			executionPolicy.executed(digest, level, time);
+			if (run != null)
+				runStatistics = "Executed in " + time + " ms (" + mode + ", "
+						+ (level == ExecutionPolicy.INTERPRETED_LEVEL ? "interpreted" : "compiled, optimization " + level) + ")";
+		}
+	}
+
+	/**
+	 * @return true if the compilation failed while generating the bytecode
+	 *         (class or method too large), false for the errors of the
+	 *         parser.
+	 */
+	private static boolean isCodeGenerationError(EvaluatorException e)
+	{
+		// Codegen reports its errors with these messages, in the locale of
+		// the context
+		String scriptMessage = ScriptRuntime.getMessage1("msg.while.compiling.script", "");
+		String functionMessage = ScriptRuntime.getMessage2("msg.while.compiling.fn", "", "");
+		int length = 0;
+		while (length < scriptMessage.length() && length < functionMessage.length()
+				&& scriptMessage.charAt(length) == functionMessage.charAt(length))
+			++length;
+		String message = e.details();
+		return length > 0 && message != null && message.startsWith(scriptMessage.substring(0, length));
+	}
+
+	/**
+	 * Top level scope of an engine, with its own standard objects (loaded
+	 * lazily) and the java access objects of the shared scope.
+	 */
 	class IcyImporterTopLevel extends ImporterTopLevel
 	{
 
@@ -138,11 +333,44 @@ public class JSScriptEngine extends ScriptEngine
 
 		public IcyImporterTopLevel(Context context)
 		{
-			super(context);
+			super();
+			initStandardObjects(context, false);
+			// initStandardObjects also defines importPackage and importClass,
+			// registering the imports in this scope
+			defineSharedObjects(context, this);
 			String[] names = { "println", "print", "eval" };
 			defineFunctionProperties(names, IcyImporterTopLevel.class, ScriptableObject.DONTENUM);
 		}
 
+		@Override
+		public String getClassName()
+		{
+			return "global";
+		}
+
+		@Override
+		public void put(String name, Scriptable start, Object value)
+		{
+			super.put(name, start, value);
+			if (start == this)
+				bindingModified(name);
+		}
+
+		@Override
+		public void putConst(String name, Scriptable start, Object value)
+		{
+			super.putConst(name, start, value);
+			if (start == this)
+				bindingModified(name);
+		}
+
+		@Override
+		public void delete(String name)
+		{
+			super.delete(name);
+			bindingModified(name);
+		}
+
 		public void println(Object o)
 		{
 			getWriter().write(Context.toString(o) + "\n");
@@ -186,12 +414,11 @@ public class JSScriptEngine extends ScriptEngine
 				// getErrorWriter().write(e1.getMessage());
 			}
 			String s = new String(bytes);
-			Context context = Context.enter();
-			context.setApplicationClassLoader(PluginLoader.getLoader());
+			Context context = IcyContextFactory.getInstance().enterContext();
 			try
 			{
-				Script script = context.compileString(s, "script", 0, null);
-				script.exec(context, scriptable);
+				// nested in the run of the calling script
+				JSScriptEngine.this.exec(context, s, null);
 			} catch (EvaluatorException e)
 			{
 				// getErrorWriter().write(e.getMessage());
@@ -207,6 +434,44 @@ public class JSScriptEngine extends ScriptEngine
 		}
 	}
 
+	@Override
+	public String getCacheStatistics()
+	{
+		return scriptCache.toString();
+	}
+
+	public static ExecutionMode getDefaultExecutionMode()
+	{
+		return defaultExecutionMode;
+	}
+
+	/**
+	 * Sets the execution mode of the engines without their own mode, applied
+	 * from their next run.
+	 * 
+	 * @param mode
+	 */
+	public static void setDefaultExecutionMode(ExecutionMode mode)
+	{
+		defaultExecutionMode = mode;
+	}
+
+	public ExecutionMode getExecutionMode()
+	{
+		ExecutionMode mode = executionMode;
+		return mode != null ? mode : defaultExecutionMode;
+	}
+
+	/**
+	 * @param executionMode
+	 *            : mode of this engine, <code>null</code> to follow the
+	 *            default mode.
+	 */
+	public void setExecutionMode(ExecutionMode executionMode)
+	{
+		this.executionMode = executionMode;
+	}
+
 	@Override
 	public String getName()
 	{
@@ -216,20 +481,202 @@ public class JSScriptEngine extends ScriptEngine
 	@Override
 	public void clear()
 	{
-		HashMap<String, Object> bindings = getBindings();
-		for (String s : bindings.keySet())
+		for (Object id : scriptable.getIds())
 		{
-			bindings.put(s, null);
-			scriptable.delete(s);
+			if (id instanceof String)
+			{
+				// variables declared with "var" cannot be deleted, at least
+				// release their value.
+				scriptable.put((String) id, scriptable, null);
+				scriptable.delete((String) id);
+			}
 		}
 	}
 
+	/**
+	 * Returns a live view of the variables of the engine scope: nothing is
+	 * copied after a run, values are read from the scope when accessed.
+	 */
 	@Override
-	public HashMap<String, Object> getBindings()
+	public Map<String, Object> getBindings()
 	{
 		return bindings;
 	}
 
+	@Override
+	public void put(String name, Object value)
+	{
+		putInRealEngine(name, value);
+	}
+
+	/**
+	 * Returns the bindings added, changed (assigned again) or removed since the
+	 * last call. Only the names written in the scope since then are checked,
+	 * not all the bindings.
+	 */
+	@Override
+	public BindingsChanges getBindingsChanges()
+	{
+		String[] names;
+		synchronized (modifiedBindings)
+		{
+			names = modifiedBindings.toArray(new String[modifiedBindings.size()]);
+			modifiedBindings.clear();
+		}
+		BindingsChanges changes = new BindingsChanges();
+		for (String name : names)
+		{
+			boolean exists = isBinding(name);
+			if (knownBindings.contains(name))
+			{
+				if (exists)
+					changes.markChanged(name);
+				else
+				{
+					changes.markRemoved(name);
+					knownBindings.remove(name);
+				}
+			} else if (exists)
+			{
+				changes.markAdded(name);
+				knownBindings.add(name);
+			}
+		}
+		return changes;
+	}
+
+	private void bindingModified(String name)
+	{
+		synchronized (modifiedBindings)
+		{
+			modifiedBindings.add(name);
+		}
+	}
+
+	/**
+	 * @return true if the name is an enumerable property of the engine scope
+	 *         (functions like println are not bindings).
+	 */
+	private boolean isBinding(String name)
+	{
+		return scriptable.has(name, scriptable) && (scriptable.getAttributes(name) & ScriptableObject.DONTENUM) == 0;
+	}
+
+	/**
+	 * {@link Map} view of the engine scope.
+	 */
+	private class ScopeBindings extends AbstractMap<String, Object>
+	{
+		@Override
+		public Object get(Object key)
+		{
+			// like containsKey, the functions like println are not bindings
+			if (!(key instanceof String) || !isBinding((String) key))
+				return null;
+			return scriptable.get(key);
+		}
+
+		@Override
+		public boolean containsKey(Object key)
+		{
+			return key instanceof String && isBinding((String) key);
+		}
+
+		@Override
+		public Object put(String key, Object value)
+		{
+			Object old = get(key);
+			scriptable.put(key, scriptable, value);
+			return old;
+		}
+
+		@Override
+		public Object remove(Object key)
+		{
+			if (!(key instanceof String) || !isBinding((String) key))
+				return null;
+			Object old = get(key);
+			scriptable.delete((String) key);
+			return old;
+		}
+
+		@Override
+		public void clear()
+		{
+			JSScriptEngine.this.clear();
+		}
+
+		@Override
+		public Set<Map.Entry<String, Object>> entrySet()
+		{
+			return new AbstractSet<Map.Entry<String, Object>>()
+			{
+				@Override
+				public Iterator<Map.Entry<String, Object>> iterator()
+				{
+					final Object[] ids = scriptable.getIds();
+					return new Iterator<Map.Entry<String, Object>>()
+					{
+						private int idx = next(0);
+						private String current = null;
+
+						private int next(int from)
+						{
+							while (from < ids.length && !(ids[from] instanceof String))
+								from++;
+							return from;
+						}
+
+						@Override
+						public boolean hasNext()
+						{
+							return idx < ids.length;
+						}
+
+						@Override
+						public Map.Entry<String, Object> next()
+						{
+							if (!hasNext())
+								throw new NoSuchElementException();
+							current = (String) ids[idx];
+							idx = next(idx + 1);
+							return new SimpleEntry<String, Object>(current, ScopeBindings.this.get(current))
+							{
+								private static final long serialVersionUID = 1L;
+
+								@Override
+								public Object setValue(Object value)
+								{
+									scriptable.put(getKey(), scriptable, value);
+									return super.setValue(value);
+								}
+							};
+						}
+
+						@Override
+						public void remove()
+						{
+							if (current == null)
+								throw new IllegalStateException();
+							scriptable.delete(current);
+							current = null;
+						}
+					};
+				}
+
+				@Override
+				public int size()
+				{
+					int size = 0;
+					for (Object id : scriptable.getIds())
+						if (id instanceof String)
+							size++;
+					return size;
+				}
+			};
+		}
+	}
+
 	@Override
 	protected void putInRealEngine(String name, Object value)
 	{
@@ -54,7 +54,7 @@ import org.mozilla.javascript.Function;
 import org.mozilla.javascript.NativeArray;
 import org.mozilla.javascript.NativeObject;
 import org.mozilla.javascript.Node;
-import org.mozilla.javascript.Parser;
+import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.Token;
 import org.mozilla.javascript.ast.Assignment;
 import org.mozilla.javascript.ast.AstNode;
@@ -88,6 +88,10 @@ import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptEngineHandler;
 import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptVariable;
 import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptingHandler;
 import plugins.tprovoost.scripteditor.scriptinghandlers.VariableType;
+import plugins.tprovoost.scripteditor.scriptinghandlers.js.ScriptStatements.Declaration;
+import plugins.tprovoost.scripteditor.scriptinghandlers.js.ScriptStatements.FunctionBlock;
+import plugins.tprovoost.scripteditor.scriptinghandlers.js.ScriptStatements.Statement;
+import plugins.tprovoost.scripteditor.scriptinghandlers.js.ScriptStatements.StatementAnalysis;
 
 public class JSScriptingHandlerRhino extends ScriptingHandler
 {
@@ -98,6 +102,13 @@ public class JSScriptingHandlerRhino extends ScriptingHandler
 	 * {@link #resolveCallType(AstNode, String, boolean)}.
 	 */
 	private LinkedList<IcyFunctionBlock> functionBlocksToResolve = new LinkedList<IcyFunctionBlock>();
+
+	/** Top-level statements of the last analyzed script. */
+	private ScriptStatements statements = new ScriptStatements();
+
+	/** Analysis of the statement being registered, <code>null</code> if none. */
+	private StatementAnalysis recording;
+
 	private ErrorReporter errorReporter = new ErrorReporter()
 	{
 
@@ -318,7 +329,7 @@ public class JSScriptingHandlerRhino extends ScriptingHandler
 	}
 
 	@Override
-	public void installMethods(ScriptEngine engine, ArrayList<Method> methods)
+	public void installMethods(ScriptEngine engine, List<Method> methods)
 	{
 		// hardcoded functions, to remove in the future
 		try
@@ -602,24 +613,24 @@ public class JSScriptingHandlerRhino extends ScriptingHandler
 	@Override
 	protected void detectVariables(String s) throws ScriptException
 	{
-		Context context = Context.enter();
+		Context context = IcyContextFactory.getInstance().enterContext();
 		try
 		{
 			currentText = s;
 			final CompilerEnvirons comp = new CompilerEnvirons();
 			comp.initFromContext(context);
-			final Parser parser = new Parser(comp, comp.getErrorReporter());
-			AstRoot root = null;
+			List<Statement> parsed;
 
 			try
 			{
-				root = parser.parse(s, "", 1);
+				// only the statements touched since the last call are parsed
+				parsed = statements.update(s, comp);
 			} catch (EvaluatorException e)
 			{
 				throw new ScriptEditorException(e.getMessage(), fileName, e.lineNumber(), e.columnNumber(), true);
 			}
 
-			if (root == null || !root.hasChildren())
+			if (parsed.isEmpty())
 				return;
 			// no issue, removes variables
 			if (provider != null)
@@ -631,15 +642,33 @@ public class JSScriptingHandlerRhino extends ScriptingHandler
 
 			// functionBlocksToResolve.clear();
 			if (DEBUG)
-				dumpTree(root, root, 1, "");
+			{
+				for (Statement st : parsed)
+					if (st.node != null)
+						dumpTree(st.node, st.node.getAstRoot(), 1, "");
+			}
 
 			// register external variables prio to detection.
 			// Otherwise, references to external variables will not
 			// be detected.
 			addExternalVariables();
 
-			// start variable registration
-			registerVariables(root, root, s);
+			// start variable registration: the analysis of a statement is
+			// replayed if what was declared before it did not change.
+			long signature = getContextSignature();
+			for (Statement st : parsed)
+			{
+				StatementAnalysis analysis = st.analysis;
+				if (analysis != null && analysis.signature == signature)
+				{
+					analysis.replay(this, st.start, st.line);
+					if (!analysis.errors.isEmpty())
+						updateGutter();
+				} else
+					analysis = analyzeStatement(st, comp, s, signature);
+				st.node = null;
+				signature = analysis.signatureOut;
+			}
 
 			// add the completions
 			if (provider != null)
@@ -650,6 +679,71 @@ public class JSScriptingHandlerRhino extends ScriptingHandler
 		}
 	}
 
+	/**
+	 * Registers the variables of a top-level statement, recording what is
+	 * added to replay it at the next calls.
+	 */
+	private StatementAnalysis analyzeStatement(Statement st, CompilerEnvirons comp, String text, long signature) throws ScriptException
+	{
+		AstNode node = st.node;
+		if (node == null)
+		{
+			// the context of the statement changed: parse it alone
+			try
+			{
+				node = ScriptStatements.parse(comp, text.substring(st.start, st.end), st.start, st.line);
+			} catch (EvaluatorException e)
+			{
+				statements.reset();
+				throw new ScriptEditorException(e.getMessage(), fileName, e.lineNumber(), e.columnNumber(), true);
+			}
+		}
+		StatementAnalysis analysis = new StatementAnalysis(signature, st.start, st.line);
+		int errors = ignoredLines.size();
+		// the calls of a statement are resolved in this statement
+		functionBlocksToResolve.clear();
+		recording = analysis;
+		try
+		{
+			registerVariables(node, node.getAstRoot(), text);
+		} finally
+		{
+			recording = null;
+		}
+		analysis.errors.addAll(ignoredLines.subList(errors, ignoredLines.size()));
+		st.analysis = analysis;
+		return analysis;
+	}
+
+	/**
+	 * @return the signature of what the script sees before its first
+	 *         statement: the imports, the external and engine variables.
+	 */
+	private long getContextSignature()
+	{
+		ScriptEngineHandler engineHandler = ScriptEngineHandler.getEngineHandler(getEngine());
+		long signature = System.identityHashCode(engineHandler);
+		signature = 31 * signature + System.identityHashCode(PluginLoader.getLoader());
+		signature = 31 * signature + (isStrict() ? 1 : 0);
+		signature = 31 * signature + scriptDeclaredImports.hashCode();
+		signature = 31 * signature + scriptDeclaredImportClasses.hashCode();
+		signature = 31 * signature + engineHandler.getEngineDeclaredImports().hashCode();
+		signature = 31 * signature + engineHandler.getEngineDeclaredImportClasses().hashCode();
+		signature = 31 * signature + getSignature(engineHandler.getEngineFunctions());
+		signature = 31 * signature + getSignature(engineHandler.getEngineVariables());
+		for (String name : externalVariables.keySet())
+			signature += name.hashCode() ^ String.valueOf(externalVariables.get(name).getVariableLastClassType()).hashCode();
+		return signature;
+	}
+
+	private static int getSignature(HashMap<String, VariableType> types)
+	{
+		int signature = 0;
+		for (String name : types.keySet())
+			signature += name.hashCode() ^ String.valueOf(types.get(name)).hashCode();
+		return signature;
+	}
+
 	/**
 	 * Register all variables in the successfully compiled script.
 	 * 
@@ -668,27 +762,7 @@ public class JSScriptingHandlerRhino extends ScriptingHandler
 		for (Completion c : generateCompletion(n, root, text))
 		{
 			if (c != null)
-			{
-				boolean alreadyExists = false;
-				if (c instanceof VariableCompletion)
-				{
-					ScriptVariable vc = localVariables.get(((VariableCompletion) c).getName());
-					if (vc != null && !vc.isInScope(textArea.getCaretPosition()))
-						alreadyExists = true;
-				}
-				for (int i = 0; i < variableCompletions.size() && !alreadyExists; ++i)
-				{
-					if (variableCompletions.get(i).compareTo(c) == 0)
-					{
-						if (textArea.getCaret().getDot() > n.getAbsolutePosition())
-							variableCompletions.remove(i);
-						else
-							alreadyExists = true;
-					}
-				}
-				if (!alreadyExists)
-					variableCompletions.add(c);
-			}
+				addVariableCompletion(c, n.getAbsolutePosition());
 		}
 		// recursive call on children (if any)
 		if (n.hasChildren())
@@ -702,6 +776,58 @@ public class JSScriptingHandlerRhino extends ScriptingHandler
 		}
 	}
 
+	/**
+	 * Adds the completion of a variable, unless the variable is not in scope
+	 * at the caret. A completion declared before the caret replaces the
+	 * previous one.
+	 *
+	 * @param offset
+	 *            : position of the declaration.
+	 */
+	void addVariableCompletion(Completion c, int offset)
+	{
+		if (recording != null)
+			recording.add(new ScriptStatements.VariableCompletion(c, offset));
+		boolean alreadyExists = false;
+		if (c instanceof VariableCompletion)
+		{
+			ScriptVariable vc = localVariables.get(((VariableCompletion) c).getName());
+			if (vc != null && !vc.isInScope(textArea.getCaretPosition()))
+				alreadyExists = true;
+		}
+		for (int i = 0; i < variableCompletions.size() && !alreadyExists; ++i)
+		{
+			if (variableCompletions.get(i).compareTo(c) == 0)
+			{
+				if (textArea.getCaret().getDot() > offset)
+					variableCompletions.remove(i);
+				else
+					alreadyExists = true;
+			}
+		}
+		if (!alreadyExists)
+			variableCompletions.add(c);
+	}
+
+	void addLocalFunction(String name, VariableType type)
+	{
+		if (recording != null)
+			recording.add(new ScriptStatements.Function(name, type));
+		localFunctions.put(name, type);
+	}
+
+	void addBlockFunction(IcyFunctionBlock fb)
+	{
+		if (recording != null)
+			recording.add(new FunctionBlock(fb));
+		blockFunctions.put(fb.getStartOffset(), fb);
+	}
+
+	void addIgnoredLine(ScriptEditorException e)
+	{
+		ignoredLines.add(e);
+	}
+
 	/**
 	 * Automatically generates the completion for javascript: variable or
 	 * function.
@@ -745,7 +871,9 @@ public class JSScriptingHandlerRhino extends ScriptingHandler
 					c.setDefinedIn("script");
 					c.setRelevance(RELEVANCE_HIGH);
 					int pos = n.getAbsolutePosition();
-					addVariableDeclaration(c.getName(), type, pos, pos + var.getParent().getLength());
+					// a top-level variable is in scope until the end of the script
+					int end = var.getParent() instanceof AstRoot ? Integer.MAX_VALUE : pos + var.getParent().getLength();
+					addVariableDeclaration(c.getName(), type, pos, end);
 					toReturn.add(c);
 				}
 			}
@@ -831,7 +959,7 @@ public class JSScriptingHandlerRhino extends ScriptingHandler
 			fc.setParams(params);
 			fc.setDefinedIn("script");
 			fc.setRelevance(RELEVANCE_HIGH);
-			localFunctions.put(fn.getName(), new VariableType(Void.class));
+			addLocalFunction(fn.getName(), new VariableType(Void.class));
 			toReturn.add(fc);
 			registerVariables(fn.getBody(), root, text);
 			break;
@@ -1080,7 +1208,7 @@ public class JSScriptingHandlerRhino extends ScriptingHandler
 				System.out.println("function edited: (" + (fb.getStartOffset() + n.getPosition()) + ") " + text.substring(offset));
 
 			// Add the function block to the index of blockFunctions.
-			blockFunctions.put(fb.getStartOffset(), fb);
+			addBlockFunction(fb);
 
 			// iterate over the next functions, based on the returnType
 			while (match.find(decal) && !(firstCall = match.group()).isEmpty())
@@ -1183,7 +1311,7 @@ public class JSScriptingHandlerRhino extends ScriptingHandler
 					System.out.println("function edited: (" + (fb.getStartOffset() + n.getPosition()) + ") " + text.substring(offset));
 
 				// add the Function Block to the index of blockFunctions.
-				blockFunctions.put(fb.getStartOffset(), fb);
+				addBlockFunction(fb);
 			}
 			return toReturn;
 		}
@@ -1657,6 +1785,8 @@ public class JSScriptingHandlerRhino extends ScriptingHandler
 
 	protected void addVariableDeclaration(String name, VariableType type, int offset)
 	{
+		if (recording != null)
+			recording.add(new Declaration(name, type, offset, -1));
 		ScriptVariable vc = localVariables.get(name);
 		if (vc == null)
 		{
@@ -1669,6 +1799,8 @@ public class JSScriptingHandlerRhino extends ScriptingHandler
 	// TODO use for variables with Token.VAR variables.
 	protected void addVariableDeclaration(String name, VariableType type, int offsetBegin, int offsetEnd)
 	{
+		if (recording != null)
+			recording.add(new Declaration(name, type, offsetBegin, offsetEnd));
 		ScriptVariable vc = localVariables.get(name);
 		if (vc == null)
 		{
@@ -1679,7 +1811,7 @@ public class JSScriptingHandlerRhino extends ScriptingHandler
 	}
 
 	@Override
-	public Class<?> resolveClassDeclaration(String type)
+	protected Class<?> resolveClassDeclaration(String type, List<String> importClasses, List<String> imports)
 	{
 		Class<?> toReturn = null;
 		int arraySize = 0;
@@ -1705,7 +1837,7 @@ public class JSScriptingHandlerRhino extends ScriptingHandler
 		{
 		}
 		if (toReturn == null)
-			toReturn = super.resolveClassDeclaration(type);
+			toReturn = super.resolveClassDeclaration(type, importClasses, imports);
 		if (toReturn == null)
 			toReturn = getNativeJSTypes(type);
 		while (toReturn != null && arraySize > 0)
@@ -2546,9 +2678,20 @@ public class JSScriptingHandlerRhino extends ScriptingHandler
 		 */
 		InputStream is = PluginLoader.getResourceAsStream("plugins/tprovoost/scripteditor/resources/beautify/beautify.js");
 		Reader reader = new BufferedReader(new InputStreamReader(is));
-		Context context = Context.enter();
-		context.setLanguageVersion(Context.VERSION_1_6);
-		org.mozilla.javascript.ScriptableObject scope = context.initStandardObjects();
+		Context context = IcyContextFactory.getInstance().enterContext();
+		try
+		{
+			context.setLanguageVersion(Context.VERSION_1_6);
+			format(context, reader);
+		} finally
+		{
+			Context.exit();
+		}
+	}
+
+	private void format(Context context, Reader reader)
+	{
+		Scriptable scope = JSScriptEngine.newScope(context);
 
 		try
 		{
@@ -2626,7 +2769,7 @@ public class JSScriptingHandlerRhino extends ScriptingHandler
 	@Override
 	public ScriptEngine getEngine()
 	{
-		return ScriptEngineHandler.getEngine("javascript");
+		return ScriptEngineHandler.getEngine(this, "javascript");
 	}
 
 	@Override
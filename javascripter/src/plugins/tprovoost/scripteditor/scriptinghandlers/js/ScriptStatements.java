@@ -0,0 +1,412 @@
+package plugins.tprovoost.scripteditor.scriptinghandlers.js;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.fife.ui.autocomplete.Completion;
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.EvaluatorException;
+import org.mozilla.javascript.Parser;
+import org.mozilla.javascript.ast.AstNode;
+import org.mozilla.javascript.ast.AstRoot;
+
+import plugins.tprovoost.scripteditor.scriptinghandlers.IcyFunctionBlock;
+import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptEditorException;
+import plugins.tprovoost.scripteditor.scriptinghandlers.VariableType;
+
+/**
+ * Top-level statements of the last analyzed script, with the result of their
+ * analysis. When the script changes, the edited region is found by comparing
+ * the new text with the previous one and only the statements it touches are
+ * parsed again: the other statements keep their analysis, moved with the text.
+ * The whole script is parsed only the first time or when the region cannot be
+ * parsed alone (e.g. an unclosed brace).
+ * <p>
+ * The analysis of a statement depends on what the previous statements
+ * declared. Each analysis records the signature of this context, and is
+ * replayed only if the context is unchanged.
+ */
+class ScriptStatements
+{
+	/** Text of the statements. */
+	private String text;
+	private ArrayList<Statement> statements;
+
+	/**
+	 * Updates the statements for the new text of the script.
+	 *
+	 * @return the statements of <code>s</code>. Those which were parsed have
+	 *         their node.
+	 * @throws EvaluatorException
+	 *             if the script cannot be parsed.
+	 */
+	List<Statement> update(String s, CompilerEnvirons comp)
+	{
+		ArrayList<Statement> result = null;
+		if (statements != null)
+			result = updateRegion(s, comp);
+		if (result == null)
+			result = parseAll(s, comp);
+		text = s;
+		statements = result;
+		return result;
+	}
+
+	/**
+	 * Forgets the statements, the next update parses the whole script.
+	 */
+	void reset()
+	{
+		text = null;
+		statements = null;
+	}
+
+	/**
+	 * Parses <code>source</code>, a part of the script.
+	 *
+	 * @param offset
+	 *            : offset of the source in the script, the positions of the
+	 *            nodes are relative to the script.
+	 * @param line
+	 *            : line of the source in the script.
+	 */
+	static AstRoot parse(CompilerEnvirons comp, String source, int offset, int line)
+	{
+		Parser parser = new Parser(comp, comp.getErrorReporter());
+		AstRoot root = parser.parse(source, "", line);
+		root.setPosition(offset);
+		return root;
+	}
+
+	private ArrayList<Statement> parseAll(String s, CompilerEnvirons comp)
+	{
+		AstRoot root = parse(comp, s, 0, 1);
+
+		// keep the analysis of the statements out of the edited region
+		HashMap<Integer, Statement> previous = new HashMap<Integer, Statement>();
+		int prefix = 0;
+		int suffix = 0;
+		if (statements != null)
+		{
+			for (Statement st : statements)
+				previous.put(st.start, st);
+			prefix = commonPrefix(text, s);
+			suffix = commonSuffix(text, s, prefix);
+		}
+		int delta = s.length() - (text == null ? 0 : text.length());
+
+		ArrayList<Statement> result = new ArrayList<Statement>();
+		addStatements(result, root, s, 0, 1);
+		for (Statement st : result)
+		{
+			Statement old = null;
+			if (st.end < prefix)
+				old = previous.get(st.start);
+			else if (st.start > s.length() - suffix)
+				old = previous.get(st.start - delta);
+			if (old != null && old.end - old.start == st.end - st.start)
+				st.analysis = old.analysis;
+		}
+		return result;
+	}
+
+	/**
+	 * Parses the region of the script touched by the edit.
+	 *
+	 * @return the statements, <code>null</code> if the region cannot be
+	 *         parsed alone.
+	 */
+	private ArrayList<Statement> updateRegion(String s, CompilerEnvirons comp)
+	{
+		int prefix = commonPrefix(text, s);
+		int suffix = commonSuffix(text, s, prefix);
+		int oldEditEnd = text.length() - suffix;
+		int delta = s.length() - text.length();
+		int n = statements.size();
+
+		// statements [first, next[ are parsed again
+		int first = 0;
+		while (first < n && statements.get(first).end < prefix)
+			++first;
+		int next = n;
+		while (next > first && statements.get(next - 1).start > oldEditEnd)
+			--next;
+
+		// without a terminator, a statement may continue in the edited text
+		if (first > 0 && !isTerminated(text, statements.get(first - 1).start, statements.get(first - 1).end))
+			--first;
+		int regionStart = first > 0 ? statements.get(first - 1).end : 0;
+		int regionLine = first > 0 ? statements.get(first - 1).endLine : 1;
+		if (next < n && !isTerminated(s, regionStart, statements.get(next).start + delta) && !isBlank(s, regionStart, statements.get(next).start + delta))
+			++next;
+		int oldRegionEnd = next < n ? statements.get(next).start : text.length();
+		int regionEnd = oldRegionEnd + delta;
+
+		AstRoot root;
+		try
+		{
+			root = parse(comp, s.substring(regionStart, regionEnd), regionStart, regionLine);
+		} catch (EvaluatorException e)
+		{
+			return null;
+		}
+
+		// the nodes of the statements kept are dropped: a statement whose
+		// analysis failed still has its node, with the positions of the text
+		// it was parsed from
+		ArrayList<Statement> result = new ArrayList<Statement>(statements.subList(0, first));
+		for (Statement st : result)
+			st.node = null;
+		addStatements(result, root, s, regionStart, regionLine);
+		int lineDelta = countLines(s, regionStart, regionEnd) - countLines(text, regionStart, oldRegionEnd);
+		for (Statement st : statements.subList(next, n))
+		{
+			st.node = null;
+			st.start += delta;
+			st.end += delta;
+			st.line += lineDelta;
+			st.endLine += lineDelta;
+			result.add(st);
+		}
+		return result;
+	}
+
+	private static void addStatements(List<Statement> result, AstRoot root, String s, int offset, int line)
+	{
+		for (AstNode node = (AstNode) root.getFirstChild(); node != null; node = (AstNode) node.getNext())
+		{
+			Statement st = new Statement();
+			st.node = node;
+			st.start = node.getAbsolutePosition();
+			st.end = st.start + node.getLength();
+			st.line = line + countLines(s, offset, st.start);
+			st.endLine = st.line + countLines(s, st.start, st.end);
+			offset = st.end;
+			line = st.endLine;
+			result.add(st);
+		}
+	}
+
+	private static int commonPrefix(String a, String b)
+	{
+		int max = Math.min(a.length(), b.length());
+		int i = 0;
+		while (i < max && a.charAt(i) == b.charAt(i))
+			++i;
+		return i;
+	}
+
+	private static int commonSuffix(String a, String b, int prefix)
+	{
+		int max = Math.min(a.length(), b.length()) - prefix;
+		int i = 0;
+		while (i < max && a.charAt(a.length() - 1 - i) == b.charAt(b.length() - 1 - i))
+			++i;
+		return i;
+	}
+
+	private static int countLines(String s, int start, int end)
+	{
+		int count = 0;
+		for (int i = start; i < end; ++i)
+			if (s.charAt(i) == '\n')
+				++count;
+		return count;
+	}
+
+	/**
+	 * @return true if the text ends with ";" or "}", ignoring the trailing
+	 *         spaces.
+	 */
+	private static boolean isTerminated(String s, int start, int end)
+	{
+		int i = end - 1;
+		while (i >= start && Character.isWhitespace(s.charAt(i)))
+			--i;
+		return i >= start && (s.charAt(i) == ';' || s.charAt(i) == '}');
+	}
+
+	private static boolean isBlank(String s, int start, int end)
+	{
+		for (int i = start; i < end; ++i)
+			if (!Character.isWhitespace(s.charAt(i)))
+				return false;
+		return true;
+	}
+
+	/**
+	 * A top-level statement.
+	 */
+	static class Statement
+	{
+		int start;
+		int end;
+		/** Lines of the start and the end, from 1. */
+		int line;
+		int endLine;
+		/**
+		 * Node parsed from the current text, <code>null</code> once analyzed
+		 * or when the statement is kept from the previous text.
+		 */
+		AstNode node;
+		/** Last analysis, <code>null</code> if the statement was never analyzed. */
+		StatementAnalysis analysis;
+	}
+
+	/**
+	 * What the analysis of a statement added to the handler, in order, with
+	 * the positions at the time of the analysis.
+	 */
+	static class StatementAnalysis
+	{
+		/** Signature of what was declared before the statement. */
+		final long signature;
+		final int start;
+		final int line;
+		/** Signature including the declarations of the statement. */
+		long signatureOut;
+		final ArrayList<Effect> effects = new ArrayList<Effect>();
+		final ArrayList<ScriptEditorException> errors = new ArrayList<ScriptEditorException>();
+
+		StatementAnalysis(long signature, int start, int line)
+		{
+			this.signature = signature;
+			this.start = start;
+			this.line = line;
+			signatureOut = signature;
+		}
+
+		void add(Effect effect)
+		{
+			effects.add(effect);
+			signatureOut = 31 * signatureOut + effect.signature();
+		}
+
+		/**
+		 * Adds the effects to the handler again, for the statement now at
+		 * <code>start</code> and <code>line</code>.
+		 */
+		void replay(JSScriptingHandlerRhino handler, int start, int line)
+		{
+			int shift = start - this.start;
+			int lineShift = line - this.line;
+			for (Effect effect : effects)
+				effect.replay(handler, shift);
+			for (ScriptEditorException e : errors)
+			{
+				if (lineShift != 0)
+					e = new ScriptEditorException(e.getMessage(), e.getFileName(), e.getLineNumber() + lineShift, e.getColumnNumber(), e.isWarning());
+				handler.addIgnoredLine(e);
+			}
+		}
+	}
+
+	/**
+	 * Something added to the handler by the analysis of a statement.
+	 */
+	abstract static class Effect
+	{
+		abstract void replay(JSScriptingHandlerRhino handler, int shift);
+
+		/**
+		 * @return the hash of what the following statements can see, 0 if
+		 *         nothing.
+		 */
+		int signature()
+		{
+			return 0;
+		}
+	}
+
+	static class Declaration extends Effect
+	{
+		final String name;
+		final VariableType type;
+		final int offsetBegin;
+		/** -1 until the next declaration, {@link Integer#MAX_VALUE} until the end of the script. */
+		final int offsetEnd;
+
+		Declaration(String name, VariableType type, int offsetBegin, int offsetEnd)
+		{
+			this.name = name;
+			this.type = type;
+			this.offsetBegin = offsetBegin;
+			this.offsetEnd = offsetEnd;
+		}
+
+		@Override
+		void replay(JSScriptingHandlerRhino handler, int shift)
+		{
+			int end = offsetEnd == -1 || offsetEnd == Integer.MAX_VALUE ? offsetEnd : offsetEnd + shift;
+			handler.addVariableDeclaration(name, type, offsetBegin + shift, end);
+		}
+
+		@Override
+		int signature()
+		{
+			return 31 * name.hashCode() + String.valueOf(type).hashCode();
+		}
+	}
+
+	static class Function extends Effect
+	{
+		final String name;
+		final VariableType type;
+
+		Function(String name, VariableType type)
+		{
+			this.name = name;
+			this.type = type;
+		}
+
+		@Override
+		void replay(JSScriptingHandlerRhino handler, int shift)
+		{
+			handler.addLocalFunction(name, type);
+		}
+
+		@Override
+		int signature()
+		{
+			return 31 * name.hashCode() + String.valueOf(type).hashCode() + 1;
+		}
+	}
+
+	static class FunctionBlock extends Effect
+	{
+		final IcyFunctionBlock block;
+
+		FunctionBlock(IcyFunctionBlock block)
+		{
+			this.block = block;
+		}
+
+		@Override
+		void replay(JSScriptingHandlerRhino handler, int shift)
+		{
+			IcyFunctionBlock fb = new IcyFunctionBlock(block.getFunctionName(), block.getStartOffset() + shift, block.getReturnType());
+			fb.setMethod(block.getMethod());
+			handler.addBlockFunction(fb);
+		}
+	}
+
+	static class VariableCompletion extends Effect
+	{
+		final Completion completion;
+		/** Position of the node declaring the completion. */
+		final int offset;
+
+		VariableCompletion(Completion completion, int offset)
+		{
+			this.completion = completion;
+			this.offset = offset;
+		}
+
+		@Override
+		void replay(JSScriptingHandlerRhino handler, int shift)
+		{
+			handler.addVariableCompletion(completion, offset + shift);
+		}
+	}
+}
@@ -0,0 +1,345 @@
+package plugins.tprovoost.scripteditor.scriptinghandlers.py;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.python.core.BytecodeLoader;
+import org.python.core.CompilerFlags;
+import org.python.core.PyCode;
+import org.python.core.PySystemState;
+import org.python.core.imp;
+import org.python.util.PythonInterpreter;
+
+import plugins.tprovoost.scripteditor.scriptinghandlers.js.CompiledScriptCache;
+
+/**
+ * Bounded LRU cache of compiled Jython {@link PyCode}s, keyed by a digest of
+ * the source, the file name, the modification time of the file and the
+ * compiler flags. Running an unchanged script or block again only costs its
+ * execution.
+ * <p>
+ * If a cache directory is set, the bytecode generated by Jython is also saved
+ * there, so compiled scripts survive a restart. The files also depend on the
+ * Jython version, and the least recently used ones are deleted beyond
+ * {@link #DEFAULT_DISK_CAPACITY} files.
+ */
+public class PyCodeCache
+{
+	public static final int DEFAULT_CAPACITY = 64;
+	public static final int DEFAULT_DISK_CAPACITY = 256;
+
+	/** The bytecode generated depends on the Jython version. */
+	private static final String JYTHON_VERSION = PySystemState.version + "/" + imp.getAPIVersion();
+	private static final String DEFAULT_FLAGS = String.valueOf(new CompilerFlags());
+
+	private final int capacity;
+	private int diskCapacity = DEFAULT_DISK_CAPACITY;
+	private final LinkedHashMap<String, PyCode> codes;
+	private File cacheDirectory = null;
+
+	private long hits = 0;
+	private long diskHits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	public PyCodeCache()
+	{
+		this(DEFAULT_CAPACITY);
+	}
+
+	public PyCodeCache(int capacity)
+	{
+		this.capacity = capacity;
+		codes = new LinkedHashMap<String, PyCode>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PyCode> eldest)
+			{
+				if (size() > PyCodeCache.this.capacity)
+				{
+					++evictions;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns the compiled version of <code>source</code>, compiling it only if
+	 * it is neither in memory nor in the cache directory.
+	 *
+	 * @param py
+	 *            : the interpreter, compiles the script.
+	 * @param flags
+	 *            : the compile flags of the interpreter (the future imports
+	 *            it ran), may be <code>null</code>.
+	 * @param source
+	 *            : the script text.
+	 * @param fileName
+	 *            : name used in the tracebacks.
+	 * @param lastModified
+	 *            : modification time of the file, 0 if the source does not
+	 *            come from a file.
+	 * @return the compiled script.
+	 */
+	public PyCode compile(PythonInterpreter py, CompilerFlags flags, String source, String fileName, long lastModified)
+	{
+		String flagsKey = flags == null ? DEFAULT_FLAGS : String.valueOf(flags);
+		String key = CompiledScriptCache.digest(source) + ":" + source.length() + ":" + lastModified + ":" + fileName + ":" + flagsKey;
+		File directory;
+		synchronized (this)
+		{
+			PyCode code = codes.get(key);
+			if (code != null)
+			{
+				++hits;
+				return code;
+			}
+			directory = cacheDirectory;
+		}
+
+		// compile outside of the lock: may be long and may throw
+		// Jython compiles the saved files with the default flags
+		PyCode code;
+		if (directory == null || !flagsKey.equals(DEFAULT_FLAGS))
+		{
+			code = py.compile(source, fileName);
+			synchronized (this)
+			{
+				++misses;
+			}
+		} else
+			code = compileWithDisk(directory, key, source, fileName);
+
+		synchronized (this)
+		{
+			codes.put(key, code);
+		}
+		return code;
+	}
+
+	private PyCode compileWithDisk(File directory, String key, String source, String fileName)
+	{
+		String name = "script_" + CompiledScriptCache.digest(JYTHON_VERSION + ":" + key);
+		File file = new File(directory, name + ".class");
+		if (file.isFile())
+		{
+			try
+			{
+				PyCode code = BytecodeLoader.makeCode(name + "$py", readBytes(file), fileName);
+				// most recently used, see prune()
+				file.setLastModified(System.currentTimeMillis());
+				synchronized (this)
+				{
+					++diskHits;
+				}
+				return code;
+			} catch (Exception e)
+			{
+				// generated by another Jython version or corrupted
+				file.delete();
+			}
+		}
+
+		byte[] bytes;
+		try
+		{
+			// encoded as it declares, Jython decodes it the same way
+			bytes = imp.compileSource(name, new ByteArrayInputStream(source.getBytes(PyScriptEngine.getSourceCharset(source).name())), fileName);
+		} catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+		synchronized (this)
+		{
+			++misses;
+		}
+		try
+		{
+			directory.mkdirs();
+			writeBytes(directory, file, bytes);
+			prune(directory);
+		} catch (IOException e)
+		{
+			System.err.println("Cannot save the compiled script in " + file + ": " + e.getMessage());
+		}
+		return BytecodeLoader.makeCode(name + "$py", bytes, fileName);
+	}
+
+	private static byte[] readBytes(File file) throws IOException
+	{
+		InputStream is = new FileInputStream(file);
+		try
+		{
+			byte[] bytes = new byte[(int) file.length()];
+			int read = 0;
+			while (read < bytes.length)
+			{
+				int n = is.read(bytes, read, bytes.length - read);
+				if (n < 0)
+					throw new IOException("Unexpected end of file");
+				read += n;
+			}
+			return bytes;
+		} finally
+		{
+			is.close();
+		}
+	}
+
+	/**
+	 * Writes a temporary file renamed once complete, so that another editor
+	 * never reads a partial file.
+	 */
+	private static void writeBytes(File directory, File file, byte[] bytes) throws IOException
+	{
+		File tmp = File.createTempFile("tmp_", ".part", directory);
+		try
+		{
+			OutputStream os = new FileOutputStream(tmp);
+			try
+			{
+				os.write(bytes);
+			} finally
+			{
+				os.close();
+			}
+			// renameTo does not replace an existing file on all platforms
+			if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file)) && !file.isFile())
+				throw new IOException("Cannot rename " + tmp);
+		} finally
+		{
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Deletes the least recently used files beyond the disk capacity.
+	 */
+	private void prune(File directory)
+	{
+		File[] files = directory.listFiles();
+		if (files == null)
+			return;
+		File[] scripts = new File[files.length];
+		int count = 0;
+		for (File f : files)
+			if (f.getName().startsWith("script_") && f.getName().endsWith(".class"))
+				scripts[count++] = f;
+		int max;
+		synchronized (this)
+		{
+			max = diskCapacity;
+		}
+		if (count <= max)
+			return;
+		scripts = Arrays.copyOf(scripts, count);
+		Arrays.sort(scripts, new Comparator<File>()
+		{
+			@Override
+			public int compare(File f1, File f2)
+			{
+				long m1 = f1.lastModified();
+				long m2 = f2.lastModified();
+				return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+			}
+		});
+		for (int i = 0; i < count - max; ++i)
+			scripts[i].delete();
+	}
+
+	public synchronized int getDiskCapacity()
+	{
+		return diskCapacity;
+	}
+
+	/**
+	 * Sets the maximum number of compiled scripts kept in the cache
+	 * directory.
+	 */
+	public synchronized void setDiskCapacity(int diskCapacity)
+	{
+		this.diskCapacity = Math.max(0, diskCapacity);
+	}
+
+	/**
+	 * Sets the directory where the compiled scripts are saved, or
+	 * <code>null</code> to keep them in memory only.
+	 */
+	public synchronized void setCacheDirectory(File cacheDirectory)
+	{
+		if (cacheDirectory == null ? this.cacheDirectory != null : !cacheDirectory.equals(this.cacheDirectory))
+			codes.clear();
+		this.cacheDirectory = cacheDirectory;
+	}
+
+	public synchronized File getCacheDirectory()
+	{
+		return cacheDirectory;
+	}
+
+	/**
+	 * Removes the compiled scripts from memory and from the cache directory.
+	 */
+	public synchronized void clear()
+	{
+		codes.clear();
+		if (cacheDirectory != null)
+		{
+			File[] files = cacheDirectory.listFiles();
+			if (files != null)
+				for (File f : files)
+					if ((f.getName().startsWith("script_") && f.getName().endsWith(".class")) || f.getName().startsWith("tmp_"))
+						f.delete();
+		}
+	}
+
+	public synchronized int size()
+	{
+		return codes.size();
+	}
+
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	public synchronized long getDiskHits()
+	{
+		return diskHits;
+	}
+
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	public synchronized long getEvictions()
+	{
+		return evictions;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "Compiled python scripts: " + codes.size() + "/" + capacity + " (hits: " + hits + ", disk hits: " + diskHits + ", misses: "
+				+ misses + ", evictions: " + evictions + ")";
+	}
+}
@@ -1,94 +1,222 @@
 package plugins.tprovoost.scripteditor.scriptinghandlers.py;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
 import java.util.Enumeration;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import org.python.core.CompilerFlags;
+import org.python.core.Py;
 import org.python.core.PyException;
+import org.python.core.PyList;
+import org.python.core.PyObject;
 import org.python.core.PyString;
 import org.python.core.PyStringMap;
 import org.python.core.PySystemState;
 import org.python.util.PythonInterpreter;
 
+import plugins.tprovoost.scripteditor.scriptinghandlers.BindingsChanges;
+import plugins.tprovoost.scripteditor.scriptinghandlers.RunControl;
+import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptCancelledException;
 import plugins.tprovoost.scripteditor.scriptinghandlers.ScriptEngine;
 
 public class PyScriptEngine extends ScriptEngine
 {
 	private static boolean initialized = false;
-	private PythonInterpreter py;
+	private static final PyCodeCache codeCache = new PyCodeCache();
+	private static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
+	/** Encoding declaration of PEP 263, in the first two lines. */
+	private static final Pattern CODING = Pattern.compile("^[ \\t\\f]*#.*?coding[:=][ \\t]*([-_.a-zA-Z0-9]+)");
+	private Interpreter py;
+	private TrackedLocals locals;
+
+	/** Names set or deleted in the locals since the last bindings changes. */
+	private final LinkedHashSet<String> modifiedBindings = new LinkedHashSet<String>();
+
+	/**
+	 * Bindings reported by the last bindings changes, read from the thread of
+	 * the run and from the EDT.
+	 */
+	private final Set<String> knownBindings = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
 	public PyScriptEngine()
 	{
-		if (!initialized)
+		// engines can be created concurrently by the engine pool
+		synchronized (PyScriptEngine.class)
 		{
-			initializer();
-			initialized = true;
+			if (!initialized)
+			{
+				initializer();
+				initialized = true;
+			}
 		}
 
 		// Set __name__ == "__main__" (useful for python scripting)
 		// Without this, it is "__builtin__"
-		PyStringMap dict = new PyStringMap();
-		dict.__setitem__("__name__", new PyString("__main__"));
+		locals = new TrackedLocals();
+		locals.__setitem__("__name__", new PyString("__main__"));
 
 		// start with a fresh PySystemState
 		PySystemState sys = new PySystemState();
 
-		py = new PythonInterpreter(dict, sys);
+		py = new Interpreter(locals, sys);
+		bindings = new LocalsBindings();
 	}
 
 	@Override
 	public void eval(String s)
 	{
-		for (String s2 : bindings.keySet())
+		exec(s, "<string>", 0);
+	}
+
+	public void evalFile(String s)
+	{
+		File f = new File(s);
+		String source = null;
+		try
 		{
-			py.set(s2, bindings.get(s2));
+			source = readSource(f);
+		} catch (IOException e)
+		{
+			// let Jython report the error
 		}
-		py.setOut(getWriter());
-		py.setErr(getErrorWriter());
+		exec(source, s, f.lastModified());
+	}
+
+	/**
+	 * Reads a python file, decoded with the encoding it declares, UTF-8 by
+	 * default.
+	 */
+	private static String readSource(File f) throws IOException
+	{
+		InputStream is = new FileInputStream(f);
+		byte[] bytes;
 		try
 		{
-			py.exec(s);
-			PyStringMap locals = (PyStringMap) py.getLocals();
-			Object[] values = locals.values().toArray();
-			Object[] keys = locals.keys().toArray();
-			bindings.clear();
-			for (int i = 0; i < keys.length; ++i)
+			bytes = new byte[(int) f.length()];
+			int read = 0;
+			while (read < bytes.length)
 			{
-				bindings.put((String) keys[i], values[i]);
+				int n = is.read(bytes, read, bytes.length - read);
+				if (n < 0)
+					throw new IOException("Unexpected end of file");
+				read += n;
 			}
-		} catch (PyException pe)
+		} finally
 		{
-			getErrorWriter().write(pe.toString());
-			getErrorWriter().flush();
+			is.close();
 		}
+		// UTF-8 byte order mark
+		if (bytes.length >= 3 && bytes[0] == (byte) 0xEF && bytes[1] == (byte) 0xBB && bytes[2] == (byte) 0xBF)
+			return new String(bytes, 3, bytes.length - 3, DEFAULT_CHARSET);
+		// the declaration is in ASCII, whatever the encoding
+		return new String(bytes, getSourceCharset(new String(bytes, 0, Math.min(bytes.length, 1024), "ISO-8859-1")));
 	}
 
-	public void evalFile(String s)
+	/**
+	 * @return the encoding declared in the first two lines of
+	 *         <code>source</code>, UTF-8 if none or if it is not supported.
+	 */
+	static Charset getSourceCharset(String source)
 	{
-		for (String s2 : bindings.keySet())
+		int start = 0;
+		for (int line = 0; line < 2 && start < source.length(); ++line)
 		{
-			py.set(s2, bindings.get(s2));
+			int end = source.indexOf('\n', start);
+			if (end < 0)
+				end = source.length();
+			Matcher m = CODING.matcher(source.substring(start, end));
+			if (m.find())
+			{
+				// normalized as by the python tokenizer
+				String name = m.group(1).toLowerCase().replace('_', '-');
+				if (name.equals("utf-8") || name.startsWith("utf-8-"))
+					return DEFAULT_CHARSET;
+				if (name.equals("latin-1") || name.equals("iso-latin-1") || name.startsWith("latin-1-") || name.startsWith("iso-8859-1-")
+						|| name.startsWith("iso-latin-1-"))
+					name = "ISO-8859-1";
+				try
+				{
+					return Charset.forName(name);
+				} catch (IllegalArgumentException e)
+				{
+					return DEFAULT_CHARSET;
+				}
+			}
+			start = end + 1;
 		}
+		return DEFAULT_CHARSET;
+	}
+
+	/**
+	 * Executes the script. A trace function checking the run is only installed
+	 * when the run has a budget (or is already cancelled): tracing every line
+	 * is costly in Jython. Without it, a cancellation interrupts the thread of
+	 * the run.
+	 * 
+	 * @param source
+	 *            : the script, or <code>null</code> to let Jython read the
+	 *            file.
+	 */
+	private void exec(String source, String fileName, long lastModified)
+	{
 		py.setOut(getWriter());
 		py.setErr(getErrorWriter());
+		RunControl run = startRun();
+		boolean traced = run != null && (!run.getBudget().isUnlimited() || run.isCancelled());
+		if (traced)
+			py.getSystemState().settrace(new RunTracer(run));
 		try
 		{
-			py.execfile(s);
-			PyStringMap locals = (PyStringMap) py.getLocals();
-			Object[] values = locals.values().toArray();
-			Object[] keys = locals.keys().toArray();
-			bindings.clear();
-			for (int i = 0; i < keys.length; ++i)
-			{
-				bindings.put((String) keys[i], values[i]);
-			}
+			if (source == null)
+				py.execfile(fileName);
+			else
+				py.exec(codeCache.compile(py, py.getCompilerFlags(), source, fileName, lastModified));
 		} catch (PyException pe)
 		{
+			// the cancellation is wrapped in a python exception
+			RunControl current = RunControl.current();
+			if (current != null && current.isCancelled())
+				throw new ScriptCancelledException(current.getCancelReason());
 			getErrorWriter().write(pe.toString());
 			getErrorWriter().flush();
+		} finally
+		{
+			if (traced)
+				py.getSystemState().settrace(Py.None);
+			endRun(run);
 		}
 	}
 
+	/**
+	 * @return the cache of the compiled scripts, shared by all the python
+	 *         engines.
+	 */
+	public static PyCodeCache getCodeCache()
+	{
+		return codeCache;
+	}
+
+	@Override
+	public String getCacheStatistics()
+	{
+		return codeCache.toString();
+	}
+
 	/**
 	 * Initialize the python interpreter state (paths, etc.)
 	 */
@@ -121,7 +249,7 @@ public class PyScriptEngine extends ScriptEngine
 	@Override
 	public void clear()
 	{
-		HashMap<String, Object> bindings = getBindings();
+		Map<String, Object> bindings = getBindings();
 		for (String s : bindings.keySet())
 		{
 			bindings.put(s, null);
@@ -144,6 +272,246 @@ public class PyScriptEngine extends ScriptEngine
 		py.set(name, null);
 	}
 
+	/**
+	 * Returns a live view of the interpreter locals: values set from Java go
+	 * directly to the interpreter, and nothing is copied before or after a
+	 * run.
+	 */
+	@Override
+	public Map<String, Object> getBindings()
+	{
+		return bindings;
+	}
+
+	@Override
+	public void put(String name, Object value)
+	{
+		putInRealEngine(name, value);
+	}
+
+	/**
+	 * Returns the bindings added, changed (assigned again) or removed since the
+	 * last call. Only the names written in the locals since then are checked,
+	 * not all the bindings.
+	 */
+	@Override
+	public BindingsChanges getBindingsChanges()
+	{
+		String[] names;
+		synchronized (modifiedBindings)
+		{
+			names = modifiedBindings.toArray(new String[modifiedBindings.size()]);
+			modifiedBindings.clear();
+		}
+		BindingsChanges changes = new BindingsChanges();
+		for (String name : names)
+		{
+			boolean exists = locals.__finditem__(name) != null;
+			if (knownBindings.contains(name))
+			{
+				if (exists)
+					changes.markChanged(name);
+				else
+				{
+					changes.markRemoved(name);
+					knownBindings.remove(name);
+				}
+			} else if (exists)
+			{
+				changes.markAdded(name);
+				knownBindings.add(name);
+			}
+		}
+		return changes;
+	}
+
+	private void bindingModified(String name)
+	{
+		synchronized (modifiedBindings)
+		{
+			modifiedBindings.add(name);
+		}
+	}
+
+	/**
+	 * Interpreter giving its compile flags, changed by the future imports it
+	 * runs.
+	 */
+	private static class Interpreter extends PythonInterpreter
+	{
+		Interpreter(PyObject dict, PySystemState systemState)
+		{
+			super(dict, systemState);
+		}
+
+		CompilerFlags getCompilerFlags()
+		{
+			return cflags;
+		}
+	}
+
+	/**
+	 * Trace function called by Jython for each call and each line, counting
+	 * them in the budget of the run.
+	 */
+	private static class RunTracer extends PyObject
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final RunControl run;
+
+		RunTracer(RunControl run)
+		{
+			this.run = run;
+		}
+
+		@Override
+		public PyObject __call__(PyObject frame, PyObject event, PyObject arg)
+		{
+			// raised again at each event once cancelled, so a bare except: in
+			// the script cannot swallow it. It is a Java exception, not a
+			// PyException, so Jython does not remove the trace function.
+			if (run.isCancelled())
+				throw new ScriptCancelledException(run.getCancelReason());
+			run.check(1);
+			return this;
+		}
+	}
+
+	/**
+	 * Locals of the interpreter, recording the names set or deleted by the
+	 * scripts or from Java.
+	 */
+	private class TrackedLocals extends PyStringMap
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public void __setitem__(String key, PyObject value)
+		{
+			super.__setitem__(key, value);
+			bindingModified(key);
+		}
+
+		@Override
+		public void __setitem__(PyObject key, PyObject value)
+		{
+			super.__setitem__(key, value);
+			if (key instanceof PyString)
+				bindingModified(key.toString());
+		}
+
+		@Override
+		public void __delitem__(String key)
+		{
+			super.__delitem__(key);
+			bindingModified(key);
+		}
+
+		@Override
+		public void __delitem__(PyObject key)
+		{
+			super.__delitem__(key);
+			if (key instanceof PyString)
+				bindingModified(key.toString());
+		}
+	}
+
+	/**
+	 * {@link Map} view of the interpreter locals.
+	 */
+	private class LocalsBindings extends AbstractMap<String, Object>
+	{
+		@Override
+		public Object get(Object key)
+		{
+			if (!(key instanceof String))
+				return null;
+			return locals.__finditem__((String) key);
+		}
+
+		@Override
+		public boolean containsKey(Object key)
+		{
+			return get(key) != null;
+		}
+
+		@Override
+		public Object put(String key, Object value)
+		{
+			Object old = get(key);
+			py.set(key, value);
+			return old;
+		}
+
+		@Override
+		public Object remove(Object key)
+		{
+			Object old = get(key);
+			if (old != null)
+				locals.__delitem__((String) key);
+			return old;
+		}
+
+		@Override
+		public Set<Map.Entry<String, Object>> entrySet()
+		{
+			return new AbstractSet<Map.Entry<String, Object>>()
+			{
+				@Override
+				public Iterator<Map.Entry<String, Object>> iterator()
+				{
+					final PyList keys = locals.keys();
+					return new Iterator<Map.Entry<String, Object>>()
+					{
+						private int idx = 0;
+						private String current = null;
+
+						@Override
+						public boolean hasNext()
+						{
+							return idx < keys.__len__();
+						}
+
+						@Override
+						public Map.Entry<String, Object> next()
+						{
+							if (!hasNext())
+								throw new NoSuchElementException();
+							current = keys.__getitem__(idx++).toString();
+							return new SimpleEntry<String, Object>(current, LocalsBindings.this.get(current))
+							{
+								private static final long serialVersionUID = 1L;
+
+								@Override
+								public Object setValue(Object value)
+								{
+									py.set(getKey(), value);
+									return super.setValue(value);
+								}
+							};
+						}
+
+						@Override
+						public void remove()
+						{
+							if (current == null)
+								throw new IllegalStateException();
+							LocalsBindings.this.remove(current);
+							current = null;
+						}
+					};
+				}
+
+				@Override
+				public int size()
+				{
+					return locals.__len__();
+				}
+			};
+		}
+	}
+
 	public PythonInterpreter getPythonInterpreter()
 	{
 		return py;
@@ -892,14 +892,14 @@ public class PythonScriptingHandler extends ScriptingHandler
     }
 
     @Override
-    public void installMethods(ScriptEngine engine, ArrayList<Method> functions)
+    public void installMethods(ScriptEngine engine, List<Method> functions)
     {
     }
 
     @Override
     public ScriptEngine getEngine()
     {
-	return ScriptEngineHandler.getEngine("python");
+	return ScriptEngineHandler.getEngine(this, "python");
     }
 
     /**
@@ -1007,10 +1007,12 @@ public class PythonScriptingHandler extends ScriptingHandler
     @Override
     public LinkGeneratorResult isLinkAtOffset(final RSyntaxTextArea textArea, int offs)
     {
+	// called at each move of the mouse: the document is not copied each time
+	String text = getDocumentText();
 	for (String s : modules.keySet())
 	{
 	    final String currentS = s;
-	    final int offsetMod = textArea.getText().indexOf(s);
+	    final int offsetMod = text.indexOf(s);
 	    if (offs >= offsetMod && offs <= offsetMod + s.length())
 	    {
 		return new LinkGeneratorResult()
@@ -0,0 +1,90 @@
+package plugins.tprovoost.scripteditor.scriptinghandlers.py;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.tprovoost.scripteditor.scriptinghandlers.BindingsChanges;
+
+/**
+ * Changes made by the python scripts must be seen through the live bindings
+ * and {@link PyScriptEngine#getBindingsChanges()}, without copying the
+ * interpreter locals.
+ */
+public class PyScriptEngineBindingsTest
+{
+	private PyScriptEngine engine;
+
+	@Before
+	public void setUp()
+	{
+		engine = new PyScriptEngine();
+		// forget the names set when the engine is created
+		engine.getBindingsChanges();
+	}
+
+	@Test
+	public void testScriptChangesAreReported()
+	{
+		engine.eval("a = 1\nb = 2");
+		BindingsChanges changes = engine.getBindingsChanges();
+		assertEquals(names("a", "b"), changes.getAdded());
+		assertTrue(changes.getChanged().isEmpty());
+		assertTrue(changes.getRemoved().isEmpty());
+
+		engine.eval("a = 3\ndel b");
+		changes = engine.getBindingsChanges();
+		assertTrue(changes.getAdded().isEmpty());
+		assertEquals(names("a"), changes.getChanged());
+		assertEquals(names("b"), changes.getRemoved());
+
+		assertTrue(engine.getBindingsChanges().isEmpty());
+	}
+
+	@Test
+	public void testOnlyWrittenNamesAreReported()
+	{
+		engine.eval("a = 1\nb = 2");
+		engine.getBindingsChanges();
+
+		// reads a and b, writes c
+		engine.eval("c = a + b");
+		BindingsChanges changes = engine.getBindingsChanges();
+		assertEquals(names("c"), changes.getAdded());
+		assertTrue(changes.getChanged().isEmpty());
+		assertTrue(changes.getRemoved().isEmpty());
+	}
+
+	@Test
+	public void testBindingsAreLive()
+	{
+		Map<String, Object> bindings = engine.getBindings();
+		engine.eval("a = 1");
+		assertTrue(bindings.containsKey("a"));
+
+		// set from Java, read by the script
+		bindings.put("b", "x");
+		engine.eval("c = b + 'y'");
+		assertEquals("xy", bindings.get("c").toString());
+
+		engine.eval("del a");
+		assertFalse(bindings.containsKey("a"));
+
+		BindingsChanges changes = engine.getBindingsChanges();
+		assertEquals(names("b", "c"), changes.getAdded());
+		assertTrue(changes.getRemoved().isEmpty());
+	}
+
+	private static Set<String> names(String... names)
+	{
+		return new HashSet<String>(Arrays.asList(names));
+	}
+}